@@ -25,7 +25,7 @@ public class JBlocks extends JavaProject
 
         testDeps("cglib:cglib-nodep:jar:2.1_3", "org.objenesis:objenesis:jar:1.0", "org.jmock:jmock:jar:2.4.0",
             "org.jmock:jmock-legacy:jar:2.4.0", "org.hamcrest:hamcrest-core:jar:1.1",
-            "org.hamcrest:hamcrest-library:jar:1.1");
+            "org.hamcrest:hamcrest-library:jar:1.1", "org.apache.derby:derby:jar:10.8.3.0");
 
         runtimeDeps("ch.qos.logback:logback-core:jar:0.9.14", "ch.qos.logback:logback-classic:jar:0.9.14");
     }
@@ -0,0 +1,563 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package jBlocks.server.sql;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The rows selected by a statement stored column by column, a compact alternative to selecting into <code>Map</code> or
+ * <code>List</code> models for wide reports. Each column is one array: a primitive array, with the nulls kept in a bit
+ * set, for integral and floating point columns, and an array of values for the others. The column names are kept once,
+ * in the header, taken from the statement's fields. Select into a columnar result by naming this class as the map's
+ * class; the statement then selects a single result:
+ *
+ * <pre><code>
+ *  report.class = jBlocks.server.sql.ColumnarResult
+ *  report.sales.sql = select s.region, s.product, s.units, s.amount from sales s where s.month = #.#
+ *
+ *  ColumnarResult sales = sqlClient.selectOne(&quot;report.sales.sql&quot;, month);
+ *  sales.writeCsv(response.getWriter());
+ * </code></pre>
+ *
+ * Iterating a result moves one {@link Row} view from row to row, so reading all rows allocates nothing; use
+ * {@link #row(int)} for rows that must be kept. A result is never changed once selected, so it can be shared, by the
+ * {@link QueryCache} for one. Row callbacks are not called for columnar results.
+ *
+ * @author hkrishna
+ */
+public class ColumnarResult implements Iterable<ColumnarResult.Row>, Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * A view of one row of the result.
+     */
+    public class Row
+    {
+        private int _row;
+
+        private Row(int row)
+        {
+            _row = row;
+        }
+
+        /**
+         * @return The index of this row in the result.
+         */
+        public int getIndex()
+        {
+            return _row;
+        }
+
+        public Object get(int column)
+        {
+            return ColumnarResult.this.get(_row, column);
+        }
+
+        public Object get(String column)
+        {
+            return ColumnarResult.this.get(_row, columnIndex(column));
+        }
+
+        public boolean isNull(int column)
+        {
+            return ColumnarResult.this.isNull(_row, column);
+        }
+
+        public int getInt(int column)
+        {
+            return ColumnarResult.this.getInt(_row, column);
+        }
+
+        public long getLong(int column)
+        {
+            return ColumnarResult.this.getLong(_row, column);
+        }
+
+        public double getDouble(int column)
+        {
+            return ColumnarResult.this.getDouble(_row, column);
+        }
+
+        public String getString(int column)
+        {
+            return ColumnarResult.this.getString(_row, column);
+        }
+
+        @Override
+        public String toString()
+        {
+            StringBuilder b = new StringBuilder("[");
+
+            for (int c = 0; c < _columns.length; c++)
+                b.append(c == 0 ? "" : ", ").append(get(c));
+
+            return b.append(']').toString();
+        }
+    }
+
+    private final String[]       _header;
+    private final Object[]       _columns;
+    private final BitSet[]       _nulls;
+    private int                  _size;
+    private transient JdbcType[] _types;
+
+    /**
+     * Creates an empty result with a column for each column of the provided result set metadata, named after the
+     * statement's fields when they match the columns, after the columns' labels otherwise.
+     */
+    ColumnarResult(SqlStmt sqlStmt, ResultSetMetaData metaData) throws SQLException
+    {
+        List<SqlField> fields = sqlStmt.getFields();
+        int count = metaData.getColumnCount();
+
+        _header = new String[count];
+        _columns = new Object[count];
+        _nulls = new BitSet[count];
+        _types = new JdbcType[count];
+
+        for (int c = 0; c < count; c++)
+        {
+            _header[c] = fields != null && fields.size() == count ? fields.get(c).getPath() : metaData
+                .getColumnLabel(c + 1);
+            _types[c] = JdbcType.forSqlType(metaData.getColumnType(c + 1));
+
+            switch (_types[c])
+            {
+                case INTEGER:
+                case SHORT:
+                case BYTE:
+                    _columns[c] = new int[16];
+                    break;
+
+                case LONG:
+                    _columns[c] = new long[16];
+                    break;
+
+                case DOUBLE:
+                case FLOAT:
+                    _columns[c] = new double[16];
+                    break;
+
+                default:
+                    _columns[c] = new Object[16];
+            }
+
+            if (!(_columns[c] instanceof Object[]))
+                _nulls[c] = new BitSet();
+        }
+    }
+
+    /**
+     * Appends the current row of the provided result set.
+     */
+    void addRow(ResultSet result) throws SQLException
+    {
+        if (_columns.length > 0 && _size == Array.getLength(_columns[0]))
+            grow();
+
+        for (int c = 0; c < _columns.length; c++)
+        {
+            Object column = _columns[c];
+
+            if (column instanceof int[])
+                ((int[]) column)[_size] = result.getInt(c + 1);
+            else if (column instanceof long[])
+                ((long[]) column)[_size] = result.getLong(c + 1);
+            else if (column instanceof double[])
+                ((double[]) column)[_size] = result.getDouble(c + 1);
+            else
+            {
+                ((Object[]) column)[_size] = _types[c].getValue(result, c + 1);
+                continue;
+            }
+
+            if (result.wasNull())
+                _nulls[c].set(_size);
+        }
+
+        _size++;
+    }
+
+    private void grow()
+    {
+        for (int c = 0; c < _columns.length; c++)
+            _columns[c] = copy(_columns[c], _size * 2);
+    }
+
+    private static Object copy(Object values, int length)
+    {
+        Object copy = Array.newInstance(values.getClass().getComponentType(), length);
+        System.arraycopy(values, 0, copy, 0, Math.min(length, Array.getLength(values)));
+
+        return copy;
+    }
+
+    /**
+     * Shrinks the columns to the number of rows once all rows are added.
+     */
+    ColumnarResult trim()
+    {
+        for (int c = 0; c < _columns.length; c++)
+            _columns[c] = copy(_columns[c], _size);
+
+        _types = null;
+
+        return this;
+    }
+
+    /**
+     * @return The names of the columns.
+     */
+    public List<String> getHeader()
+    {
+        return Collections.unmodifiableList(Arrays.asList(_header));
+    }
+
+    /**
+     * @return The index of the column with the provided name.
+     * @throws IllegalArgumentException
+     *             When there is no such column.
+     */
+    public int columnIndex(String column)
+    {
+        for (int c = 0; c < _header.length; c++)
+            if (_header[c].equals(column))
+                return c;
+
+        throw new IllegalArgumentException("No column " + column + " in " + getHeader());
+    }
+
+    public int columnCount()
+    {
+        return _columns.length;
+    }
+
+    /**
+     * @return The number of rows.
+     */
+    public int size()
+    {
+        return _size;
+    }
+
+    /**
+     * @return The class of the values of the provided column: <code>int</code>, <code>long</code> or
+     *         <code>double</code> for primitive columns, {@link Object} for the others.
+     */
+    public Class<?> getColumnClass(int column)
+    {
+        Object values = _columns[column];
+
+        return values instanceof int[] ? int.class : values instanceof long[] ? long.class
+            : values instanceof double[] ? double.class : Object.class;
+    }
+
+    public boolean isNull(int row, int column)
+    {
+        check(row);
+
+        return _nulls[column] == null ? ((Object[]) _columns[column])[row] == null : _nulls[column].get(row);
+    }
+
+    /**
+     * @return The value at the provided row and column, boxed for primitive columns, or null.
+     */
+    public Object get(int row, int column)
+    {
+        if (isNull(row, column))
+            return null;
+
+        Object values = _columns[column];
+
+        if (values instanceof int[])
+            return ((int[]) values)[row];
+
+        if (values instanceof long[])
+            return ((long[]) values)[row];
+
+        if (values instanceof double[])
+            return ((double[]) values)[row];
+
+        return ((Object[]) values)[row];
+    }
+
+    /**
+     * @return The value at the provided row and column as an int, 0 for null.
+     */
+    public int getInt(int row, int column)
+    {
+        check(row);
+
+        Object values = _columns[column];
+
+        return values instanceof int[] ? ((int[]) values)[row] : (int) getLong(row, column);
+    }
+
+    /**
+     * @return The value at the provided row and column as a long, 0 for null.
+     */
+    public long getLong(int row, int column)
+    {
+        check(row);
+
+        Object values = _columns[column];
+
+        if (values instanceof long[])
+            return ((long[]) values)[row];
+
+        if (values instanceof int[])
+            return ((int[]) values)[row];
+
+        if (values instanceof double[])
+            return (long) ((double[]) values)[row];
+
+        Object value = ((Object[]) values)[row];
+
+        return value == null ? 0 : ((Number) value).longValue();
+    }
+
+    /**
+     * @return The value at the provided row and column as a double, 0 for null.
+     */
+    public double getDouble(int row, int column)
+    {
+        check(row);
+
+        Object values = _columns[column];
+
+        if (values instanceof double[])
+            return ((double[]) values)[row];
+
+        if (values instanceof Object[])
+        {
+            Object value = ((Object[]) values)[row];
+
+            return value == null ? 0 : ((Number) value).doubleValue();
+        }
+
+        return getLong(row, column);
+    }
+
+    /**
+     * @return The value at the provided row and column as a string, or null.
+     */
+    public String getString(int row, int column)
+    {
+        Object value = get(row, column);
+
+        return value == null ? null : value.toString();
+    }
+
+    private void check(int row)
+    {
+        if (row < 0 || row >= _size)
+            throw new IndexOutOfBoundsException("Row: " + row + ", Size: " + _size);
+    }
+
+    /**
+     * @return A view of the provided row.
+     */
+    public Row row(int row)
+    {
+        check(row);
+
+        return new Row(row);
+    }
+
+    /**
+     * @return An iterator that returns the same {@link Row}, moved to the next row on every call to
+     *         {@link Iterator#next()}.
+     */
+    public Iterator<Row> iterator()
+    {
+        return new Iterator<Row>()
+        {
+            private final Row _cursor = new Row(-1);
+
+            public boolean hasNext()
+            {
+                return _cursor._row + 1 < _size;
+            }
+
+            public Row next()
+            {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+
+                _cursor._row++;
+
+                return _cursor;
+            }
+
+            public void remove()
+            {
+                throw new UnsupportedOperationException("Rows cannot be removed from a columnar result.");
+            }
+        };
+    }
+
+    /**
+     * Writes the header and the rows as comma separated values, one line per row, quoting the values that contain
+     * commas, quotes or line breaks. Nulls are written as empty values.
+     */
+    public void writeCsv(Appendable out) throws IOException
+    {
+        for (int c = 0; c < _header.length; c++)
+            writeCsv(out.append(c == 0 ? "" : ","), _header[c]);
+
+        out.append("\r\n");
+
+        for (int r = 0; r < _size; r++)
+        {
+            for (int c = 0; c < _columns.length; c++)
+            {
+                if (c > 0)
+                    out.append(',');
+
+                if (!isNull(r, c))
+                    writeCsv(out, getString(r, c));
+            }
+
+            out.append("\r\n");
+        }
+    }
+
+    private void writeCsv(Appendable out, String value) throws IOException
+    {
+        boolean quote = false;
+
+        for (int i = 0; i < value.length() && !quote; i++)
+        {
+            char ch = value.charAt(i);
+            quote = ch == ',' || ch == '"' || ch == '\r' || ch == '\n';
+        }
+
+        if (!quote)
+        {
+            out.append(value);
+            return;
+        }
+
+        out.append('"');
+
+        for (int i = 0; i < value.length(); i++)
+        {
+            char ch = value.charAt(i);
+
+            if (ch == '"')
+                out.append('"');
+
+            out.append(ch);
+        }
+
+        out.append('"');
+    }
+
+    /**
+     * Writes the rows as a JSON array of objects keyed by the column names. Numbers and booleans are written as such,
+     * non finite numbers as null, and all other values as strings.
+     */
+    public void writeJson(Appendable out) throws IOException
+    {
+        out.append('[');
+
+        for (int r = 0; r < _size; r++)
+        {
+            out.append(r == 0 ? "{" : ",{");
+
+            for (int c = 0; c < _columns.length; c++)
+            {
+                if (c > 0)
+                    out.append(',');
+
+                writeJson(out, _header[c]);
+                out.append(':');
+
+                Object value = get(r, c);
+
+                if (value == null || value instanceof Double && !isFinite((Double) value))
+                    out.append("null");
+                else if (value instanceof Number || value instanceof Boolean)
+                    out.append(value.toString());
+                else
+                    writeJson(out, value.toString());
+            }
+
+            out.append('}');
+        }
+
+        out.append(']');
+    }
+
+    private boolean isFinite(Double value)
+    {
+        return !value.isNaN() && !value.isInfinite();
+    }
+
+    private void writeJson(Appendable out, String value) throws IOException
+    {
+        out.append('"');
+
+        for (int i = 0; i < value.length(); i++)
+        {
+            char ch = value.charAt(i);
+
+            switch (ch)
+            {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (ch < 0x20)
+                        out.append(String.format("\\u%04x", (int) ch));
+                    else
+                        out.append(ch);
+            }
+        }
+
+        out.append('"');
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Columns: " + getHeader() + ", Rows: " + _size;
+    }
+}
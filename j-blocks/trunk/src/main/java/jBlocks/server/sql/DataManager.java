@@ -18,17 +18,59 @@ import jBlocks.server.AggregateException;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.naming.Context;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import javax.sql.DataSource;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands out the connections of a database: a primary, which serves all transactions, and optionally read replicas,
+ * which serve the selects made outside transactions.
+ * <p>
+ * A replica that cannot hand out a connection, or whose connection fails the
+ * {@link #healthCheckQuery(String) health check}, is ejected for a while and its read sessions go to the other
+ * replicas, or to the primary when no replica is left. Once the while is over the replica is checked again on the next
+ * read session and put back in rotation if it is healthy.
+ */
 public class DataManager
 {
-    private String     _dbId;
-    private String     _jndiName;
-    private DataSource _dataSource;
+    private static final Logger _logger = LoggerFactory.getLogger(DataManager.class);
+
+    private static class Replica
+    {
+        private final DataSource _dataSource;
+        private volatile long    _ejectedUntil;
+
+        Replica(DataSource dataSource)
+        {
+            _dataSource = dataSource;
+        }
+
+        int activeConnections()
+        {
+            return _dataSource instanceof SimpleDataSource ? ((SimpleDataSource) _dataSource).getActiveConnections()
+                : 0;
+        }
+    }
+
+    private String              _dbId;
+    private String              _jndiName;
+    private DataSource          _dataSource;
+    private List<Replica>       _replicas       = new CopyOnWriteArrayList<Replica>();
+    private ReadRouting         _readRouting    = ReadRouting.ROUND_ROBIN;
+    private boolean             _readYourWrites = true;
+    private long                _ejectFor       = 30000;
+    private String              _healthCheckQuery;
+    private final AtomicInteger _next           = new AtomicInteger();
 
     DataManager(String jndiName, String dbId)
     {
@@ -42,6 +84,89 @@ public class DataManager
         _dataSource = dataSource;
     }
 
+    /**
+     * Adds a read replica of the primary database. Replicas are expected to be kept up to date by the database's own
+     * replication and may lag behind the primary.
+     */
+    public DataManager addReplica(DataSource replica)
+    {
+        _replicas.add(new Replica(replica));
+
+        return this;
+    }
+
+    /**
+     * @param routing
+     *            How read sessions are spread over the replicas; defaults to {@link ReadRouting#ROUND_ROBIN}.
+     */
+    public DataManager readRouting(ReadRouting routing)
+    {
+        _readRouting = routing;
+
+        return this;
+    }
+
+    /**
+     * @param readYourWrites
+     *            True, the default, to read from the primary for the rest of a session once the session has updated
+     *            the database, so that it sees its own updates even when the replicas lag behind.
+     */
+    public DataManager readYourWrites(boolean readYourWrites)
+    {
+        _readYourWrites = readYourWrites;
+
+        return this;
+    }
+
+    /**
+     * @param millis
+     *            How long a failed replica is left out of rotation before it is checked again; defaults to 30
+     *            seconds.
+     */
+    public DataManager ejectFor(long millis)
+    {
+        _ejectFor = millis;
+
+        return this;
+    }
+
+    /**
+     * @param sql
+     *            The query run on a replica's connection when the replica is checked after having been ejected; by
+     *            default the replica is healthy when it hands out a connection.
+     */
+    public DataManager healthCheckQuery(String sql)
+    {
+        _healthCheckQuery = sql;
+
+        return this;
+    }
+
+    boolean hasReplicas()
+    {
+        return !_replicas.isEmpty();
+    }
+
+    boolean isReadYourWrites()
+    {
+        return _readYourWrites;
+    }
+
+    /**
+     * @return The number of replicas currently in rotation.
+     */
+    public int getHealthyReplicas()
+    {
+        long now = System.currentTimeMillis();
+        int count = 0;
+
+        for (Replica replica : _replicas)
+            if (replica._ejectedUntil <= now)
+                count++;
+
+        return count;
+    }
+
     Connection getConnection()
     {
         if (_dataSource == null)
@@ -55,8 +180,7 @@ public class DataManager
             try
             {
                 conn = _dataSource.getConnection();
-                conn.setAutoCommit(false);
-                conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+                configure(conn);
 
                 break;
             }
@@ -64,12 +188,216 @@ public class DataManager
             {
                 if (i > 0)
                     throw AggregateException.with(e, "unable-to-get-jdbc-connection");
+
+                _logger.warn("Unable to get JDBC connection for " + _dbId + ", retrying.", e);
+
+                close(conn);
+                conn = null;
             }
         }
 
         return conn;
     }
 
+    /**
+     * @return A read connection like {@link #getReadConnection()}, or null when it would come from the primary's
+     *         {@link SimpleDataSource} pool and all its connections are in use; the caller may be holding one of them
+     *         itself, so waiting for the pool could wait for the caller.
+     */
+    Connection tryReadConnection()
+    {
+        if (getHealthyReplicas() > 0)
+            return getReadConnection();
+
+        if (_dataSource == null)
+            loadDataSource();
+
+        if (!(_dataSource instanceof SimpleDataSource))
+            return getConnection();
+
+        Connection conn = null;
+
+        try
+        {
+            conn = ((SimpleDataSource) _dataSource).tryConnection();
+
+            if (conn != null)
+                configure(conn);
+
+            return conn;
+        }
+        catch (SQLException e)
+        {
+            close(conn);
+
+            throw AggregateException.with(e, "unable-to-get-jdbc-connection");
+        }
+    }
+
+    /**
+     * @return A read only connection of a healthy replica, or of the primary when there are no healthy replicas.
+     */
+    Connection getReadConnection()
+    {
+        List<Replica> replicas = _replicas;
+
+        if (replicas.isEmpty())
+            return getConnection();
+
+        long now = System.currentTimeMillis();
+        int start = (_next.getAndIncrement() & Integer.MAX_VALUE) % replicas.size();
+
+        Replica best = null;
+        int bestActive = Integer.MAX_VALUE;
+
+        // Try the routed replica first, then the others in turn
+        for (int i = 0; i < replicas.size(); i++)
+        {
+            Replica replica = replicas.get((start + i) % replicas.size());
+
+            if (replica._ejectedUntil > now)
+                continue;
+
+            if (_readRouting == ReadRouting.ROUND_ROBIN)
+            {
+                best = replica;
+                break;
+            }
+
+            int active = replica.activeConnections();
+
+            if (active < bestActive)
+            {
+                best = replica;
+                bestActive = active;
+            }
+        }
+
+        if (best != null)
+        {
+            Connection conn = getConnection(best);
+
+            if (conn != null)
+                return conn;
+        }
+
+        for (int i = 0; i < replicas.size(); i++)
+        {
+            Replica replica = replicas.get((start + i) % replicas.size());
+
+            if (replica == best || replica._ejectedUntil > now)
+                continue;
+
+            Connection conn = getConnection(replica);
+
+            if (conn != null)
+                return conn;
+        }
+
+        _logger.warn("No healthy replica for " + _dbId + ", reading from the primary.");
+
+        return getConnection();
+    }
+
+    /**
+     * @return A connection of the provided replica, checked first when the replica was ejected, or null after ejecting
+     *         the replica when it fails.
+     */
+    private Connection getConnection(Replica replica)
+    {
+        Connection conn = null;
+
+        try
+        {
+            conn = replica._dataSource.getConnection();
+
+            if (replica._ejectedUntil > 0 && _healthCheckQuery != null)
+            {
+                Statement stmt = conn.createStatement();
+
+                try
+                {
+                    stmt.execute(_healthCheckQuery);
+                }
+                finally
+                {
+                    stmt.close();
+                }
+            }
+
+            configure(conn);
+            conn.setReadOnly(true);
+
+            if (replica._ejectedUntil > 0)
+            {
+                replica._ejectedUntil = 0;
+                _logger.info("Replica " + replica._dataSource + " of " + _dbId + " is back in rotation.");
+            }
+
+            return conn;
+        }
+        catch (Exception e)
+        {
+            replica._ejectedUntil = System.currentTimeMillis() + _ejectFor;
+            _logger.warn("Replica " + replica._dataSource + " of " + _dbId + " failed, ejecting it for " + _ejectFor
+                + " ms.", e);
+
+            close(conn);
+
+            return null;
+        }
+    }
+
+    private void configure(Connection conn) throws SQLException
+    {
+        conn.setAutoCommit(false);
+        conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+    }
+
+    private void close(Connection conn)
+    {
+        try
+        {
+            if (conn != null)
+                conn.close();
+        }
+        catch (Exception e)
+        {
+            // Ignore
+        }
+    }
+
+    /**
+     * @return A snapshot of the connection pool usage when the data source is a {@link SimpleDataSource}, null
+     *         otherwise.
+     */
+    public PoolStats poolStats()
+    {
+        return _dataSource instanceof SimpleDataSource ? ((SimpleDataSource) _dataSource).stats() : null;
+    }
+
+    /**
+     * @return The maximum number of connections when the data source is a {@link SimpleDataSource}, 0 otherwise.
+     */
+    int maxConnections()
+    {
+        return _dataSource instanceof SimpleDataSource ? ((SimpleDataSource) _dataSource).getMaxSize() : 0;
+    }
+
+    /**
+     * Evicts the statements prepared with the provided SQL texts from the statement caches of the primary and the
+     * replicas that are {@link SimpleDataSource}s.
+     */
+    void evictStatements(Collection<String> sqls)
+    {
+        if (_dataSource instanceof SimpleDataSource)
+            ((SimpleDataSource) _dataSource).evictStatements(sqls);
+
+        for (Replica replica : _replicas)
+            if (replica._dataSource instanceof SimpleDataSource)
+                ((SimpleDataSource) replica._dataSource).evictStatements(sqls);
+    }
+
     private void loadDataSource()
     {
         try
@@ -0,0 +1,213 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package jBlocks.server.sql;
+
+/**
+ * How a database limits the rows a select returns, used by {@link SqlClient#selectPage(String, Object, int, int)} to
+ * rewrite statements into pages. The offset and the limit are bound as parameters, so every page of a statement is
+ * the same prepared statement, except with {@link #TOP}.
+ *
+ * @author hkrishna
+ * @see SqlClient#setDialect(Dialect)
+ */
+public enum Dialect
+{
+    /**
+     * <code>limit ? offset ?</code>, as in MySQL, PostgreSQL, H2, HSQLDB and SQLite.
+     */
+    LIMIT_OFFSET
+    {
+        @Override
+        String page(String sql, int offset, int limit)
+        {
+            return sql + " limit ? offset ?";
+        }
+
+        @Override
+        Object[] pageParams(int offset, int limit)
+        {
+            return new Object[] { limit, offset };
+        }
+    },
+
+    /**
+     * <code>offset ? rows fetch next ? rows only</code>, the SQL:2008 standard, as in Derby, Oracle 12c, DB2 and SQL
+     * Server 2012.
+     */
+    OFFSET_FETCH
+    {
+        @Override
+        String page(String sql, int offset, int limit)
+        {
+            return sql + " offset ? rows fetch next ? rows only";
+        }
+
+        @Override
+        Object[] pageParams(int offset, int limit)
+        {
+            return new Object[] { offset, limit };
+        }
+    },
+
+    /**
+     * <code>select top n</code>, as in SQL Server 2005 and Sybase. The database has no offset, so it returns the rows
+     * up to the end of the page and the rows before the page are skipped as they are read; deep pages are better
+     * selected by key, with {@link SqlClient#selectPageAfter(String, Object, Object, int)}.
+     */
+    TOP
+    {
+        @Override
+        String page(String sql, int offset, int limit)
+        {
+            int head = sql.regionMatches(true, 0, DISTINCT, 0, DISTINCT.length()) ? DISTINCT.length() : SELECT
+                .length();
+
+            return sql.substring(0, head) + "top " + (offset + limit) + " " + sql.substring(head);
+        }
+
+        @Override
+        Object[] pageParams(int offset, int limit)
+        {
+            return new Object[0];
+        }
+
+        @Override
+        int skip(int offset)
+        {
+            return offset;
+        }
+    };
+
+    private static final String   SELECT   = "select ";
+    private static final String   DISTINCT = "select distinct ";
+    private static final String[] WRAPPED  = { "group by", "having", "union", "intersect", "except" };
+
+    /**
+     * @return The provided select statement limited to the page at the provided offset.
+     */
+    abstract String page(String sql, int offset, int limit);
+
+    /**
+     * @return The values of the parameters {@link #page(String, int, int)} appends, in order.
+     */
+    abstract Object[] pageParams(int offset, int limit);
+
+    /**
+     * @return The number of rows to skip, as they are read, to get to the provided offset.
+     */
+    int skip(int offset)
+    {
+        return 0;
+    }
+
+    /**
+     * @return The provided select statement without its top level <code>order by</code> clause, if it ends with one.
+     */
+    static String stripOrderBy(String sql)
+    {
+        int orderBy = lastTopLevel(sql, "order by");
+
+        return orderBy < 0 ? sql : sql.substring(0, orderBy);
+    }
+
+    /**
+     * @return The index of the whitespace before the last occurrence of the provided keyword, followed by whitespace,
+     *         outside parentheses and quotes, or -1 when there is none.
+     */
+    private static int lastTopLevel(String sql, String keyword)
+    {
+        int depth = 0, found = -1, length = keyword.length();
+        boolean quoted = false;
+
+        for (int i = 0; i < sql.length(); i++)
+        {
+            char ch = sql.charAt(i);
+
+            if (ch == '\'')
+                quoted = !quoted;
+            else if (quoted)
+                continue;
+            else if (ch == '(')
+                depth++;
+            else if (ch == ')')
+                depth--;
+            else if (depth == 0 && Character.isWhitespace(ch) && sql.regionMatches(true, i + 1, keyword, 0, length)
+                && i + 1 + length < sql.length() && Character.isWhitespace(sql.charAt(i + 1 + length)))
+                found = i;
+        }
+
+        return found;
+    }
+
+    /**
+     * @return The provided select statement as a query of the rows that follow a sort key value, or of the first rows
+     *         when <code>after</code> is false, in the order of the sort key. The sort key predicate is added to the
+     *         statement's own <code>where</code> clause, so the database can seek to the first row of the page on an
+     *         index of the sort key; statements with a top level <code>group by</code>, <code>having</code> or set
+     *         operator are wrapped in a derived table instead, which only the databases that push predicates into
+     *         derived tables, such as PostgreSQL, Oracle, SQL Server and MySQL 5.7 or later, page without reading
+     *         the rows before the page.
+     */
+    static String keyset(String sql, String sortKey, boolean descending, boolean after)
+    {
+        String stmt = stripOrderBy(sql);
+        String predicate = descending ? " < ?" : " > ?";
+
+        for (String keyword : WRAPPED)
+            if (lastTopLevel(stmt, keyword) >= 0)
+                return wrappedKeyset(stmt, sortKey.substring(sortKey.lastIndexOf('.') + 1), predicate, descending,
+                    after);
+
+        StringBuilder b = new StringBuilder(stmt);
+
+        if (after)
+        {
+            int where = lastTopLevel(stmt, "where");
+
+            if (where < 0)
+                b.append(" where ");
+            else
+                b.insert(where + 7, '(').append(") and ");
+
+            b.append(sortKey).append(predicate);
+        }
+
+        b.append(" order by ").append(sortKey);
+
+        return descending ? b.append(" desc").toString() : b.toString();
+    }
+
+    private static String wrappedKeyset(String stmt, String column, String predicate, boolean descending,
+        boolean after)
+    {
+        StringBuilder b = new StringBuilder("select * from (").append(stmt).append(") p");
+
+        if (after)
+            b.append(" where p.").append(column).append(predicate);
+
+        b.append(" order by p.").append(column);
+
+        return descending ? b.append(" desc").toString() : b.toString();
+    }
+
+    /**
+     * @return A statement that counts the rows the provided select statement selects.
+     */
+    static String count(String sql)
+    {
+        return "select count(*) from (" + stripOrderBy(sql) + ") c";
+    }
+}
@@ -0,0 +1,143 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package jBlocks.server.sql;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of non negative long values, typically durations. Values are counted in buckets whose width
+ * doubles with every power of two and each power of two is split into 8 linear sub buckets, so percentiles are
+ * reported within 12.5% of the recorded value while the whole histogram stays under 5KB regardless of the number of
+ * values recorded. Recording a value is a handful of atomic increments.
+ *
+ * @author hkrishna
+ */
+public class Histogram
+{
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS     = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS         = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private static int bucketOf(long value)
+    {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+
+        int magnitude = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS - 1;
+        int sub = (int) (value >>> magnitude) & (SUB_BUCKETS - 1);
+
+        return (magnitude + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return The highest value counted in the provided bucket.
+     */
+    private static long valueOf(int bucket)
+    {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+
+        int magnitude = bucket / SUB_BUCKETS - 1;
+        long sub = bucket % SUB_BUCKETS;
+
+        return ((SUB_BUCKETS + sub + 1) << magnitude) - 1;
+    }
+
+    private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong      _count  = new AtomicLong();
+    private final AtomicLong      _total  = new AtomicLong();
+    private final AtomicLong      _max    = new AtomicLong();
+
+    public void record(long value)
+    {
+        if (value < 0)
+            value = 0;
+
+        _counts.incrementAndGet(bucketOf(value));
+        _count.incrementAndGet();
+        _total.addAndGet(value);
+
+        long max = _max.get();
+
+        while (value > max && !_max.compareAndSet(max, value))
+            max = _max.get();
+    }
+
+    public long getCount()
+    {
+        return _count.get();
+    }
+
+    public long getTotal()
+    {
+        return _total.get();
+    }
+
+    public long getMax()
+    {
+        return _max.get();
+    }
+
+    public double getMean()
+    {
+        long count = _count.get();
+
+        return count == 0 ? 0 : (double) _total.get() / count;
+    }
+
+    /**
+     * @param percentile
+     *            A percentile between 0 and 100, 99.9 for example.
+     * @return The value at or below which the provided percentile of the recorded values fall.
+     */
+    public long getPercentile(double percentile)
+    {
+        long count = _count.get();
+
+        if (count == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(count * Math.min(percentile, 100) / 100));
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += _counts.get(i);
+
+            if (seen >= rank)
+                return Math.min(valueOf(i), _max.get());
+        }
+
+        return _max.get();
+    }
+
+    public void reset()
+    {
+        for (int i = 0; i < BUCKETS; i++)
+            _counts.set(i, 0);
+
+        _count.set(0);
+        _total.set(0);
+        _max.set(0);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Count: " + getCount() + ", Mean: " + Math.round(getMean()) + ", 50%: " + getPercentile(50) + ", 95%: "
+            + getPercentile(95) + ", 99%: " + getPercentile(99) + ", Max: " + getMax();
+    }
+}
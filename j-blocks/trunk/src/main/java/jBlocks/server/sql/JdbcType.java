@@ -0,0 +1,437 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package jBlocks.server.sql;
+
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps Java types to the typed {@link PreparedStatement} setters and {@link ResultSet} getters so they can be picked
+ * once, up front, instead of being looked up reflectively for every parameter and every column value.
+ *
+ * @author hkrishna
+ */
+enum JdbcType
+{
+    STRING(Types.VARCHAR)
+    {
+        @Override
+        void setValue(PreparedStatement stmt, int i, Object val) throws SQLException
+        {
+            stmt.setString(i, (String) val);
+        }
+
+        @Override
+        Object getValue(ResultSet rs, int col) throws SQLException
+        {
+            return rs.getString(col);
+        }
+    },
+    INTEGER(Types.INTEGER)
+    {
+        @Override
+        void setValue(PreparedStatement stmt, int i, Object val) throws SQLException
+        {
+            stmt.setInt(i, ((Number) val).intValue());
+        }
+
+        @Override
+        Object getValue(ResultSet rs, int col) throws SQLException
+        {
+            int val = rs.getInt(col);
+            return rs.wasNull() ? null : Integer.valueOf(val);
+        }
+    },
+    LONG(Types.BIGINT)
+    {
+        @Override
+        void setValue(PreparedStatement stmt, int i, Object val) throws SQLException
+        {
+            stmt.setLong(i, ((Number) val).longValue());
+        }
+
+        @Override
+        Object getValue(ResultSet rs, int col) throws SQLException
+        {
+            long val = rs.getLong(col);
+            return rs.wasNull() ? null : Long.valueOf(val);
+        }
+    },
+    SHORT(Types.SMALLINT)
+    {
+        @Override
+        void setValue(PreparedStatement stmt, int i, Object val) throws SQLException
+        {
+            stmt.setShort(i, ((Number) val).shortValue());
+        }
+
+        @Override
+        Object getValue(ResultSet rs, int col) throws SQLException
+        {
+            short val = rs.getShort(col);
+            return rs.wasNull() ? null : Short.valueOf(val);
+        }
+    },
+    BYTE(Types.TINYINT)
+    {
+        @Override
+        void setValue(PreparedStatement stmt, int i, Object val) throws SQLException
+        {
+            stmt.setByte(i, ((Number) val).byteValue());
+        }
+
+        @Override
+        Object getValue(ResultSet rs, int col) throws SQLException
+        {
+            byte val = rs.getByte(col);
+            return rs.wasNull() ? null : Byte.valueOf(val);
+        }
+    },
+    DOUBLE(Types.DOUBLE)
+    {
+        @Override
+        void setValue(PreparedStatement stmt, int i, Object val) throws SQLException
+        {
+            stmt.setDouble(i, ((Number) val).doubleValue());
+        }
+
+        @Override
+        Object getValue(ResultSet rs, int col) throws SQLException
+        {
+            double val = rs.getDouble(col);
+            return rs.wasNull() ? null : Double.valueOf(val);
+        }
+    },
+    FLOAT(Types.REAL)
+    {
+        @Override
+        void setValue(PreparedStatement stmt, int i, Object val) throws SQLException
+        {
+            stmt.setFloat(i, ((Number) val).floatValue());
+        }
+
+        @Override
+        Object getValue(ResultSet rs, int col) throws SQLException
+        {
+            float val = rs.getFloat(col);
+            return rs.wasNull() ? null : Float.valueOf(val);
+        }
+    },
+    BOOLEAN(Types.BOOLEAN)
+    {
+        @Override
+        void setValue(PreparedStatement stmt, int i, Object val) throws SQLException
+        {
+            stmt.setBoolean(i, ((Boolean) val).booleanValue());
+        }
+
+        @Override
+        Object getValue(ResultSet rs, int col) throws SQLException
+        {
+            String val = rs.getString(col);
+
+            if (val == null)
+                return null;
+
+            return "y".equalsIgnoreCase(val) || "yes".equalsIgnoreCase(val) || "true".equalsIgnoreCase(val) ? Boolean.TRUE
+                : Boolean.FALSE;
+        }
+    },
+    BIG_DECIMAL(Types.DECIMAL)
+    {
+        @Override
+        void setValue(PreparedStatement stmt, int i, Object val) throws SQLException
+        {
+            stmt.setBigDecimal(i, (BigDecimal) val);
+        }
+
+        @Override
+        Object getValue(ResultSet rs, int col) throws SQLException
+        {
+            return rs.getBigDecimal(col);
+        }
+    },
+    /**
+     * {@link java.util.Date} and {@link java.sql.Date} values are bound as timestamps so the time part is not lost.
+     */
+    DATE(Types.TIMESTAMP)
+    {
+        @Override
+        void setValue(PreparedStatement stmt, int i, Object val) throws SQLException
+        {
+            stmt.setTimestamp(i, new Timestamp(((Date) val).getTime()));
+        }
+
+        @Override
+        Object getValue(ResultSet rs, int col) throws SQLException
+        {
+            Timestamp val = rs.getTimestamp(col);
+            return val == null ? null : new Date(val.getTime());
+        }
+    },
+    /**
+     * {@link java.sql.Date} values are bound like {@link #DATE} but read back as {@link java.sql.Date}.
+     */
+    SQL_DATE(Types.TIMESTAMP)
+    {
+        @Override
+        void setValue(PreparedStatement stmt, int i, Object val) throws SQLException
+        {
+            DATE.setValue(stmt, i, val);
+        }
+
+        @Override
+        Object getValue(ResultSet rs, int col) throws SQLException
+        {
+            return rs.getDate(col);
+        }
+    },
+    TIMESTAMP(Types.TIMESTAMP)
+    {
+        @Override
+        void setValue(PreparedStatement stmt, int i, Object val) throws SQLException
+        {
+            stmt.setTimestamp(i, (Timestamp) val);
+        }
+
+        @Override
+        Object getValue(ResultSet rs, int col) throws SQLException
+        {
+            return rs.getTimestamp(col);
+        }
+    },
+    TIME(Types.TIME)
+    {
+        @Override
+        void setValue(PreparedStatement stmt, int i, Object val) throws SQLException
+        {
+            stmt.setTime(i, (Time) val);
+        }
+
+        @Override
+        Object getValue(ResultSet rs, int col) throws SQLException
+        {
+            return rs.getTime(col);
+        }
+    },
+    BYTES(Types.VARBINARY)
+    {
+        @Override
+        void setValue(PreparedStatement stmt, int i, Object val) throws SQLException
+        {
+            stmt.setBytes(i, (byte[]) val);
+        }
+
+        @Override
+        Object getValue(ResultSet rs, int col) throws SQLException
+        {
+            return rs.getBytes(col);
+        }
+    },
+    /**
+     * Used when the declared type does not tell us enough, a getter returning {@link Object} or {@link Number} for
+     * example; the setter is then picked from the runtime type of each value and columns are read with
+     * {@link ResultSet#getObject(int)}.
+     */
+    OBJECT(Types.NULL)
+    {
+        @Override
+        void setValue(PreparedStatement stmt, int i, Object val) throws SQLException
+        {
+            JdbcType type = forClass(val.getClass());
+
+            if (type == OBJECT)
+                stmt.setObject(i, val);
+            else
+                type.setValue(stmt, i, val);
+        }
+
+        @Override
+        Object getValue(ResultSet rs, int col) throws SQLException
+        {
+            return rs.getObject(col);
+        }
+    };
+
+    private static final Map<Class<?>, JdbcType> TYPES       = new HashMap<Class<?>, JdbcType>();
+
+    static
+    {
+        TYPES.put(String.class, STRING);
+        TYPES.put(Integer.class, INTEGER);
+        TYPES.put(int.class, INTEGER);
+        TYPES.put(Long.class, LONG);
+        TYPES.put(long.class, LONG);
+        TYPES.put(Short.class, SHORT);
+        TYPES.put(short.class, SHORT);
+        TYPES.put(Byte.class, BYTE);
+        TYPES.put(byte.class, BYTE);
+        TYPES.put(Double.class, DOUBLE);
+        TYPES.put(double.class, DOUBLE);
+        TYPES.put(Float.class, FLOAT);
+        TYPES.put(float.class, FLOAT);
+        TYPES.put(Boolean.class, BOOLEAN);
+        TYPES.put(boolean.class, BOOLEAN);
+        TYPES.put(BigDecimal.class, BIG_DECIMAL);
+        TYPES.put(Date.class, DATE);
+        TYPES.put(java.sql.Date.class, SQL_DATE);
+        TYPES.put(Timestamp.class, TIMESTAMP);
+        TYPES.put(Time.class, TIME);
+        TYPES.put(byte[].class, BYTES);
+    }
+
+    private static final Map<Integer, JdbcType>  SQL_TYPES   = new HashMap<Integer, JdbcType>();
+    private static final Map<JdbcType, Class<?>> JAVA_TYPES  = new HashMap<JdbcType, Class<?>>();
+
+    static
+    {
+        SQL_TYPES.put(Types.CHAR, STRING);
+        SQL_TYPES.put(Types.VARCHAR, STRING);
+        SQL_TYPES.put(Types.LONGVARCHAR, STRING);
+        SQL_TYPES.put(Types.INTEGER, INTEGER);
+        SQL_TYPES.put(Types.BIGINT, LONG);
+        SQL_TYPES.put(Types.SMALLINT, SHORT);
+        SQL_TYPES.put(Types.TINYINT, BYTE);
+        SQL_TYPES.put(Types.DOUBLE, DOUBLE);
+        SQL_TYPES.put(Types.FLOAT, DOUBLE);
+        SQL_TYPES.put(Types.REAL, FLOAT);
+        SQL_TYPES.put(Types.BIT, BOOLEAN);
+        SQL_TYPES.put(Types.BOOLEAN, BOOLEAN);
+        SQL_TYPES.put(Types.DECIMAL, BIG_DECIMAL);
+        SQL_TYPES.put(Types.NUMERIC, BIG_DECIMAL);
+        SQL_TYPES.put(Types.DATE, SQL_DATE);
+        SQL_TYPES.put(Types.TIMESTAMP, TIMESTAMP);
+        SQL_TYPES.put(Types.TIME, TIME);
+        SQL_TYPES.put(Types.BINARY, BYTES);
+        SQL_TYPES.put(Types.VARBINARY, BYTES);
+        SQL_TYPES.put(Types.LONGVARBINARY, BYTES);
+
+        for (Map.Entry<Class<?>, JdbcType> entry : TYPES.entrySet())
+            if (!entry.getKey().isPrimitive())
+                JAVA_TYPES.put(entry.getValue(), entry.getKey());
+    }
+
+    static JdbcType forClass(Class<?> clazz)
+    {
+        JdbcType type = TYPES.get(clazz);
+
+        if (type != null)
+            return type;
+
+        if (Date.class.isAssignableFrom(clazz))
+            return DATE;
+
+        return OBJECT;
+    }
+
+    /**
+     * @return The type whose native getter reads columns of the provided {@link Types SQL type}, {@link #OBJECT} for
+     *         SQL types with no native getter.
+     */
+    static JdbcType forSqlType(int sqlType)
+    {
+        JdbcType type = SQL_TYPES.get(sqlType);
+
+        return type == null ? OBJECT : type;
+    }
+
+    private final int _sqlType;
+
+    private JdbcType(int sqlType)
+    {
+        _sqlType = sqlType;
+    }
+
+    abstract void setValue(PreparedStatement stmt, int i, Object val) throws SQLException;
+
+    /**
+     * @return The column value read with the native getter for this type, or null when the column is SQL NULL.
+     */
+    abstract Object getValue(ResultSet rs, int col) throws SQLException;
+
+    /**
+     * @return The class of the values read by this type, {@link Object} for {@link #OBJECT}.
+     */
+    Class<?> getJavaClass()
+    {
+        Class<?> clazz = JAVA_TYPES.get(this);
+
+        return clazz == null ? Object.class : clazz;
+    }
+
+    /**
+     * @return True for the date and time types, whose values can be parsed from strings with {@link #parse(String)}.
+     */
+    boolean isTemporal()
+    {
+        return this == DATE || this == SQL_DATE || this == TIMESTAMP || this == TIME;
+    }
+
+    /**
+     * Parses the provided JDBC escape format string, <code>yyyy-mm-dd hh:mm:ss[.f...]</code>, <code>yyyy-mm-dd</code>
+     * or <code>hh:mm:ss</code>, into a value of this date or time type. The parsers are thread safe, unlike shared
+     * date formats.
+     */
+    Object parse(String val)
+    {
+        if (val == null)
+            return null;
+
+        val = val.trim();
+
+        long time;
+
+        if (val.indexOf('-') < 0)
+            time = Time.valueOf(val).getTime();
+        else if (val.length() <= 10)
+            time = java.sql.Date.valueOf(val).getTime();
+        else
+        {
+            Timestamp timestamp = Timestamp.valueOf(val.replace('T', ' '));
+
+            if (this == TIMESTAMP)
+                return timestamp;
+
+            time = timestamp.getTime();
+        }
+
+        if (this == SQL_DATE)
+            return new java.sql.Date(time);
+
+        if (this == TIMESTAMP)
+            return new Timestamp(time);
+
+        if (this == TIME)
+            return new Time(time);
+
+        return new Date(time);
+    }
+
+    void set(PreparedStatement stmt, int i, Object val) throws SQLException
+    {
+        if (val == null)
+            stmt.setNull(i, _sqlType);
+        else
+            setValue(stmt, i, val);
+    }
+}
@@ -0,0 +1,179 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package jBlocks.server.sql;
+
+import java.io.Serializable;
+
+/**
+ * A point in time snapshot of the usage of a {@link SimpleDataSource} pool. Wait times are in microseconds and hold
+ * times are in milliseconds.
+ * 
+ * @author hkrishna
+ * @see SimpleDataSource#stats()
+ */
+public class PoolStats implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    private int               _active, _idle, _pending, _total, _maxSize;
+    private long              _checkouts, _timeouts, _created, _discarded, _leaks;
+    private long              _stmtHits, _stmtMisses;
+    private long              _wait50, _wait95, _wait99, _waitMax;
+    private long              _hold50, _hold95, _hold99, _holdMax;
+
+    PoolStats(SimpleDataSource ds, Histogram waitTimes, Histogram holdTimes)
+    {
+        _active = ds.getActiveConnections();
+        _idle = ds.getIdleConnections();
+        _pending = ds.getPendingRequests();
+        _total = ds.getTotalConnections();
+        _maxSize = ds.getMaxSize();
+        _checkouts = ds.getCheckouts();
+        _timeouts = ds.getCheckoutTimeouts();
+        _created = ds.getConnectionsCreated();
+        _discarded = ds.getConnectionsDiscarded();
+        _leaks = ds.getLeaksDetected();
+        _stmtHits = ds.getStatementCacheHits();
+        _stmtMisses = ds.getStatementCacheMisses();
+
+        _wait50 = waitTimes.getPercentile(50);
+        _wait95 = waitTimes.getPercentile(95);
+        _wait99 = waitTimes.getPercentile(99);
+        _waitMax = waitTimes.getMax();
+
+        _hold50 = holdTimes.getPercentile(50);
+        _hold95 = holdTimes.getPercentile(95);
+        _hold99 = holdTimes.getPercentile(99);
+        _holdMax = holdTimes.getMax();
+    }
+
+    public int getActive()
+    {
+        return _active;
+    }
+
+    public int getIdle()
+    {
+        return _idle;
+    }
+
+    /**
+     * @return The number of threads waiting for a connection.
+     */
+    public int getPending()
+    {
+        return _pending;
+    }
+
+    public int getTotal()
+    {
+        return _total;
+    }
+
+    public int getMaxSize()
+    {
+        return _maxSize;
+    }
+
+    public long getCheckouts()
+    {
+        return _checkouts;
+    }
+
+    public long getTimeouts()
+    {
+        return _timeouts;
+    }
+
+    public long getCreated()
+    {
+        return _created;
+    }
+
+    public long getDiscarded()
+    {
+        return _discarded;
+    }
+
+    public long getLeaks()
+    {
+        return _leaks;
+    }
+
+    public long getStatementCacheHits()
+    {
+        return _stmtHits;
+    }
+
+    public long getStatementCacheMisses()
+    {
+        return _stmtMisses;
+    }
+
+    public long getWait50()
+    {
+        return _wait50;
+    }
+
+    public long getWait95()
+    {
+        return _wait95;
+    }
+
+    public long getWait99()
+    {
+        return _wait99;
+    }
+
+    public long getWaitMax()
+    {
+        return _waitMax;
+    }
+
+    public long getHold50()
+    {
+        return _hold50;
+    }
+
+    public long getHold95()
+    {
+        return _hold95;
+    }
+
+    public long getHold99()
+    {
+        return _hold99;
+    }
+
+    public long getHoldMax()
+    {
+        return _holdMax;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder b = new StringBuilder("Active: ").append(_active).append(", Idle: ").append(_idle);
+        b.append(", Pending: ").append(_pending).append(", Total: ").append(_total).append('/').append(_maxSize);
+        b.append(", Checkouts: ").append(_checkouts).append(", Timeouts: ").append(_timeouts);
+        b.append(", Created: ").append(_created).append(", Discarded: ").append(_discarded);
+        b.append(", Leaks: ").append(_leaks).append(", Statement cache hits/misses: ").append(_stmtHits).append('/');
+        b.append(_stmtMisses);
+        b.append(", Wait (us) 50/95/99/max: ").append(_wait50).append('/').append(_wait95).append('/');
+        b.append(_wait99).append('/').append(_waitMax);
+        b.append(", Hold (ms) 50/95/99/max: ").append(_hold50).append('/').append(_hold95).append('/');
+        return b.append(_hold99).append('/').append(_holdMax).toString();
+    }
+}
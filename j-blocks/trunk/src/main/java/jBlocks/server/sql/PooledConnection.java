@@ -0,0 +1,417 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package jBlocks.server.sql;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * A physical connection owned by {@link SimpleDataSource}. Calls are delegated straight to the physical connection;
+ * {@link #close()} hands the connection back to the pool instead of closing it. The auto-commit mode and the
+ * transaction isolation are remembered so that setting them to their current value, as {@link DataManager} does on
+ * every checkout, does not cost a round trip.
+ * <p>
+ * Each connection also owns a {@link StatementCache}, through which {@link SqlSession} prepares its statements, so
+ * statements repeated across sessions are prepared once per physical connection.
+ *
+ * @author hkrishna
+ */
+class PooledConnection implements Connection
+{
+    private final SimpleDataSource _dataSource;
+    private final Connection       _conn;
+    private final StatementCache   _stmtCache;
+    private final long             _createdAt;
+    private long                   _lastUsedAt;
+    private long                   _checkedOutAt;
+    private Throwable              _checkoutTrace;
+    private boolean                _leakReported;
+    private boolean                _checkedOut;
+    private boolean                _dirty;
+    private boolean                _autoCommit;
+    private int                    _isolation;
+
+    PooledConnection(SimpleDataSource dataSource, Connection conn) throws SQLException
+    {
+        _dataSource = dataSource;
+        _conn = conn;
+        _stmtCache = dataSource.newStatementCache(conn);
+        _createdAt = _lastUsedAt = System.currentTimeMillis();
+        _autoCommit = conn.getAutoCommit();
+        _isolation = conn.getTransactionIsolation();
+    }
+
+    // Pool methods
+    // ===========================================================================
+
+    Connection physicalConnection()
+    {
+        return _conn;
+    }
+
+    long createdAt()
+    {
+        return _createdAt;
+    }
+
+    long lastUsedAt()
+    {
+        return _lastUsedAt;
+    }
+
+    long checkedOutAt()
+    {
+        return _checkedOutAt;
+    }
+
+    /**
+     * @return The stack of the thread that checked out this connection, when leak detection is on.
+     */
+    Throwable checkoutTrace()
+    {
+        return _checkoutTrace;
+    }
+
+    /**
+     * @return True the first time it is called for a checkout, false afterwards.
+     */
+    boolean reportLeak()
+    {
+        if (_leakReported)
+            return false;
+
+        return _leakReported = true;
+    }
+
+    void checkout(Throwable trace)
+    {
+        _checkedOut = true;
+        _checkedOutAt = System.currentTimeMillis();
+        _checkoutTrace = trace;
+        _leakReported = false;
+    }
+
+    void checkin()
+    {
+        _checkedOut = false;
+        _checkoutTrace = null;
+        _lastUsedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * @return True when the connection may have uncommitted work, i.e. statements were created or a savepoint was set
+     *         since the last commit or rollback.
+     */
+    boolean isDirty()
+    {
+        return _dirty && !_autoCommit;
+    }
+
+    /**
+     * Prepares a forward only, read only statement through the statement cache of this connection. The statement
+     * must be handed back with {@link #releaseStatement(PreparedStatement)} instead of being closed.
+     */
+    PreparedStatement prepareCached(String sql) throws SQLException
+    {
+        return prepareCached(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+    }
+
+    PreparedStatement prepareCached(String sql, int resultSetType, int resultSetConcurrency) throws SQLException
+    {
+        Connection conn = dirtyConn();
+
+        if (_stmtCache == null)
+            return conn.prepareStatement(sql, resultSetType, resultSetConcurrency);
+
+        return _stmtCache.checkout(sql, resultSetType, resultSetConcurrency);
+    }
+
+    void releaseStatement(PreparedStatement stmt)
+    {
+        if (_stmtCache != null)
+        {
+            _stmtCache.checkin(stmt);
+            return;
+        }
+
+        try
+        {
+            stmt.close();
+        }
+        catch (Exception e)
+        {
+            // Ignore
+        }
+    }
+
+    /**
+     * @see StatementCache#evict(Collection)
+     */
+    void evictStatements(Collection<String> sqls)
+    {
+        if (_stmtCache != null)
+            _stmtCache.evict(sqls);
+    }
+
+    void closePhysical()
+    {
+        if (_stmtCache != null)
+            _stmtCache.clear();
+
+        try
+        {
+            _conn.close();
+        }
+        catch (Exception e)
+        {
+            // Ignore
+        }
+    }
+
+    private Connection conn() throws SQLException
+    {
+        if (!_checkedOut)
+            throw new SQLException("Connection has been returned to the pool.");
+
+        return _conn;
+    }
+
+    private Connection dirtyConn() throws SQLException
+    {
+        Connection conn = conn();
+        _dirty = true;
+
+        return conn;
+    }
+
+    // Connection methods
+    // ===========================================================================
+
+    public void close() throws SQLException
+    {
+        if (!_checkedOut)
+            return;
+
+        _dataSource.release(this);
+    }
+
+    public boolean isClosed() throws SQLException
+    {
+        return !_checkedOut || _conn.isClosed();
+    }
+
+    public void setAutoCommit(boolean autoCommit) throws SQLException
+    {
+        if (autoCommit == _autoCommit)
+            return;
+
+        conn().setAutoCommit(autoCommit);
+        _autoCommit = autoCommit;
+    }
+
+    public boolean getAutoCommit() throws SQLException
+    {
+        conn();
+
+        return _autoCommit;
+    }
+
+    public void setTransactionIsolation(int level) throws SQLException
+    {
+        if (level == _isolation)
+            return;
+
+        conn().setTransactionIsolation(level);
+        _isolation = level;
+    }
+
+    public int getTransactionIsolation() throws SQLException
+    {
+        conn();
+
+        return _isolation;
+    }
+
+    public void commit() throws SQLException
+    {
+        conn().commit();
+        _dirty = false;
+    }
+
+    public void rollback() throws SQLException
+    {
+        conn().rollback();
+        _dirty = false;
+    }
+
+    public void rollback(Savepoint savepoint) throws SQLException
+    {
+        conn().rollback(savepoint);
+    }
+
+    public Savepoint setSavepoint() throws SQLException
+    {
+        return dirtyConn().setSavepoint();
+    }
+
+    public Savepoint setSavepoint(String name) throws SQLException
+    {
+        return dirtyConn().setSavepoint(name);
+    }
+
+    public void releaseSavepoint(Savepoint savepoint) throws SQLException
+    {
+        conn().releaseSavepoint(savepoint);
+    }
+
+    public Statement createStatement() throws SQLException
+    {
+        return dirtyConn().createStatement();
+    }
+
+    public Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException
+    {
+        return dirtyConn().createStatement(resultSetType, resultSetConcurrency);
+    }
+
+    public Statement createStatement(int resultSetType, int resultSetConcurrency, int resultSetHoldability)
+        throws SQLException
+    {
+        return dirtyConn().createStatement(resultSetType, resultSetConcurrency, resultSetHoldability);
+    }
+
+    public PreparedStatement prepareStatement(String sql) throws SQLException
+    {
+        return dirtyConn().prepareStatement(sql);
+    }
+
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency)
+        throws SQLException
+    {
+        return dirtyConn().prepareStatement(sql, resultSetType, resultSetConcurrency);
+    }
+
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency,
+        int resultSetHoldability) throws SQLException
+    {
+        return dirtyConn().prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+    }
+
+    public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException
+    {
+        return dirtyConn().prepareStatement(sql, autoGeneratedKeys);
+    }
+
+    public PreparedStatement prepareStatement(String sql, int[] columnIndexes) throws SQLException
+    {
+        return dirtyConn().prepareStatement(sql, columnIndexes);
+    }
+
+    public PreparedStatement prepareStatement(String sql, String[] columnNames) throws SQLException
+    {
+        return dirtyConn().prepareStatement(sql, columnNames);
+    }
+
+    public CallableStatement prepareCall(String sql) throws SQLException
+    {
+        return dirtyConn().prepareCall(sql);
+    }
+
+    public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency) throws SQLException
+    {
+        return dirtyConn().prepareCall(sql, resultSetType, resultSetConcurrency);
+    }
+
+    public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency,
+        int resultSetHoldability) throws SQLException
+    {
+        return dirtyConn().prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+    }
+
+    public String nativeSQL(String sql) throws SQLException
+    {
+        return conn().nativeSQL(sql);
+    }
+
+    public DatabaseMetaData getMetaData() throws SQLException
+    {
+        return conn().getMetaData();
+    }
+
+    public void setReadOnly(boolean readOnly) throws SQLException
+    {
+        conn().setReadOnly(readOnly);
+    }
+
+    public boolean isReadOnly() throws SQLException
+    {
+        return conn().isReadOnly();
+    }
+
+    public void setCatalog(String catalog) throws SQLException
+    {
+        conn().setCatalog(catalog);
+    }
+
+    public String getCatalog() throws SQLException
+    {
+        return conn().getCatalog();
+    }
+
+    public SQLWarning getWarnings() throws SQLException
+    {
+        return conn().getWarnings();
+    }
+
+    public void clearWarnings() throws SQLException
+    {
+        conn().clearWarnings();
+    }
+
+    public Map<String, Class<?>> getTypeMap() throws SQLException
+    {
+        return conn().getTypeMap();
+    }
+
+    public void setTypeMap(Map<String, Class<?>> map) throws SQLException
+    {
+        conn().setTypeMap(map);
+    }
+
+    public void setHoldability(int holdability) throws SQLException
+    {
+        conn().setHoldability(holdability);
+    }
+
+    public int getHoldability() throws SQLException
+    {
+        return conn().getHoldability();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Pooled " + _conn;
+    }
+}
@@ -0,0 +1,145 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package jBlocks.server.sql;
+
+import jBlocks.server.AggregateException;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * A bundle of select statements that run concurrently, each on its own read connection, while the calling thread
+ * goes on; a unit of work that needs the rows of several independent selects then waits only as long as the slowest
+ * of them. Each select starts as soon as it is added and its rows are fetched by key, the statement id by default:
+ *
+ * <pre><code>
+ * Prefetch prefetch = sqlClient.prefetch().select(&quot;dept.byId&quot;, deptId).select(&quot;emp.byDept&quot;, deptId);
+ *
+ * Dept dept = prefetch.getOne(&quot;dept.byId&quot;);
+ * List&lt;Employee&gt; employees = prefetch.get(&quot;emp.byDept&quot;);
+ * </code></pre>
+ *
+ * The selects run with {@link SqlClient#selectAsync(String, Object)}, so a select only runs ahead when a connection is
+ * free at once: when its reads would come from the primary's {@link SimpleDataSource} pool and all its connections are
+ * in use, or when the threads that run the selects are all busy, the select is left for {@link #get(String)} to run
+ * on the calling thread's session instead. Units of work
+ * that hold connections of their own while they prefetch therefore never wait on each other for the pool; they only
+ * lose the concurrency. Size the pool above the number of concurrent units of work by as many connections as the
+ * selects should run ahead on.
+ * <p>
+ * The selects that run ahead do not use the calling thread's sessions, so within {@link SqlClient#transact(SqlTask)}
+ * they see only committed data, never the transaction's own changes; prefetch before the task writes.
+ *
+ * @author hkrishna
+ * @see SqlClient#prefetch()
+ */
+public class Prefetch
+{
+    private SqlClient                         _sqlClient;
+    private Map<String, Future<List<Object>>> _selects = new LinkedHashMap<String, Future<List<Object>>>();
+
+    Prefetch(SqlClient sqlClient)
+    {
+        _sqlClient = sqlClient;
+    }
+
+    /**
+     * Starts the provided select statement; its rows are fetched by the statement id.
+     */
+    public Prefetch select(String stmtId, Object paramModel)
+    {
+        return select(stmtId, stmtId, paramModel);
+    }
+
+    /**
+     * Starts the provided select statement; its rows are fetched by the provided key, so the same statement can be
+     * prefetched with different parameters.
+     */
+    public Prefetch select(String key, String stmtId, Object paramModel)
+    {
+        if (_selects.containsKey(key))
+            throw new IllegalArgumentException("Duplicate prefetch key - " + key);
+
+        _selects.put(key, _sqlClient.<Object> selectAsync(stmtId, paramModel));
+
+        return this;
+    }
+
+    /**
+     * Waits for the rows selected for the provided key, or selects them on the calling thread's session when the
+     * select could not run ahead.
+     *
+     * @throws AggregateException
+     *             when the select failed or the wait was interrupted.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> List<T> get(String key)
+    {
+        Future<List<Object>> select = _selects.get(key);
+
+        if (select == null)
+            throw new IllegalArgumentException("Nothing prefetched for key - " + key);
+
+        try
+        {
+            return (List<T>) select.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+
+            throw AggregateException.with(e, "Interrupted while waiting for prefetch " + key);
+        }
+        catch (ExecutionException e)
+        {
+            throw AggregateException.with(e.getCause(), "Unable to prefetch " + key);
+        }
+    }
+
+    /**
+     * @return The first row selected for the provided key or null if no row was selected.
+     */
+    public <T> T getOne(String key)
+    {
+        List<T> list = get(key);
+
+        return list.size() > 0 ? list.get(0) : null;
+    }
+
+    /**
+     * @return True when no select is still running ahead.
+     */
+    public boolean isDone()
+    {
+        for (Future<List<Object>> select : _selects.values())
+            if (!select.isDone())
+                return false;
+
+        return true;
+    }
+
+    /**
+     * Cancels the selects that have not started yet; for the ones that have, the rows are discarded. Call it when
+     * the unit of work fails before it gets to the rows.
+     */
+    public void cancel()
+    {
+        for (Future<List<Object>> select : _selects.values())
+            select.cancel(false);
+    }
+}
@@ -0,0 +1,41 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package jBlocks.server.sql;
+
+/**
+ * How a task run by {@link SqlClient#transact(SqlTask, Propagation)} relates to the transaction already in progress
+ * on the calling thread. Outside a transaction both run the task in a new transaction.
+ *
+ * @author hkrishna
+ */
+public enum Propagation
+{
+    /**
+     * Runs the task within the current transaction, on the same connection, behind a savepoint. When the task fails
+     * only its own work is rolled back and the failure is thrown to the enclosing task, which may carry on; when it
+     * succeeds its work is committed with the enclosing transaction. Nested tasks are not retried on their own as a
+     * transient failure, such as a deadlock, usually aborts the whole transaction; the enclosing transaction is retried
+     * instead. Connections whose driver does not support savepoints fall back to {@link #REQUIRES_NEW}, except in a
+     * {@link SqlScope}, which has a single connection and rejects nested tasks instead.
+     */
+    NESTED,
+
+    /**
+     * Runs the task in a transaction of its own, on another connection, that commits or rolls back independently of
+     * the current transaction. The current transaction keeps its connection while the task runs, so each level of
+     * nesting holds one more pooled connection.
+     */
+    REQUIRES_NEW
+}
@@ -0,0 +1,134 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package jBlocks.server.sql;
+
+import jBlocks.server.AggregateException;
+import jBlocks.server.ReflectUtils;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A getter chain for a {@link PropertyPath} resolved once against a model class. The methods are looked up and made
+ * accessible when the accessor is built, so reading the property afterwards costs one {@link Method#invoke} per path
+ * segment and nothing else.
+ * <p>
+ * A getter is looked up on the declared return type of the getter before it. When that type does not have it, as
+ * when it is <code>Object</code>, an erased type variable, an interface or a supertype, that getter and the ones after
+ * it are looked up on the class of the object they are called on instead, once per class.
+ *
+ * @author hkrishna
+ */
+class PropertyAccessor
+{
+    private final Class<?>                _modelClass;
+    private final String[]                _getterNames;
+    private final Method[]                _getters;
+    private final Map<Class<?>, Method>[] _runtimeGetters;
+    private final JdbcType                _jdbcType;
+
+    @SuppressWarnings("unchecked")
+    PropertyAccessor(Class<?> modelClass, String[] getterNames)
+    {
+        _modelClass = modelClass;
+        _getterNames = getterNames;
+        _getters = new Method[getterNames.length];
+        _runtimeGetters = new Map[getterNames.length];
+
+        Class<?> type = modelClass;
+
+        for (int i = 0; i < getterNames.length; i++)
+        {
+            if (type != null)
+            {
+                try
+                {
+                    _getters[i] = ReflectUtils.findMethod(type, getterNames[i], (Class[]) null);
+                    _getters[i].setAccessible(true);
+                }
+                catch (IllegalArgumentException e)
+                {
+                    // The model class itself must have the first getter
+                    if (i == 0)
+                        throw e;
+                }
+            }
+
+            if (_getters[i] == null)
+            {
+                _runtimeGetters[i] = new ConcurrentHashMap<Class<?>, Method>();
+                type = null;
+            }
+            else
+                type = _getters[i].getReturnType();
+        }
+
+        _jdbcType = type == null ? JdbcType.OBJECT : JdbcType.forClass(type);
+    }
+
+    Class<?> getModelClass()
+    {
+        return _modelClass;
+    }
+
+    /**
+     * @return The JDBC type matching the declared return type of the last getter in the chain, {@link JdbcType#OBJECT}
+     *         when the getter is looked up on the class of the object it is called on.
+     */
+    JdbcType getJdbcType()
+    {
+        return _jdbcType;
+    }
+
+    Object get(Object model)
+    {
+        Object obj = model;
+
+        try
+        {
+            for (int i = 0; obj != null && i < _getters.length; i++)
+                obj = getter(i, obj).invoke(obj, (Object[]) null);
+
+            return obj;
+        }
+        catch (Throwable t)
+        {
+            while (t instanceof InvocationTargetException)
+                t = ((InvocationTargetException) t).getTargetException();
+
+            throw AggregateException.with(t, "Unable to read property from " + obj);
+        }
+    }
+
+    private Method getter(int i, Object obj)
+    {
+        if (_getters[i] != null)
+            return _getters[i];
+
+        Method getter = _runtimeGetters[i].get(obj.getClass());
+
+        if (getter == null)
+        {
+            getter = ReflectUtils.findMethod(obj.getClass(), _getterNames[i], (Class[]) null);
+            getter.setAccessible(true);
+
+            _runtimeGetters[i].put(obj.getClass(), getter);
+        }
+
+        return getter;
+    }
+}
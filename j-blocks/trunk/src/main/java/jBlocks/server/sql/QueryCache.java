@@ -0,0 +1,333 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package jBlocks.server.sql;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the rows selected by the statements that have a <code>.cache</code> property, keyed by the statement and
+ * the values of its parameters. Each statement has its own region, bounded by the statement's
+ * <code>.cache-size</code>, where the least recently used rows are evicted first and rows older than the statement's
+ * <code>.cache</code> time to live are discarded when they are next looked up.
+ * <p>
+ * The rows of a statement are invalidated whenever an update statement of the same {@link SqlClient} touches one of
+ * the tables the statement selects from, and again when the transaction of the update ends. The tables are listed by
+ * the statement's <code>.tables</code> property or parsed from its SQL. Updates made outside the {@link SqlClient},
+ * by other applications for example, are only picked up when the rows expire.
+ * <p>
+ * Cached rows are shared; callers get their own list but the same model objects, which must not be changed.
+ *
+ * @author hkrishna
+ * @see SqlClient#queryCache()
+ */
+public class QueryCache
+{
+    /**
+     * The table name that stands for any table, used when a statement's tables cannot be parsed.
+     */
+    static final String ANY_TABLE = "*";
+
+    private static class Rows
+    {
+        private List<?> _rows;
+        private long    _expiresAt;
+    }
+
+    private class Region
+    {
+        private final SqlStmt           _sqlStmt;
+        private final Map<Object, Rows> _entries;
+        private long                    _generation;
+
+        Region(SqlStmt sqlStmt)
+        {
+            _sqlStmt = sqlStmt;
+            _entries = new LinkedHashMap<Object, Rows>(16, 0.75f, true)
+            {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Object, Rows> eldest)
+                {
+                    if (size() <= _sqlStmt.getCacheSize())
+                        return false;
+
+                    _evictions.incrementAndGet();
+
+                    return true;
+                }
+            };
+        }
+    }
+
+    private final Map<SqlStmt, Region> _regions       = new ConcurrentHashMap<SqlStmt, Region>();
+    private final AtomicLong           _hits          = new AtomicLong();
+    private final AtomicLong           _misses        = new AtomicLong();
+    private final AtomicLong           _evictions     = new AtomicLong();
+    private final AtomicLong           _invalidations = new AtomicLong();
+
+    /**
+     * @return The key of the rows selected by the provided statement with the provided parameter.
+     */
+    static Object key(SqlStmt sqlStmt, Object model)
+    {
+        List<SqlParam> params = sqlStmt.getParams();
+        List<Object> key = new ArrayList<Object>(params == null ? 1 : params.size() + 1);
+
+        if (sqlStmt.isDynamic())
+            key.add(sqlStmt.getStmt(model));
+
+        if (params != null)
+            for (SqlParam param : params)
+                key.add(param.getValue(model));
+
+        return key;
+    }
+
+    private Region region(SqlStmt sqlStmt)
+    {
+        Region region = _regions.get(sqlStmt);
+
+        if (region == null)
+        {
+            synchronized (_regions)
+            {
+                region = _regions.get(sqlStmt);
+
+                if (region == null)
+                    _regions.put(sqlStmt, region = new Region(sqlStmt));
+            }
+        }
+
+        return region;
+    }
+
+    /**
+     * @return A copy of the cached rows or null when the rows are not cached or have expired.
+     */
+    @SuppressWarnings("unchecked")
+    <T> List<T> get(SqlStmt sqlStmt, Object key)
+    {
+        Region region = region(sqlStmt);
+        Rows entry;
+
+        synchronized (region)
+        {
+            entry = region._entries.get(key);
+
+            if (entry != null && entry._expiresAt <= System.currentTimeMillis())
+            {
+                region._entries.remove(key);
+                _evictions.incrementAndGet();
+
+                entry = null;
+            }
+        }
+
+        if (entry == null)
+        {
+            _misses.incrementAndGet();
+            return null;
+        }
+
+        _hits.incrementAndGet();
+
+        return new ArrayList<T>((List<T>) entry._rows);
+    }
+
+    /**
+     * @return The generation of the provided statement's region, to be passed to
+     *         {@link #put(SqlStmt, Object, List, long)} after the rows are selected.
+     */
+    long generation(SqlStmt sqlStmt)
+    {
+        Region region = region(sqlStmt);
+
+        synchronized (region)
+        {
+            return region._generation;
+        }
+    }
+
+    /**
+     * Caches the provided rows unless the statement's region was invalidated since the provided generation, in which
+     * case the rows may already be stale.
+     */
+    void put(SqlStmt sqlStmt, Object key, List<?> rows, long generation)
+    {
+        Region region = _regions.get(sqlStmt);
+
+        if (region == null)
+            return;
+
+        Rows entry = new Rows();
+        entry._rows = new ArrayList<Object>(rows);
+        entry._expiresAt = System.currentTimeMillis() + sqlStmt.getCacheTtl();
+
+        synchronized (region)
+        {
+            if (region._generation == generation)
+                region._entries.put(key, entry);
+        }
+    }
+
+    /**
+     * Discards the rows of the statements that select from any of the provided tables.
+     */
+    void invalidate(Collection<String> tables)
+    {
+        if (tables == null || tables.isEmpty() || _regions.isEmpty())
+            return;
+
+        boolean anyTable = tables.contains(ANY_TABLE);
+
+        for (Region region : _regions.values())
+        {
+            Set<String> regionTables = region._sqlStmt.getTables();
+
+            if (!anyTable && !regionTables.contains(ANY_TABLE) && !intersects(regionTables, tables))
+                continue;
+
+            synchronized (region)
+            {
+                region._generation++;
+
+                if (region._entries.isEmpty())
+                    continue;
+
+                _invalidations.addAndGet(region._entries.size());
+                region._entries.clear();
+            }
+        }
+    }
+
+    /**
+     * Discards the rows of the provided statement, which is no longer used, along with its region; rows it selected
+     * in the meantime are not cached.
+     */
+    void remove(SqlStmt sqlStmt)
+    {
+        Region region = _regions.remove(sqlStmt);
+
+        if (region == null)
+            return;
+
+        synchronized (region)
+        {
+            region._generation++;
+
+            _invalidations.addAndGet(region._entries.size());
+            region._entries.clear();
+        }
+    }
+
+    private boolean intersects(Set<String> set, Collection<String> values)
+    {
+        for (String value : values)
+            if (set.contains(value))
+                return true;
+
+        return false;
+    }
+
+    /**
+     * Discards all cached rows.
+     */
+    public void clear()
+    {
+        for (Region region : _regions.values())
+        {
+            synchronized (region)
+            {
+                region._generation++;
+                region._entries.clear();
+            }
+        }
+    }
+
+    /**
+     * @return The number of cached row lists.
+     */
+    public int size()
+    {
+        int size = 0;
+
+        for (Region region : _regions.values())
+        {
+            synchronized (region)
+            {
+                size += region._entries.size();
+            }
+        }
+
+        return size;
+    }
+
+    public long getHits()
+    {
+        return _hits.get();
+    }
+
+    public long getMisses()
+    {
+        return _misses.get();
+    }
+
+    public double getHitRatio()
+    {
+        long hits = _hits.get(), total = hits + _misses.get();
+
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * @return The number of row lists discarded because their region was full or because they expired.
+     */
+    public long getEvictions()
+    {
+        return _evictions.get();
+    }
+
+    /**
+     * @return The number of row lists discarded because a table they were selected from was updated.
+     */
+    public long getInvalidations()
+    {
+        return _invalidations.get();
+    }
+
+    public void resetStats()
+    {
+        _hits.set(0);
+        _misses.set(0);
+        _evictions.set(0);
+        _invalidations.set(0);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Size: " + size() + ", Hits: " + getHits() + ", Misses: " + getMisses() + ", Hit ratio: "
+            + Math.round(getHitRatio() * 100) + "%, Evictions: " + getEvictions() + ", Invalidations: "
+            + getInvalidations();
+    }
+}
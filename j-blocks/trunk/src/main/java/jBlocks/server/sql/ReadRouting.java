@@ -0,0 +1,35 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package jBlocks.server.sql;
+
+/**
+ * How {@link DataManager} picks the replica that serves a read session.
+ *
+ * @author hkrishna
+ * @see DataManager#readRouting(ReadRouting)
+ */
+public enum ReadRouting
+{
+    /**
+     * Each read session goes to the next replica in turn.
+     */
+    ROUND_ROBIN,
+
+    /**
+     * Each read session goes to the replica with the fewest connections in use. Only replicas that are
+     * {@link SimpleDataSource}s report their connections in use; the others are taken in turn.
+     */
+    LEAST_ACTIVE
+}
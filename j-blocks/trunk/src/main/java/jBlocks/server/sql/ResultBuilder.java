@@ -14,232 +14,116 @@
 
 package jBlocks.server.sql;
 
-import jBlocks.server.AggregateException;
 import jBlocks.server.ClassUtils;
-import jBlocks.server.ReflectUtils;
 
-import java.lang.reflect.Method;
 import java.sql.ResultSet;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 
 /**
+ * Builds the result from the ResultSet object. The builder is identity-aware when the model is a
+ * {@link jBlocks.shared.domain.BaseDomainObject} whose <code>Id</code> is selected, meaning it will not create
+ * duplicate objects for the same entity; rows of a one to many join are merged into one model per id.
+ * 
  * @author hkrishna
+ * @see RowMapper
  */
 class ResultBuilder<T> implements ResultHandler<T>
 {
-    // TODO : This class builds the result from the ResultSet object. This
-    // builder identity-aware, meaning it will not
-    // create duplicate objects for the same entity. This is based on the
-    // assumption that the identity column name is
-    // "ID".
+    private SqlStmt        _sqlStmt;
+    private RowCallback<T> _rowCallback;
+    private RowMapper<T>   _rowMapper;
+    private SqlExecution   _execution;
 
-    private final SimpleDateFormat[] DATE_FORMATS = {
-            new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.sssss"), new SimpleDateFormat("yyyy-MM-dd") };
-
-    private SqlStmt                  _sqlStmt;
-    private RowCallback<T>           _rowCallback;
-    private Class<?>                 _modelClass;
-    private boolean                  _modelIsMap, _modelIsList;
-
-    @SuppressWarnings("unchecked")
     ResultBuilder(SqlStmt sqlStmt, RowCallback<T> callback)
     {
         _sqlStmt = sqlStmt;
         _rowCallback = callback;
-
-        _modelClass = ClassUtils.loadClass(_sqlStmt.getSqlMap().getClassName());
-
-        _modelIsMap = Map.class.isAssignableFrom(_modelClass);
-
-        if (!_modelIsMap)
-            _modelIsList = List.class.isAssignableFrom(_modelClass);
     }
 
-    @SuppressWarnings("unchecked")
-    public List<T> handle(ResultSet result) throws Exception
+    /**
+     * Times the fetching and the mapping of the rows as part of the provided execution.
+     */
+    void setExecution(SqlExecution execution)
     {
-        List<T> modelList = new ArrayList<T>();
-
-        if (_modelIsList)
-            modelList.add(buildListHeader());
-
-        while (result.next())
-            modelList.add(getModel(result));
-
-        return modelList;
+        _execution = execution;
     }
 
     @SuppressWarnings("unchecked")
-    private T buildListHeader()
+    public List<T> handle(ResultSet result) throws Exception
     {
-        T header = (T) ClassUtils.newInstance(_modelClass);
-
-        for (SqlField field : _sqlStmt.getFields())
-            ((List<String>) header).add(field.getPath());
+        if (_sqlStmt.isColumnar())
+            return Collections.singletonList((T) buildColumnar(result));
 
-        return header;
-    }
-
-    private T getModel(ResultSet result) throws Exception
-    {
-        return newModel(result);
-    }
+        List<T> modelList = new ArrayList<T>();
 
-    @SuppressWarnings("unchecked")
-    private T newModel(ResultSet result) throws Exception
-    {
-        T obj = (T) ClassUtils.newInstance(_modelClass);
+        _rowMapper = _sqlStmt.getRowMapper(result);
 
-        List<SqlField> fields = _sqlStmt.getFields();
+        if (_rowMapper.isListModel())
+            modelList.add(ResultBuilder.<T> buildListHeader(_sqlStmt, _rowMapper));
 
-        for (int i = 0; i < fields.size(); i++)
+        if (_rowMapper.isIdentityAware())
         {
-            SqlField field = fields.get(i);
-            String value = result.getString(i + 1);
-
-            if (field.requestsCallback())
-                ReflectUtils.invokeMethod(_rowCallback, field.callbackName(), obj, value);
-            else if (_modelIsMap)
-                ((Map<String, String>) obj).put(field.getPath(), value);
-            else if (_modelIsList)
-                ((List<String>) obj).add(value);
-            else
-                setComplexPropertyValue(obj, field.getProperties(), value);
-        }
+            RowMapper.Identities identities = new RowMapper.Identities();
 
-        return obj;
-    }
+            while (next(result))
+            {
+                T model = _rowMapper.map(result, _rowCallback, identities);
 
-    @SuppressWarnings("unchecked")
-    private void setComplexPropertyValue(final Object model, String[] props, String val)
-    {
-        if (model instanceof Map)
-        {
-            ((Map<String, String>) model).put(props[0], val);
-            return;
-        }
+                if (model != null)
+                    modelList.add(model);
+            }
 
-        Object obj = model;
+            return modelList;
+        }
 
-        for (int i = 0; i < props.length - 1; i++)
-            obj = getOrCreateRelation(obj, props[i]);
+        while (next(result))
+            modelList.add(getModel(result));
 
-        setPropertyValue(obj, props[props.length - 1], val);
+        return modelList;
     }
 
-    private Object getOrCreateRelation(Object obj, String methodName)
+    /**
+     * Moves to the next row; when the rows are timed, the move counts as fetching and the time since the previous move
+     * as mapping.
+     */
+    private boolean next(ResultSet result) throws SQLException
     {
-        try
-        {
-            Object relation = ReflectUtils.invokeMethod(obj, methodName, (Object[]) null);
+        if (_execution == null)
+            return result.next();
 
-            if (relation == null)
-            {
-                Method method = ReflectUtils.findMethod(obj.getClass(), methodName, (Class[]) null);
-                Class<?> relationType = method.getReturnType();
-                relation = relationType.newInstance();
-                ReflectUtils.invokeMethod(obj, methodName.replaceFirst("get", "set"), relation);
-            }
+        _execution.mapped();
+        boolean next = result.next();
+        _execution.fetched();
 
-            return relation;
-        }
-        catch (Exception e)
-        {
-            throw AggregateException.with(e, "unable-to-get-relation-object");
-        }
+        return next;
     }
 
-    private void setPropertyValue(Object obj, String methodName, String val)
+    private ColumnarResult buildColumnar(ResultSet result) throws SQLException
     {
-        Object arg = toArgType(obj.getClass(), methodName, val);
+        ColumnarResult columns = new ColumnarResult(_sqlStmt, result.getMetaData());
 
-        ReflectUtils.invokeMethod(obj, methodName, arg);
-    }
-
-    private Object toArgType(Class<?> clazz, String methodName, String val)
-    {
-        if (val == null)
-            return null;
-
-        try
-        {
-            Method[] methods = clazz.getDeclaredMethods();
-
-            for (int i = 0; i < methods.length; i++)
-            {
-                if (methodName.equals(methods[i].getName()))
-                {
-                    Class<?> argType = methods[i].getParameterTypes()[0];
-
-                    if (String.class == argType)
-                        return val;
-
-                    if (argType == Date.class)
-                        return parseDate(val);
-
-                    if (argType == boolean.class || argType == Boolean.class)
-                        return parseBoolean(val);
-
-                    if (argType == int.class)
-                        argType = Integer.class;
-                    else if (argType == float.class)
-                        argType = Float.class;
-                    else if (argType == long.class)
-                        argType = Long.class;
-                    else if (argType == double.class)
-                        argType = Double.class;
-
-                    try
-                    {
-                        return argType.getConstructor(String.class).newInstance(val);
-                    }
-                    catch (NoSuchMethodException e)
-                    {
-                        // Continue to find overloaded methods
-                    }
-                }
-            }
+        while (next(result))
+            columns.addRow(result);
 
-            return clazz.getSuperclass() == null ? null : toArgType(clazz.getSuperclass(),
-                    methodName, val);
-        }
-        catch (Exception e)
-        {
-            throw AggregateException.with(e, "Unable to convert value: " + val
-                    + " to argument type for " + clazz + "." + methodName);
-        }
+        return columns.trim();
     }
 
-    private Object parseBoolean(String val)
+    @SuppressWarnings("unchecked")
+    static <T> T buildListHeader(SqlStmt sqlStmt, RowMapper<T> rowMapper)
     {
-        if ("y".equalsIgnoreCase(val) || "yes".equalsIgnoreCase(val)
-                || "true".equalsIgnoreCase(val))
-            return Boolean.TRUE;
+        T header = ClassUtils.newInstance(rowMapper.getModelClass());
 
-        return Boolean.FALSE;
+        for (SqlField field : sqlStmt.getFields())
+            ((List<String>) header).add(field.getPath());
+
+        return header;
     }
 
-    private Object parseDate(String val) throws ParseException
+    private T getModel(ResultSet result) throws Exception
     {
-        ParseException ex = null;
-
-        for (int i = 0; i < DATE_FORMATS.length; i++)
-        {
-            try
-            {
-                return DATE_FORMATS[i].parse(val);
-            }
-            catch (ParseException e)
-            {
-                ex = e;
-            }
-        }
-
-        throw ex;
+        return _rowMapper.map(result, _rowCallback);
     }
 }
@@ -0,0 +1,188 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package jBlocks.server.sql;
+
+import java.sql.SQLException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which failed transactions {@link SqlClient#transact(SqlTask)} retries and how long it waits before each
+ * retry. By default a transaction is retried, up to 3 attempts in all, when it fails with a serialization failure
+ * (SQLState <code>40001</code>), a PostgreSQL deadlock (<code>40P01</code>) or a connection exception (class
+ * <code>08</code>), and when its connection breaks. Other failures are not retried.
+ * <p>
+ * The wait doubles with every attempt, from the initial backoff up to the maximum backoff, and a random half of it is
+ * jittered away so that transactions that failed together, in a deadlock for example, do not retry together.
+ * Subclasses can classify failures differently by overriding {@link #isRetryable(Throwable)}.
+ *
+ * @author hkrishna
+ * @see SqlClient#setRetryPolicy(RetryPolicy)
+ */
+public class RetryPolicy
+{
+    private final AtomicLong _retries             = new AtomicLong();
+    private final AtomicLong _successesAfterRetry = new AtomicLong();
+    private final AtomicLong _giveUps             = new AtomicLong();
+    private final Random     _random              = new Random();
+
+    private int              _maxAttempts         = 3;
+    private long             _initialBackoff      = 50;
+    private long             _maxBackoff          = 1000;
+    private String[]         _sqlStates           = { "40001", "40P01", "08" };
+
+    /**
+     * @param attempts
+     *            The maximum number of times a transaction is attempted, including the first; 1 turns retrying off.
+     */
+    public RetryPolicy maxAttempts(int attempts)
+    {
+        if (attempts < 1)
+            throw new IllegalArgumentException("A transaction must be attempted at least once.");
+
+        _maxAttempts = attempts;
+
+        return this;
+    }
+
+    /**
+     * @param initialMillis
+     *            The wait before the first retry; defaults to 50 milliseconds.
+     * @param maxMillis
+     *            The longest wait before any retry; defaults to 1 second.
+     */
+    public RetryPolicy backoff(long initialMillis, long maxMillis)
+    {
+        _initialBackoff = initialMillis;
+        _maxBackoff = maxMillis;
+
+        return this;
+    }
+
+    /**
+     * @param sqlStates
+     *            The SQLStates, or SQLState prefixes such as the class <code>08</code>, of the failures to retry.
+     */
+    public RetryPolicy retryOn(String... sqlStates)
+    {
+        _sqlStates = sqlStates;
+
+        return this;
+    }
+
+    public int getMaxAttempts()
+    {
+        return _maxAttempts;
+    }
+
+    /**
+     * @return True when the provided failure, or any of its causes, is a {@link SQLException} whose SQLState is one of
+     *         the retried states.
+     */
+    public boolean isRetryable(Throwable failure)
+    {
+        for (Throwable t = failure; t != null; t = t.getCause())
+        {
+            if (!(t instanceof SQLException))
+                continue;
+
+            for (SQLException e = (SQLException) t; e != null; e = e.getNextException())
+            {
+                String state = e.getSQLState();
+
+                if (state == null)
+                    continue;
+
+                for (String retryState : _sqlStates)
+                    if (state.startsWith(retryState))
+                        return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return How long to wait before the provided attempt, 2 being the first retry.
+     */
+    public long backoffMillis(int attempt)
+    {
+        long backoff = _initialBackoff << Math.min(attempt - 2, 30);
+
+        if (backoff <= 0 || backoff > _maxBackoff)
+            backoff = _maxBackoff;
+
+        long half = backoff / 2;
+
+        synchronized (_random)
+        {
+            return half + (long) (_random.nextDouble() * (backoff - half));
+        }
+    }
+
+    void retrying()
+    {
+        _retries.incrementAndGet();
+    }
+
+    void succeededAfterRetry()
+    {
+        _successesAfterRetry.incrementAndGet();
+    }
+
+    void gaveUp()
+    {
+        _giveUps.incrementAndGet();
+    }
+
+    /**
+     * @return The number of times a failed transaction was attempted again.
+     */
+    public long getRetries()
+    {
+        return _retries.get();
+    }
+
+    /**
+     * @return The number of transactions that committed after one or more retries.
+     */
+    public long getSuccessesAfterRetry()
+    {
+        return _successesAfterRetry.get();
+    }
+
+    /**
+     * @return The number of transactions that failed with a retryable failure on their last attempt, or that were
+     *         retried and then failed with a failure that is not retryable.
+     */
+    public long getGiveUps()
+    {
+        return _giveUps.get();
+    }
+
+    public void resetStats()
+    {
+        _retries.set(0);
+        _successesAfterRetry.set(0);
+        _giveUps.set(0);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Retries: " + getRetries() + ", Successes after retry: " + getSuccessesAfterRetry() + ", Give ups: "
+            + getGiveUps();
+    }
+}
@@ -0,0 +1,594 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package jBlocks.server.sql;
+
+import jBlocks.server.AggregateException;
+import jBlocks.server.ClassUtils;
+import jBlocks.server.ReflectUtils;
+import jBlocks.shared.domain.BaseDomainObject;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps a single row of a {@link ResultSet} to a model object. A mapper is compiled once per statement, on its first
+ * execution, and is then shared by all executions of that statement. Compiling resolves, for every selected field,
+ * the setter to call, the native JDBC getter to read the column with, picked from the setter's type and the column's
+ * SQL type, and the constructors of the <code>$</code> separated relations leading up to the setter, so mapping a row
+ * involves no method lookups and no string conversions.
+ * <p>
+ * A relation whose getter returns a collection, <code>LineItems</code> in <code>LineItems$Qty</code> for example,
+ * gets a new element, of the collection's declared element type, for every row. When the model, or the element, is a
+ * {@link BaseDomainObject} and its <code>Id</code> is selected, rows are mapped with {@link Identities} so that rows
+ * sharing an id map to the same object: a one to many join builds one parent per id, with the children of all its rows
+ * in its collection. Rows whose element id is null, from an outer join with no match, add no element. A
+ * {@link SqlCursor} only merges consecutive rows, so statements that are iterated must be ordered by the model id.
+ *
+ * @author hkrishna
+ */
+class RowMapper<T>
+{
+    /**
+     * A <code>$</code> separated relation, <code>Dept</code> in <code>Dept$Name</code> for example, reached from its
+     * parent with a getter and created, when the getter returns null, with its no args constructor.
+     */
+    private static class Relation
+    {
+        private int            _index;
+        private int            _parent;
+        private Method         _getter;
+        private Method         _setter;
+        private Constructor<?> _ctor;
+        private Constructor<?> _elementCtor;
+        private int            _idColumn = -1;
+    }
+
+    private static class Column
+    {
+        private SqlField       _field;
+        private int            _relation = -1;
+        private Method         _setter;
+        private JdbcType       _type;
+        private Constructor<?> _converter;
+        private boolean        _parse;
+        private boolean        _primitive;
+        private boolean        _inCollection;
+    }
+
+    /**
+     * The objects mapped so far from the rows of one result, by id: the models and, for every object that has a
+     * collection relation, the elements of each of its collections.
+     */
+    static class Identities
+    {
+        private Map<Object, Object>                    _models   = new HashMap<Object, Object>();
+        private List<Map<Object, Map<Object, Object>>> _elements = new ArrayList<Map<Object, Map<Object, Object>>>();
+
+        private Map<Object, Object> elements(Object parent, int relation)
+        {
+            while (_elements.size() <= relation)
+                _elements.add(new IdentityHashMap<Object, Map<Object, Object>>());
+
+            Map<Object, Object> elements = _elements.get(relation).get(parent);
+
+            if (elements == null)
+                _elements.get(relation).put(parent, elements = new HashMap<Object, Object>());
+
+            return elements;
+        }
+    }
+
+    /**
+     * Stands for a relation that is not mapped for the current row.
+     */
+    private static final Object NO_RELATION = new Object();
+
+    @SuppressWarnings("unchecked")
+    static <T> RowMapper<T> compile(SqlStmt sqlStmt, ResultSetMetaData metaData)
+    {
+        try
+        {
+            return new RowMapper<T>((Class<T>) ClassUtils.loadClass(sqlStmt.getSqlMap().getClassName()), sqlStmt
+                .getFields(), metaData);
+        }
+        catch (Exception e)
+        {
+            throw AggregateException.with(e, "Unable to compile row mapper for " + sqlStmt);
+        }
+    }
+
+    private Class<T>                _modelClass;
+    private Constructor<T>          _ctor;
+    private boolean                 _modelIsMap, _modelIsList;
+    private Relation[]              _relations;
+    private Column[]                _columns;
+    private int                     _idColumn  = -1;
+    private Map<Class<?>, Method[]> _callbacks = new ConcurrentHashMap<Class<?>, Method[]>();
+
+    private RowMapper(Class<T> modelClass, List<SqlField> fields, ResultSetMetaData metaData) throws Exception
+    {
+        _modelClass = modelClass;
+        _ctor = modelClass.getDeclaredConstructor((Class[]) null);
+        _ctor.setAccessible(true);
+
+        _modelIsMap = Map.class.isAssignableFrom(modelClass);
+
+        if (!_modelIsMap)
+            _modelIsList = List.class.isAssignableFrom(modelClass);
+
+        Map<String, Relation> relations = new LinkedHashMap<String, Relation>();
+
+        _columns = new Column[fields.size()];
+
+        int columnCount = metaData == null ? 0 : metaData.getColumnCount();
+
+        for (int i = 0; i < _columns.length; i++)
+        {
+            Column column = _columns[i] = new Column();
+            column._field = fields.get(i);
+
+            if (column._field.requestsCallback() || _modelIsMap || _modelIsList)
+                continue;
+
+            compileColumn(column, relations);
+
+            if (i < columnCount)
+                refineColumn(column, metaData.getColumnType(i + 1));
+        }
+
+        _relations = relations.values().toArray(new Relation[relations.size()]);
+
+        if (BaseDomainObject.class.isAssignableFrom(modelClass))
+            _idColumn = idColumn(-1);
+
+        for (Relation relation : _relations)
+            if (relation._elementCtor != null
+                && BaseDomainObject.class.isAssignableFrom(relation._elementCtor.getDeclaringClass()))
+                relation._idColumn = idColumn(relation._index);
+    }
+
+    /**
+     * @return The index of the column mapped to the <code>Id</code> of the provided relation, or of the model when
+     *         the relation is -1; -1 when the id is not selected.
+     */
+    private int idColumn(int relation)
+    {
+        for (int i = 0; i < _columns.length; i++)
+        {
+            Column column = _columns[i];
+
+            if (column._setter != null && column._relation == relation && column._setter.getName().equals("setId"))
+                return i;
+        }
+
+        return -1;
+    }
+
+    private void compileColumn(Column column, Map<String, Relation> relations) throws Exception
+    {
+        String[] props = column._field.getProperties();
+        Class<?> type = _modelClass;
+        StringBuilder path = new StringBuilder();
+
+        for (int i = 0; i < props.length - 1; i++)
+        {
+            path.append(props[i]).append('$');
+
+            Relation relation = relations.get(path.toString());
+
+            if (relation == null)
+            {
+                relation = new Relation();
+                relation._index = relations.size();
+                relation._parent = column._relation;
+                relation._getter = accessible(ReflectUtils.findMethod(type, props[i], (Class[]) null));
+
+                Class<?> relationType = relation._getter.getReturnType();
+
+                if (Collection.class.isAssignableFrom(relationType))
+                    compileCollection(relation, type, props[i]);
+                else
+                {
+                    relation._setter = accessible(ReflectUtils.findMethod(type, props[i].replaceFirst("get", "set"),
+                        relationType));
+                    relation._ctor = accessible(relationType.getDeclaredConstructor((Class[]) null));
+                }
+
+                relations.put(path.toString(), relation);
+            }
+
+            column._relation = relation._index;
+            column._inCollection |= relation._elementCtor != null;
+            type = relation._elementCtor == null ? relation._getter.getReturnType() : relation._elementCtor
+                .getDeclaringClass();
+        }
+
+        column._setter = accessible(findSetter(type, props[props.length - 1]));
+
+        Class<?> argType = column._setter.getParameterTypes()[0];
+
+        column._primitive = argType.isPrimitive();
+        column._type = JdbcType.forClass(argType);
+
+        if (column._type == JdbcType.OBJECT && !argType.isAssignableFrom(String.class))
+        {
+            try
+            {
+                column._converter = argType.getConstructor(String.class);
+            }
+            catch (NoSuchMethodException e)
+            {
+                // Let the driver convert the column value
+            }
+        }
+        else if (column._type == JdbcType.OBJECT)
+            column._type = JdbcType.STRING;
+    }
+
+    /**
+     * Refines the getter picked from the setter's type with the column's SQL type, as reported by the driver on the
+     * statement's first execution. Setters that take a general type, {@link Object} or {@link Number} for example, get
+     * the native getter of the SQL type instead of strings or driver objects, and character columns mapped to date
+     * setters are parsed here instead of by the driver.
+     */
+    private void refineColumn(Column column, int sqlType)
+    {
+        JdbcType sqlJdbcType = JdbcType.forSqlType(sqlType);
+
+        if (column._type.isTemporal())
+        {
+            column._parse = sqlJdbcType == JdbcType.STRING;
+            return;
+        }
+
+        if (sqlJdbcType == JdbcType.OBJECT || sqlJdbcType == column._type || column._primitive)
+            return;
+
+        Class<?> argType = column._setter.getParameterTypes()[0];
+
+        if (JdbcType.forClass(argType) == JdbcType.OBJECT && argType.isAssignableFrom(sqlJdbcType.getJavaClass()))
+        {
+            column._type = sqlJdbcType;
+            column._converter = null;
+        }
+    }
+
+    /**
+     * Resolves the element type of a collection relation from the getter's generic return type and the collection
+     * to create when the getter returns null; the setter is optional for collections the model creates itself.
+     */
+    private void compileCollection(Relation relation, Class<?> type, String getter) throws Exception
+    {
+        Type returnType = relation._getter.getGenericReturnType();
+
+        if (!(returnType instanceof ParameterizedType)
+            || !(((ParameterizedType) returnType).getActualTypeArguments()[0] instanceof Class))
+            throw new IllegalArgumentException("Collection relation must declare its element type: "
+                + relation._getter);
+
+        Class<?> elementType = (Class<?>) ((ParameterizedType) returnType).getActualTypeArguments()[0];
+        relation._elementCtor = accessible(elementType.getDeclaredConstructor((Class[]) null));
+
+        Class<?> collectionType = relation._getter.getReturnType();
+
+        if (collectionType.isInterface())
+            collectionType = Set.class.isAssignableFrom(collectionType) ? LinkedHashSet.class : ArrayList.class;
+
+        relation._ctor = accessible(collectionType.getDeclaredConstructor((Class[]) null));
+
+        try
+        {
+            relation._setter = accessible(ReflectUtils.findMethod(type, getter.replaceFirst("get", "set"),
+                relation._getter.getReturnType()));
+        }
+        catch (Exception e)
+        {
+            // The model creates the collection
+        }
+    }
+
+    /**
+     * Finds the single argument setter, preferring overloads whose argument type can be read natively.
+     */
+    private Method findSetter(Class<?> clazz, String name)
+    {
+        Method candidate = null;
+
+        for (Class<?> c = clazz; c != null; c = c.getSuperclass())
+        {
+            for (Method method : c.getDeclaredMethods())
+            {
+                if (!method.getName().equals(name) || method.getParameterTypes().length != 1)
+                    continue;
+
+                if (JdbcType.forClass(method.getParameterTypes()[0]) != JdbcType.OBJECT)
+                    return method;
+
+                if (candidate == null)
+                    candidate = method;
+            }
+        }
+
+        if (candidate == null)
+            throw new IllegalArgumentException("Unable to find method " + clazz + "." + name + "(?)");
+
+        return candidate;
+    }
+
+    private Method accessible(Method method)
+    {
+        method.setAccessible(true);
+
+        return method;
+    }
+
+    private <C> Constructor<C> accessible(Constructor<C> ctor)
+    {
+        ctor.setAccessible(true);
+
+        return ctor;
+    }
+
+    Class<T> getModelClass()
+    {
+        return _modelClass;
+    }
+
+    boolean isListModel()
+    {
+        return _modelIsList;
+    }
+
+    /**
+     * @return True when rows sharing the model id should be mapped to the same model with
+     *         {@link #map(ResultSet, RowCallback, Identities)}.
+     */
+    boolean isIdentityAware()
+    {
+        return _idColumn >= 0;
+    }
+
+    /**
+     * @return The model id of the current row, or null when it is null or the mapper is not identity aware.
+     */
+    Object id(ResultSet rs) throws Exception
+    {
+        return _idColumn < 0 ? null : read(rs, _idColumn, null);
+    }
+
+    /**
+     * @return True when rows sharing the model id are merged into one model whose collection relations hold the
+     *         elements of all of them, so the rows do not stand for models one to one.
+     */
+    boolean mergesRows()
+    {
+        if (_idColumn < 0)
+            return false;
+
+        for (Relation relation : _relations)
+            if (relation._elementCtor != null)
+                return true;
+
+        return false;
+    }
+
+    T map(ResultSet rs, RowCallback<T> callback) throws Exception
+    {
+        return map(rs, callback, null);
+    }
+
+    /**
+     * Maps the current row. With identities, a row whose model id was mapped before is merged into that model, only
+     * adding the elements of its collection relations, and null is returned.
+     */
+    @SuppressWarnings("unchecked")
+    T map(ResultSet rs, RowCallback<T> callback, Identities identities) throws Exception
+    {
+        Object[] values = identities == null ? null : new Object[_columns.length];
+        T obj = null;
+        boolean known = false;
+
+        if (identities != null && _idColumn >= 0)
+        {
+            Object id = read(rs, _idColumn, values);
+
+            if (id != null)
+                known = (obj = (T) identities._models.get(id)) != null;
+
+            if (obj == null)
+            {
+                obj = _ctor.newInstance((Object[]) null);
+
+                if (id != null)
+                    identities._models.put(id, obj);
+            }
+        }
+        else
+            obj = _ctor.newInstance((Object[]) null);
+
+        Object[] relations = _relations.length == 0 ? null : new Object[_relations.length];
+
+        for (int i = 0; i < _columns.length; i++)
+        {
+            Column column = _columns[i];
+
+            if (column._field.requestsCallback())
+                invoke(callbackMethod(callback, i), callback, obj, rs.getString(i + 1));
+            else if (_modelIsMap)
+                ((Map<String, String>) obj).put(column._field.getPath(), rs.getString(i + 1));
+            else if (_modelIsList)
+                ((List<String>) obj).add(rs.getString(i + 1));
+            else if (!known || column._inCollection)
+            {
+                Object target = column._relation < 0 ? obj : relation(obj, relations, column._relation, rs, values,
+                    identities);
+
+                if (target != NO_RELATION)
+                    setValue(column, target, rs, i, values);
+            }
+        }
+
+        return known ? null : obj;
+    }
+
+    private Object relation(Object obj, Object[] relations, int index, ResultSet rs, Object[] values,
+        Identities identities) throws Exception
+    {
+        Object relation = relations[index];
+
+        if (relation != null)
+            return relation;
+
+        Relation rel = _relations[index];
+        Object parent = rel._parent < 0 ? obj : relation(obj, relations, rel._parent, rs, values, identities);
+
+        if (parent == NO_RELATION)
+            return relations[index] = NO_RELATION;
+
+        if (rel._elementCtor != null)
+            return relations[index] = element(parent, rel, rs, values, identities);
+
+        relation = invoke(rel._getter, parent);
+
+        if (relation == null)
+            invoke(rel._setter, parent, relation = rel._ctor.newInstance((Object[]) null));
+
+        return relations[index] = relation;
+    }
+
+    /**
+     * @return The element of the provided collection relation for the current row; an existing element with the same
+     *         id or a new element added to the collection.
+     */
+    @SuppressWarnings("unchecked")
+    private Object element(Object parent, Relation rel, ResultSet rs, Object[] values, Identities identities)
+        throws Exception
+    {
+        Object id = rel._idColumn < 0 ? null : read(rs, rel._idColumn, values);
+
+        if (rel._idColumn >= 0 && id == null)
+            return NO_RELATION;
+
+        Map<Object, Object> elements = identities == null || id == null ? null : identities.elements(parent,
+            rel._index);
+        Object element = elements == null ? null : elements.get(id);
+
+        if (element != null)
+            return element;
+
+        Collection<Object> collection = (Collection<Object>) invoke(rel._getter, parent);
+
+        if (collection == null)
+        {
+            if (rel._setter == null)
+                throw new IllegalStateException(rel._getter + " returned null and there is no setter to set it.");
+
+            invoke(rel._setter, parent, collection = (Collection<Object>) rel._ctor.newInstance((Object[]) null));
+        }
+
+        collection.add(element = rel._elementCtor.newInstance((Object[]) null));
+
+        if (elements != null)
+            elements.put(id, element);
+
+        return element;
+    }
+
+    /**
+     * Reads the provided column, only once per row when the values read are kept.
+     */
+    private Object read(ResultSet rs, int col, Object[] values) throws Exception
+    {
+        if (values != null && values[col] != null)
+            return values[col];
+
+        Column column = _columns[col];
+        Object val;
+
+        if (column._converter != null)
+            val = convert(column, rs.getString(col + 1));
+        else if (column._parse)
+            val = column._type.parse(rs.getString(col + 1));
+        else
+            val = column._type.getValue(rs, col + 1);
+
+        if (values != null)
+            values[col] = val;
+
+        return val;
+    }
+
+    private void setValue(Column column, Object target, ResultSet rs, int col, Object[] values) throws Exception
+    {
+        Object val = read(rs, col, values);
+
+        if (val == null && column._primitive)
+            return;
+
+        invoke(column._setter, target, val);
+    }
+
+    private Object convert(Column column, String val) throws Exception
+    {
+        return val == null ? null : column._converter.newInstance(val);
+    }
+
+    private Method callbackMethod(RowCallback<T> callback, int col)
+    {
+        Method[] methods = _callbacks.get(callback.getClass());
+
+        if (methods == null)
+        {
+            methods = new Method[_columns.length];
+            _callbacks.put(callback.getClass(), methods);
+        }
+
+        if (methods[col] == null)
+            methods[col] = accessible(ReflectUtils.findMethod(callback.getClass(), _columns[col]._field.callbackName(),
+                _modelClass, String.class));
+
+        return methods[col];
+    }
+
+    private Object invoke(Method method, Object target, Object... args) throws Exception
+    {
+        try
+        {
+            return method.invoke(target, args);
+        }
+        catch (InvocationTargetException e)
+        {
+            Throwable t = e.getTargetException();
+
+            throw t instanceof Exception ? (Exception) t : AggregateException.with(t, "Unable to invoke method "
+                + method);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package jBlocks.server.sql;
+
+import jBlocks.server.sql.SqlMapParser.ParsedSql;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Saves the parsed SQL of a schema's statements to a compact binary file, and restores it from the file, memory
+ * mapped, on later starts. A file is named after the hash of the properties it was parsed from, so a changed schema
+ * never picks up a stale file; files of older schemas are left behind and can be deleted at any time.
+ * <p>
+ * The file holds a magic number, a format version, the schema hash and the statement count, followed, for each
+ * statement, by its key, its SQL and the lists of its fields, parameters, dynamic parameters, template chunks, bulk
+ * insert parts and tables. Strings are UTF-8 bytes prefixed with their length and lists are prefixed with their size;
+ * a length or size of -1 stands for null.
+ *
+ * @author hkrishna
+ */
+class SchemaCache
+{
+    private static final int MAGIC   = 0x53514C43;
+    private static final int VERSION = 1;
+
+    private SchemaCache()
+    {
+        // Static class
+    }
+
+    /**
+     * @return The file of the schema with the provided hash in the provided directory.
+     */
+    static File file(File dir, String hash)
+    {
+        return new File(dir, hash + ".sqlc");
+    }
+
+    /**
+     * @return The parsed SQL of the statements by key, or null when the file does not exist or was not written for
+     *         the provided hash.
+     */
+    static Map<String, ParsedSql> read(File file, String hash) throws IOException
+    {
+        if (!file.isFile())
+            return null;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION || !hash.equals(readString(buf)))
+                return null;
+
+            int count = buf.getInt();
+            Map<String, ParsedSql> parsedSql = new HashMap<String, ParsedSql>(count * 2);
+
+            for (int i = 0; i < count; i++)
+            {
+                String key = readString(buf);
+
+                ParsedSql parsed = new ParsedSql();
+                parsed._stmt = readString(buf);
+                parsed._fields = readList(buf);
+                parsed._params = readList(buf);
+                parsed._dynParams = readList(buf);
+                parsed._chunks = readList(buf);
+                parsed._bulkInsert = readList(buf);
+                parsed._tables = new LinkedHashSet<String>(readList(buf));
+
+                parsedSql.put(key, parsed);
+            }
+
+            return parsedSql;
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    private static String readString(ByteBuffer buf) throws IOException
+    {
+        int length = buf.getInt();
+
+        if (length < 0)
+            return null;
+
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+
+        return new String(bytes, "UTF-8");
+    }
+
+    private static List<String> readList(ByteBuffer buf) throws IOException
+    {
+        int size = buf.getInt();
+
+        if (size < 0)
+            return null;
+
+        List<String> list = new ArrayList<String>(size);
+
+        for (int i = 0; i < size; i++)
+            list.add(readString(buf));
+
+        return list;
+    }
+
+    /**
+     * Writes the provided parsed SQL to a temporary file that then replaces the provided file, so readers never see a
+     * partly written file.
+     */
+    static void write(File file, String hash, Map<String, ParsedSql> parsedSql) throws IOException
+    {
+        File dir = file.getAbsoluteFile().getParentFile();
+
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Unable to create directory " + dir);
+
+        File temp = File.createTempFile(file.getName(), ".tmp", dir);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, hash);
+            out.writeInt(parsedSql.size());
+
+            for (Map.Entry<String, ParsedSql> entry : parsedSql.entrySet())
+            {
+                ParsedSql parsed = entry.getValue();
+
+                writeString(out, entry.getKey());
+                writeString(out, parsed._stmt);
+                writeList(out, parsed._fields);
+                writeList(out, parsed._params);
+                writeList(out, parsed._dynParams);
+                writeList(out, parsed._chunks);
+                writeList(out, parsed._bulkInsert);
+                writeList(out, parsed._tables);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file)))
+        {
+            temp.delete();
+
+            throw new IOException("Unable to replace " + file);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException
+    {
+        if (value == null)
+        {
+            out.writeInt(-1);
+            return;
+        }
+
+        byte[] bytes = value.getBytes("UTF-8");
+
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeList(DataOutputStream out, Collection<String> values) throws IOException
+    {
+        if (values == null)
+        {
+            out.writeInt(-1);
+            return;
+        }
+
+        out.writeInt(values.size());
+
+        for (String value : values)
+            writeString(out, value);
+    }
+}
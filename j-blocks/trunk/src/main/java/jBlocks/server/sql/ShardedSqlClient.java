@@ -0,0 +1,272 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package jBlocks.server.sql;
+
+import jBlocks.server.AggregateException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Spreads data over several databases, or shards, with identical schemas, one {@link SqlClient} per shard. Statements
+ * that operate on one shard declare the parameter that picks the shard with a <code>.shard-key</code> property:
+ *
+ * <pre><code>
+ *  customer.byId.sql = select c.id, c.name from customer c where c.id = #Id#
+ *  customer.byId.sql.shard-key = Id
+ * </code></pre>
+ *
+ * Such statements run on the shard the key's value hashes to; the value's hash code must therefore be the same in
+ * every JVM, as it is for strings and numbers. Statements that span shards are run on all shards in parallel with
+ * {@link #selectAll(String, Object, Comparator, int)}, so they take as long as the slowest shard.
+ * <p>
+ * Each shard keeps its own sessions and transactions; {@link #endSession()} ends the calling thread's sessions on all
+ * shards.
+ *
+ * @author hkrishna
+ */
+public class ShardedSqlClient
+{
+    private final List<SqlClient> _shards;
+
+    public ShardedSqlClient(List<SqlClient> shards)
+    {
+        if (shards == null || shards.isEmpty())
+            throw new IllegalArgumentException("At least one shard must be provided.");
+
+        _shards = new ArrayList<SqlClient>(shards);
+    }
+
+    /**
+     * @see SqlClient#loadSchema(Class, String)
+     */
+    public void loadSchema(Class<?> clazz, String name)
+    {
+        for (SqlClient shard : _shards)
+            shard.loadSchema(clazz, name);
+    }
+
+    /**
+     * @see SqlClient#loadSchema(Properties)
+     */
+    public void loadSchema(Properties sqlProps)
+    {
+        for (SqlClient shard : _shards)
+            shard.loadSchema(sqlProps);
+    }
+
+    public List<SqlClient> shards()
+    {
+        return Collections.unmodifiableList(_shards);
+    }
+
+    /**
+     * @return The shard the provided shard key value belongs to.
+     */
+    public SqlClient shard(Object shardKey)
+    {
+        if (shardKey == null)
+            throw new IllegalArgumentException("Shard key must be provided.");
+
+        return _shards.get((shardKey.hashCode() & Integer.MAX_VALUE) % _shards.size());
+    }
+
+    /**
+     * @return The shard the provided statement runs on with the provided parameter.
+     */
+    public SqlClient shard(String stmtId, Object param)
+    {
+        SqlParam shardKey = _shards.get(0).stmt(stmtId).getShardKey();
+
+        if (shardKey == null)
+            throw new IllegalArgumentException("Statement has no shard-key - " + stmtId);
+
+        Object value = shardKey.getValue(param);
+
+        if (value == null)
+            throw new IllegalArgumentException("Shard key " + shardKey + " is null for statement " + stmtId
+                + ", Parameter: " + param);
+
+        return shard(value);
+    }
+
+    public int selectInt(String stmtId, Object paramModel)
+    {
+        return shard(stmtId, paramModel).selectInt(stmtId, paramModel);
+    }
+
+    public int selectCount(String stmtId, Object paramModel)
+    {
+        return shard(stmtId, paramModel).selectCount(stmtId, paramModel);
+    }
+
+    public <T> List<T> selectPage(String stmtId, Object paramModel, int offset, int limit)
+    {
+        return shard(stmtId, paramModel).<T> selectPage(stmtId, paramModel, offset, limit);
+    }
+
+    public <T> List<T> selectPageAfter(String stmtId, Object paramModel, Object afterKey, int limit)
+    {
+        return shard(stmtId, paramModel).<T> selectPageAfter(stmtId, paramModel, afterKey, limit);
+    }
+
+    public <T> T selectOne(String stmtId, Object paramModel)
+    {
+        return shard(stmtId, paramModel).<T> selectOne(stmtId, paramModel);
+    }
+
+    public <T> List<T> select(String stmtId, Object paramModel)
+    {
+        return shard(stmtId, paramModel).<T> select(stmtId, paramModel);
+    }
+
+    /**
+     * Runs the provided select statement on all shards in parallel and concatenates the rows in shard order.
+     */
+    public <T> List<T> selectAll(String stmtId, Object paramModel)
+    {
+        return selectAll(stmtId, paramModel, null, 0);
+    }
+
+    /**
+     * Runs the provided select statement on all shards in parallel, each on a pooled thread of its shard, and merges
+     * the rows.
+     *
+     * @param order
+     *            The order of the merged rows, or null to keep them in shard order.
+     * @param limit
+     *            The maximum number of merged rows, or 0 for all of them. Each shard still selects all its rows, so a
+     *            statement that is limited should also limit its own rows to the same number.
+     */
+    public <T> List<T> selectAll(String stmtId, Object paramModel, Comparator<? super T> order, int limit)
+    {
+        List<Future<List<T>>> futures = new ArrayList<Future<List<T>>>(_shards.size());
+
+        for (SqlClient shard : _shards)
+            futures.add(shard.<T> selectAsync(stmtId, paramModel));
+
+        List<T> rows = new ArrayList<T>();
+
+        for (int i = 0; i < futures.size(); i++)
+            rows.addAll(get(futures.get(i), stmtId, i));
+
+        if (order != null)
+            Collections.sort(rows, order);
+
+        if (limit > 0 && rows.size() > limit)
+            rows = new ArrayList<T>(rows.subList(0, limit));
+
+        return rows;
+    }
+
+    private <V> V get(Future<V> future, String stmtId, int shard)
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+
+            throw AggregateException.with(e, "Interrupted while waiting for " + stmtId + " on shard " + shard);
+        }
+        catch (ExecutionException e)
+        {
+            throw AggregateException.with(e.getCause(), "Unable to execute " + stmtId + " on shard " + shard);
+        }
+    }
+
+    /**
+     * Executes the provided update statement on the shard of its parameter, in a transaction on that shard. When the
+     * statement has a <code>bulk-size</code> and the parameter is a collection, its models are grouped by shard and
+     * each group is executed on its shard. A transaction already in progress on a shard is joined as a
+     * {@link Propagation#NESTED nested} transaction.
+     *
+     * @return The number of rows updated.
+     * @see SqlClient#executeUpdate(String, Object)
+     */
+    public int executeUpdate(String stmtId, Object param)
+    {
+        if (!(param instanceof Collection) || _shards.get(0).stmt(stmtId).getBulkSize() == 0)
+            return executeUpdate(shard(stmtId, param), stmtId, param);
+
+        Map<SqlClient, List<Object>> groups = new LinkedHashMap<SqlClient, List<Object>>();
+
+        for (Object model : (Collection<?>) param)
+        {
+            SqlClient shard = shard(stmtId, model);
+            List<Object> group = groups.get(shard);
+
+            if (group == null)
+                groups.put(shard, group = new ArrayList<Object>());
+
+            group.add(model);
+        }
+
+        int count = 0;
+
+        for (Map.Entry<SqlClient, List<Object>> group : groups.entrySet())
+            count += executeUpdate(group.getKey(), stmtId, group.getValue());
+
+        return count;
+    }
+
+    private int executeUpdate(final SqlClient shard, final String stmtId, final Object param)
+    {
+        return shard.transact(new SqlTask<Integer>()
+        {
+            public Integer execute()
+            {
+                return shard.executeUpdate(stmtId, param);
+            }
+        });
+    }
+
+    /**
+     * Runs the provided task in a transaction on the shard of the provided key; the task should use that shard, as
+     * returned by {@link #shard(Object)}, for its operations.
+     */
+    public <V> V transact(Object shardKey, SqlTask<V> task)
+    {
+        return shard(shardKey).transact(task);
+    }
+
+    /**
+     * Ends the calling thread's sessions on all shards.
+     */
+    public void endSession()
+    {
+        for (SqlClient shard : _shards)
+            shard.endSession();
+    }
+
+    /**
+     * @see SqlClient#shutdown()
+     */
+    public void shutdown()
+    {
+        for (SqlClient shard : _shards)
+            shard.shutdown();
+    }
+}
@@ -17,16 +17,28 @@ package jBlocks.server.sql;
 import jBlocks.server.AggregateException;
 
 import java.io.PrintWriter;
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
+import java.lang.management.ManagementFactory;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import javax.sql.DataSource;
 
@@ -34,17 +46,62 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * A bounded JDBC connection pool. At most {@link #maxSize(int) maxSize} physical connections are ever open; callers
+ * asking for a connection when all of them are checked out wait, in arrival order, for up to
+ * {@link #checkoutTimeout(long) checkoutTimeout} milliseconds before a {@link SQLException} is thrown. Idle
+ * connections are handed out most recently used first, so surplus connections stay idle long enough to be evicted.
+ * <p>
+ * A background housekeeper closes connections that have been idle longer than {@link #idleTimeout(long) idleTimeout}
+ * (keeping at least {@link #minSize(int) minSize} open) or that have outlived {@link #maxLifetime(long) maxLifetime}.
+ * Connections are only validated when they are checked out after having been idle longer than
+ * {@link #validationInterval(long) validationInterval}, with the {@link #validationQuery(String) validationQuery} when
+ * one is provided, or else with a rollback.
+ * <p>
+ * The pool is configured with the fluent setters, which must be called before the first connection is requested.
+ * <p>
+ * The pool keeps track of its usage: active, idle and pending counts, how long callers wait for a connection and how
+ * long they hold on to it. Poll {@link #stats()} or {@link #registerMBean(String) register} the pool with JMX to
+ * watch it. When a {@link #leakThreshold(long) leakThreshold} is set, connections held longer than the threshold are
+ * logged, once per checkout, with the stack of the thread that checked them out.
+ *
+ * <pre><code>
+ * SimpleDataSource ds = new SimpleDataSource(driver, url, props).minSize(2).maxSize(20).checkoutTimeout(5000);
+ * </code></pre>
+ *
  * @author hkrishna
  */
-public class SimpleDataSource implements DataSource
+public class SimpleDataSource implements DataSource, SimpleDataSourceMBean
 {
-    private static final Logger _logger   = LoggerFactory.getLogger(SimpleDataSource.class);
+    private static final Logger                _logger             = LoggerFactory.getLogger(SimpleDataSource.class);
 
-    private Queue<Connection>   _connPool = new ConcurrentLinkedQueue<Connection>();
+    private final LinkedList<PooledConnection> _idle               = new LinkedList<PooledConnection>();
+    private final AtomicInteger                _size               = new AtomicInteger();
+    private final Map<PooledConnection, Long>  _active             = new ConcurrentHashMap<PooledConnection, Long>();
+    private final Histogram                    _waitTimes          = new Histogram();
+    private final Histogram                    _holdTimes          = new Histogram();
+    private final AtomicLong                   _checkouts          = new AtomicLong();
+    private final AtomicLong                   _timeouts           = new AtomicLong();
+    private final AtomicLong                   _created            = new AtomicLong();
+    private final AtomicLong                   _discarded          = new AtomicLong();
+    private final AtomicLong                   _leaks              = new AtomicLong();
+    private final AtomicLong                   _stmtCacheHits      = new AtomicLong();
+    private final AtomicLong                   _stmtCacheMisses    = new AtomicLong();
+    private volatile Semaphore                 _permits;
+    private Timer                              _housekeeper;
 
-    private String              _jdbcUrl;
-    private Properties          _jdbcProps;
-    private boolean             _shutdown;
+    private String                             _jdbcUrl;
+    private Properties                         _jdbcProps;
+    private int                                _minSize;
+    private int                                _maxSize            = 10;
+    private long                               _checkoutTimeout    = 30000;
+    private long                               _idleTimeout        = 600000;
+    private long                               _maxLifetime        = 1800000;
+    private long                               _validationInterval = 30000;
+    private String                             _validationQuery;
+    private long                               _leakThreshold;
+    private int                                _stmtCacheSize      = 50;
+    private ObjectName                         _mbeanName;
+    private volatile boolean                   _shutdown;
 
     public SimpleDataSource(String jdbcDriverClassName, String jdbcUrl, Properties jdbcProps)
     {
@@ -61,74 +118,606 @@ public class SimpleDataSource implements DataSource
         _jdbcProps = jdbcProps;
     }
 
+    /**
+     * @param size
+     *            The number of connections to keep open even when they are idle; defaults to 0.
+     */
+    public SimpleDataSource minSize(int size)
+    {
+        _minSize = size;
+
+        return this;
+    }
+
+    /**
+     * @param size
+     *            The maximum number of connections, idle or checked out, that will be open at any time; defaults to
+     *            10.
+     */
+    public SimpleDataSource maxSize(int size)
+    {
+        if (size < 1)
+            throw new IllegalArgumentException("Maximum pool size must be at least 1.");
+
+        _maxSize = size;
+
+        return this;
+    }
+
+    /**
+     * @param millis
+     *            How long to wait for a connection when all connections are checked out; defaults to 30 seconds.
+     */
+    public SimpleDataSource checkoutTimeout(long millis)
+    {
+        _checkoutTimeout = millis;
+
+        return this;
+    }
+
+    /**
+     * @param millis
+     *            How long a connection may stay idle before it is closed; defaults to 10 minutes.
+     */
+    public SimpleDataSource idleTimeout(long millis)
+    {
+        _idleTimeout = millis;
+
+        return this;
+    }
+
+    /**
+     * @param millis
+     *            How long a connection may stay open before it is retired; defaults to 30 minutes.
+     */
+    public SimpleDataSource maxLifetime(long millis)
+    {
+        _maxLifetime = millis;
+
+        return this;
+    }
+
+    /**
+     * @param millis
+     *            How long a connection may stay idle before it is validated on checkout; defaults to 30 seconds.
+     */
+    public SimpleDataSource validationInterval(long millis)
+    {
+        _validationInterval = millis;
+
+        return this;
+    }
+
+    /**
+     * @param sql
+     *            The query used to validate connections that have been idle; by default connections are validated
+     *            with a rollback.
+     */
+    public SimpleDataSource validationQuery(String sql)
+    {
+        _validationQuery = sql;
+
+        return this;
+    }
+
+    /**
+     * @param millis
+     *            How long a connection may be held before it is reported as a possible leak; defaults to 0, which
+     *            turns leak detection off. With leak detection on, every checkout captures the caller's stack.
+     */
+    public SimpleDataSource leakThreshold(long millis)
+    {
+        _leakThreshold = millis;
+
+        return this;
+    }
+
+    /**
+     * @param size
+     *            The number of prepared statements cached by each connection, keyed by their SQL text; defaults to 50.
+     *            0 turns statement caching off.
+     */
+    public SimpleDataSource statementCacheSize(int size)
+    {
+        _stmtCacheSize = size;
+
+        return this;
+    }
+
+    /**
+     * Registers this pool with the platform MBean server under
+     * <code>jBlocks.server.sql:type=SimpleDataSource,name=&lt;name&gt;</code>. The pool is unregistered when it is
+     * shutdown.
+     */
+    public synchronized SimpleDataSource registerMBean(String name)
+    {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName mbeanName = new ObjectName("jBlocks.server.sql:type=SimpleDataSource,name="
+                + ObjectName.quote(name));
+
+            server.registerMBean(this, mbeanName);
+            _mbeanName = mbeanName;
+
+            return this;
+        }
+        catch (Exception e)
+        {
+            throw AggregateException.with(e, "Unable to register data source MBean: " + name);
+        }
+    }
+
     public Connection getConnection() throws SQLException
     {
         return getConnection(null, null);
     }
 
     public Connection getConnection(String username, String password) throws SQLException
+    {
+        Connection conn = checkout(_checkoutTimeout);
+
+        if (conn == null)
+        {
+            _timeouts.incrementAndGet();
+
+            throw new SQLException("Timed out after " + _checkoutTimeout
+                + " ms waiting for a connection; all " + _maxSize + " connections are in use.");
+        }
+
+        return conn;
+    }
+
+    /**
+     * @return A connection, or null when all connections are in use; never waits for one to be checked in.
+     */
+    Connection tryConnection() throws SQLException
+    {
+        return checkout(0);
+    }
+
+    /**
+     * @return A connection, or null when none was checked in within the provided time.
+     */
+    private Connection checkout(long timeoutMillis) throws SQLException
     {
         if (_shutdown)
             throw AggregateException.with(new IllegalAccessException(
                 "Data source has been shutdown, cannot get connection."));
 
-        Connection conn = pollConnection();
+        long start = System.nanoTime();
+
+        if (!acquirePermit(timeoutMillis))
+            return null;
+
+        boolean acquired = false;
+
+        try
+        {
+            PooledConnection conn = pollConnection();
+
+            if (conn == null)
+                conn = newConnection();
+
+            conn.checkout(_leakThreshold > 0 ? new Throwable("Connection checked out here") : null);
+            _active.put(conn, Long.valueOf(conn.checkedOutAt()));
+            acquired = true;
+
+            _checkouts.incrementAndGet();
+            _waitTimes.record((System.nanoTime() - start) / 1000);
 
-        if (conn != null)
             return conn;
+        }
+        finally
+        {
+            if (!acquired)
+                _permits.release();
+        }
+    }
+
+    private synchronized void init()
+    {
+        if (_permits == null)
+        {
+            _permits = new Semaphore(_maxSize, true);
+
+            startHousekeeper();
+        }
+    }
+
+    private boolean acquirePermit(long timeoutMillis) throws SQLException
+    {
+        if (_permits == null)
+            init();
 
-        conn = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { Connection.class },
-            new InvocationHandler()
+        try
+        {
+            return timeoutMillis > 0 ? _permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS) : _permits
+                .tryAcquire();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+
+            throw new SQLException("Interrupted while waiting for a connection.");
+        }
+    }
+
+    private PooledConnection pollConnection()
+    {
+        while (true)
+        {
+            PooledConnection conn = null;
+
+            synchronized (_idle)
             {
-                Connection _conn = DriverManager.getConnection(_jdbcUrl, _jdbcProps);
+                if (_idle.isEmpty())
+                    return null;
+
+                conn = _idle.removeLast();
+            }
+
+            long now = System.currentTimeMillis();
 
-                public Object invoke(Object connProxy, Method method, Object[] args) throws Throwable
+            if (now - conn.createdAt() > _maxLifetime)
+                discard(conn, "max lifetime reached");
+
+            else if (now - conn.lastUsedAt() > _validationInterval && !isValid(conn))
+                discard(conn, "validation failed");
+
+            else
+                return conn;
+        }
+    }
+
+    private boolean isValid(PooledConnection conn)
+    {
+        Connection physConn = conn.physicalConnection();
+
+        try
+        {
+            if (_validationQuery == null)
+                physConn.rollback();
+            else
+            {
+                Statement stmt = physConn.createStatement();
+
+                try
+                {
+                    stmt.execute(_validationQuery);
+                }
+                finally
                 {
-                    if ("close".equals(method.getName()))
-                    {
-                        if (_shutdown)
-                            _conn.close();
-                        else
-                            _connPool.offer((Connection) connProxy);
-
-                        return null;
-                    }
-                    else
-                    {
-                        try
-                        {
-                            return method.invoke(_conn, args);
-                        }
-                        catch (InvocationTargetException e)
-                        {
-                            throw e.getCause();
-                        }
-                    }
+                    stmt.close();
                 }
-            });
+            }
 
-        return conn;
+            return true;
+        }
+        catch (SQLException e)
+        {
+            _logger.info("Possible stale connection, trashing " + physConn, e);
+
+            return false;
+        }
+    }
+
+    private PooledConnection newConnection() throws SQLException
+    {
+        Connection conn = DriverManager.getConnection(_jdbcUrl, _jdbcProps);
+
+        try
+        {
+            PooledConnection pooledConn = new PooledConnection(this, conn);
+            _size.incrementAndGet();
+            _created.incrementAndGet();
+
+            return pooledConn;
+        }
+        catch (SQLException e)
+        {
+            conn.close();
+
+            throw e;
+        }
+    }
+
+    private void discard(PooledConnection conn, String reason)
+    {
+        _size.decrementAndGet();
+        _discarded.incrementAndGet();
+
+        if (_logger.isDebugEnabled())
+            _logger.debug("Closing connection, " + reason + ": " + conn);
+
+        conn.closePhysical();
+    }
+
+    void release(PooledConnection conn)
+    {
+        _active.remove(conn);
+        _holdTimes.record(System.currentTimeMillis() - conn.checkedOutAt());
+
+        try
+        {
+            String reason = null;
+
+            if (_shutdown)
+                reason = "data source shutdown";
+            else if (System.currentTimeMillis() - conn.createdAt() > _maxLifetime)
+                reason = "max lifetime reached";
+            else if (conn.isDirty())
+            {
+                try
+                {
+                    conn.rollback();
+                }
+                catch (SQLException e)
+                {
+                    reason = "rollback on release failed";
+                }
+            }
+
+            conn.checkin();
+
+            if (reason != null)
+                discard(conn, reason);
+            else
+            {
+                synchronized (_idle)
+                {
+                    _idle.addLast(conn);
+                }
+            }
+        }
+        finally
+        {
+            _permits.release();
+        }
+    }
+
+    private void startHousekeeper()
+    {
+        long period = Math.min(30000, Math.min(_idleTimeout, _maxLifetime) / 2);
+
+        if (_leakThreshold > 0)
+            period = Math.min(period, _leakThreshold / 2);
+
+        period = Math.max(1000, period);
+
+        _housekeeper = new Timer("SimpleDataSource housekeeper", true);
+        _housekeeper.schedule(new TimerTask()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    evict();
+                    fill();
+                    detectLeaks();
+                }
+                catch (Throwable t)
+                {
+                    _logger.warn("Connection pool housekeeping failed.", t);
+                }
+            }
+        }, period, period);
     }
 
-    private Connection pollConnection()
+    private void evict()
     {
-        Connection conn = null;
+        List<PooledConnection> expired = new ArrayList<PooledConnection>();
+        long now = System.currentTimeMillis();
+
+        synchronized (_idle)
+        {
+            // Oldest idle connections are at the head
+            for (Iterator<PooledConnection> i = _idle.iterator(); i.hasNext();)
+            {
+                PooledConnection conn = i.next();
 
-        while ((conn = _connPool.poll()) != null)
+                boolean idledOut = now - conn.lastUsedAt() > _idleTimeout && _size.get() - expired.size() > _minSize;
+
+                if (idledOut || now - conn.createdAt() > _maxLifetime)
+                {
+                    i.remove();
+                    expired.add(conn);
+                }
+            }
+        }
+
+        for (PooledConnection conn : expired)
+            discard(conn, "idle timeout or max lifetime reached");
+    }
+
+    private void fill() throws SQLException
+    {
+        while (!_shutdown && _size.get() < _minSize && _permits.tryAcquire())
         {
             try
             {
-                conn.setAutoCommit(false);
-                conn.rollback();
-                break;
+                PooledConnection conn = newConnection();
+                conn.checkin();
+
+                synchronized (_idle)
+                {
+                    _idle.addFirst(conn);
+                }
             }
-            catch (SQLException e)
+            finally
             {
-                _logger.info("Possible stale connection, trashing " + conn, e);
+                _permits.release();
             }
         }
+    }
 
-        return conn;
+    StatementCache newStatementCache(Connection conn)
+    {
+        if (_stmtCacheSize <= 0)
+            return null;
+
+        return new StatementCache(conn, _stmtCacheSize, _stmtCacheHits, _stmtCacheMisses);
+    }
+
+    /**
+     * Closes the cached statements prepared with the provided SQL texts on every connection of the pool, as each
+     * connection is next used.
+     */
+    void evictStatements(Collection<String> sqls)
+    {
+        List<PooledConnection> conns;
+
+        synchronized (_idle)
+        {
+            conns = new ArrayList<PooledConnection>(_idle);
+        }
+
+        conns.addAll(_active.keySet());
+
+        for (PooledConnection conn : conns)
+            conn.evictStatements(sqls);
+    }
+
+    private void detectLeaks()
+    {
+        if (_leakThreshold <= 0)
+            return;
+
+        long now = System.currentTimeMillis();
+
+        for (Map.Entry<PooledConnection, Long> entry : _active.entrySet())
+        {
+            long heldFor = now - entry.getValue().longValue();
+            PooledConnection conn = entry.getKey();
+
+            if (heldFor > _leakThreshold && conn.reportLeak())
+            {
+                _leaks.incrementAndGet();
+
+                _logger.warn("Possible connection leak, " + conn + " has been checked out for " + heldFor
+                    + " ms; it was checked out by the following stack.", conn.checkoutTrace());
+            }
+        }
+    }
+
+    /**
+     * @return A snapshot of the usage of this pool.
+     */
+    public PoolStats stats()
+    {
+        return new PoolStats(this, _waitTimes, _holdTimes);
+    }
+
+    // Management methods
+    // ===========================================================================
+
+    public int getActiveConnections()
+    {
+        return _active.size();
+    }
+
+    public int getIdleConnections()
+    {
+        synchronized (_idle)
+        {
+            return _idle.size();
+        }
+    }
+
+    public int getPendingRequests()
+    {
+        Semaphore permits = _permits;
+
+        return permits == null ? 0 : permits.getQueueLength();
+    }
+
+    public int getTotalConnections()
+    {
+        return _size.get();
+    }
+
+    public int getMaxSize()
+    {
+        return _maxSize;
+    }
+
+    public long getCheckouts()
+    {
+        return _checkouts.get();
+    }
+
+    public long getCheckoutTimeouts()
+    {
+        return _timeouts.get();
+    }
+
+    public long getConnectionsCreated()
+    {
+        return _created.get();
+    }
+
+    public long getConnectionsDiscarded()
+    {
+        return _discarded.get();
+    }
+
+    public long getLeaksDetected()
+    {
+        return _leaks.get();
+    }
+
+    public long getStatementCacheHits()
+    {
+        return _stmtCacheHits.get();
+    }
+
+    public long getStatementCacheMisses()
+    {
+        return _stmtCacheMisses.get();
+    }
+
+    public long getCheckoutWait50thPercentile()
+    {
+        return _waitTimes.getPercentile(50);
+    }
+
+    public long getCheckoutWait99thPercentile()
+    {
+        return _waitTimes.getPercentile(99);
+    }
+
+    public long getCheckoutWaitMax()
+    {
+        return _waitTimes.getMax();
+    }
+
+    public long getHoldTime50thPercentile()
+    {
+        return _holdTimes.getPercentile(50);
+    }
+
+    public long getHoldTime99thPercentile()
+    {
+        return _holdTimes.getPercentile(99);
+    }
+
+    public long getHoldTimeMax()
+    {
+        return _holdTimes.getMax();
+    }
+
+    public void resetStats()
+    {
+        _waitTimes.reset();
+        _holdTimes.reset();
+        _checkouts.set(0);
+        _timeouts.set(0);
+        _created.set(0);
+        _discarded.set(0);
+        _leaks.set(0);
+        _stmtCacheHits.set(0);
+        _stmtCacheMisses.set(0);
     }
 
     public PrintWriter getLogWriter() throws SQLException
@@ -153,9 +742,35 @@ public class SimpleDataSource implements DataSource
     {
         _shutdown = true;
 
-        Connection conn = null;
+        synchronized (this)
+        {
+            if (_housekeeper != null)
+                _housekeeper.cancel();
 
-        while ((conn = _connPool.poll()) != null)
-            conn.close();
+            if (_mbeanName != null)
+            {
+                try
+                {
+                    ManagementFactory.getPlatformMBeanServer().unregisterMBean(_mbeanName);
+                }
+                catch (Exception e)
+                {
+                    _logger.info("Unable to unregister data source MBean " + _mbeanName, e);
+                }
+
+                _mbeanName = null;
+            }
+        }
+
+        List<PooledConnection> idle = null;
+
+        synchronized (_idle)
+        {
+            idle = new ArrayList<PooledConnection>(_idle);
+            _idle.clear();
+        }
+
+        for (PooledConnection conn : idle)
+            discard(conn, "data source shutdown");
     }
 }
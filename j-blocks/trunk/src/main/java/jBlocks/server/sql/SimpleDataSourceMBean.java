@@ -0,0 +1,63 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package jBlocks.server.sql;
+
+/**
+ * The JMX management interface of {@link SimpleDataSource}. Wait times are in microseconds and hold times are in
+ * milliseconds.
+ * 
+ * @author hkrishna
+ * @see SimpleDataSource#registerMBean(String)
+ */
+public interface SimpleDataSourceMBean
+{
+    int getActiveConnections();
+
+    int getIdleConnections();
+
+    int getPendingRequests();
+
+    int getTotalConnections();
+
+    int getMaxSize();
+
+    long getCheckouts();
+
+    long getCheckoutTimeouts();
+
+    long getConnectionsCreated();
+
+    long getConnectionsDiscarded();
+
+    long getLeaksDetected();
+
+    long getStatementCacheHits();
+
+    long getStatementCacheMisses();
+
+    long getCheckoutWait50thPercentile();
+
+    long getCheckoutWait99thPercentile();
+
+    long getCheckoutWaitMax();
+
+    long getHoldTime50thPercentile();
+
+    long getHoldTime99thPercentile();
+
+    long getHoldTimeMax();
+
+    void resetStats();
+}
@@ -0,0 +1,246 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package jBlocks.server.sql;
+
+import java.io.Closeable;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A sink that writes rows with a single update statement in JDBC batches of a fixed size. The batch is executed every
+ * time it fills up, so the driver never buffers more than one batch, and the remaining rows are executed when the
+ * sink is closed.
+ * <p>
+ * When it is created outside a transaction, the sink runs in its own transaction, which is committed when the sink is
+ * closed and rolled back if a batch fails. Inside a transaction the rows are written as part of that transaction. Long
+ * loads in a transaction of their own can {@link #commitEvery(int) commit} every few batches to keep the transaction
+ * small.
+ *
+ * <pre><code>
+ * SqlBatch batch = sqlClient.batch(&quot;insertEmployee&quot;, 500).commitEvery(20);
+ * try
+ * {
+ *     for (Employee emp : feed)
+ *         batch.add(emp);
+ * }
+ * finally
+ * {
+ *     batch.close();
+ * }
+ * </code></pre>
+ *
+ * @author hkrishna
+ * @see SqlClient#batch(String, int)
+ */
+public class SqlBatch implements Closeable
+{
+    private static final Logger _logger      = LoggerFactory.getLogger(SqlBatch.class);
+
+    private SqlSession          _session;
+    private SqlStmt             _sqlStmt;
+    private int                 _batchSize;
+    private int                 _commitEvery;
+    private boolean             _ownsTransaction;
+    private boolean             _closed;
+    private boolean             _failed;
+    private int                 _pending;
+    private long                _rows;
+    private long                _updateCount;
+    private List<Integer>       _batchCounts = new ArrayList<Integer>();
+    private long                _startedAt;
+    private long                _elapsed;
+
+    SqlBatch(SqlSession session, SqlStmt sqlStmt, int batchSize)
+    {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("Batch size must be at least 1.");
+
+        _session = session;
+        _sqlStmt = sqlStmt;
+        _batchSize = batchSize;
+
+        if (!session.isInTransaction())
+        {
+            session.startTransaction();
+            _ownsTransaction = true;
+        }
+
+        _startedAt = System.nanoTime();
+    }
+
+    /**
+     * @param batches
+     *            The number of batches after which the transaction is committed; defaults to 0, which commits only
+     *            when the sink is closed.
+     * @throws IllegalStateException
+     *             when the sink was created inside a transaction, whose earlier writes would be committed with the
+     *             batches and could then no longer be rolled back.
+     */
+    public SqlBatch commitEvery(int batches)
+    {
+        if (batches > 0 && !_ownsTransaction)
+            throw new IllegalStateException("A batch inside a transaction cannot commit the transaction.");
+
+        _commitEvery = batches;
+
+        return this;
+    }
+
+    /**
+     * Adds the provided row to the batch and executes the batch when it is full.
+     */
+    public SqlBatch add(Object param)
+    {
+        if (_closed)
+            throw new IllegalStateException("Batch has been closed.");
+
+        try
+        {
+            _session.addBatch(_sqlStmt, param);
+        }
+        catch (RuntimeException e)
+        {
+            _failed = true;
+
+            throw e;
+        }
+
+        _pending++;
+
+        if (_pending >= _batchSize)
+            flush();
+
+        return this;
+    }
+
+    /**
+     * Executes the rows added since the last flush.
+     */
+    public void flush()
+    {
+        if (_pending == 0)
+            return;
+
+        int pending = _pending;
+        int[] status;
+
+        _pending = 0;
+
+        try
+        {
+            status = _session.executeBatch(_sqlStmt);
+        }
+        catch (RuntimeException e)
+        {
+            _failed = true;
+
+            throw e;
+        }
+
+        int count = 0;
+
+        for (int i = 0; i < status.length; i++)
+            count += status[i] == Statement.SUCCESS_NO_INFO ? 1 : status[i];
+
+        _rows += pending;
+        _updateCount += count;
+        _batchCounts.add(count);
+
+        if (_ownsTransaction && _commitEvery > 0 && _batchCounts.size() % _commitEvery == 0)
+            _session.checkpoint();
+    }
+
+    /**
+     * Executes the remaining rows and, when the sink runs in its own transaction, commits it unless a batch failed.
+     * Calling this method more than once has no effect.
+     */
+    public void close()
+    {
+        if (_closed)
+            return;
+
+        _closed = true;
+
+        try
+        {
+            flush();
+
+            if (_ownsTransaction && !_failed)
+                _session.commit();
+        }
+        finally
+        {
+            try
+            {
+                if (_ownsTransaction)
+                    _session.endTransaction();
+            }
+            finally
+            {
+                _elapsed = System.nanoTime() - _startedAt;
+
+                if (_logger.isDebugEnabled())
+                    _logger.debug(toString());
+            }
+        }
+    }
+
+    /**
+     * @return The number of rows executed so far, not counting the rows waiting for the batch to fill up.
+     */
+    public long getRows()
+    {
+        return _rows;
+    }
+
+    /**
+     * @return The number of rows updated so far as reported by the driver; batches whose count the driver does not
+     *         know count one row per statement.
+     */
+    public long getUpdateCount()
+    {
+        return _updateCount;
+    }
+
+    /**
+     * @return The number of rows updated by each batch executed so far.
+     */
+    public List<Integer> getBatchCounts()
+    {
+        return Collections.unmodifiableList(_batchCounts);
+    }
+
+    /**
+     * @return The rows executed per second, up to now or until the sink was closed.
+     */
+    public double getRowsPerSecond()
+    {
+        long elapsed = _closed ? _elapsed : System.nanoTime() - _startedAt;
+
+        return elapsed == 0 ? 0 : _rows * 1e9 / elapsed;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Batch " + _sqlStmt.getStmt() + ", Rows: " + _rows + ", Updated: " + _updateCount + ", Batches: "
+            + _batchCounts.size() + ", Rows/sec: " + Math.round(getRowsPerSecond());
+    }
+}
@@ -17,15 +17,35 @@ package jBlocks.server.sql;
 import jBlocks.server.AggregateException;
 import jBlocks.server.IOUtils;
 
+import java.io.File;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.sql.Connection;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.sql.DataSource;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 /**
  * Primary interface to manage access to a single database. This class creates
  * new {@link SqlSession sessions} as needed but these sessions will have to be
@@ -70,6 +90,12 @@ import javax.sql.DataSource;
  * <li><code>&lt;name&gt;.sql = &lt;sql statement&gt;</code></li>
  * <li><code>&lt;name&gt;.dyn-sql = &lt;dynamic sql statement&gt;</code></li>
  * <li><code>&lt;name&gt;.[sql | dyn-sql].fetch-size = &lt;JDBC fetch size&gt;</code></li>
+ * <li><code>&lt;name&gt;.sql.bulk-size = &lt;rows per round trip when a collection is updated&gt;</code></li>
+ * <li><code>&lt;name&gt;.[sql | dyn-sql].cache = &lt;milliseconds the selected rows are cached&gt;</code></li>
+ * <li><code>&lt;name&gt;.[sql | dyn-sql].cache-size = &lt;parameter combinations cached, defaults to 100&gt;</code></li>
+ * <li><code>&lt;name&gt;.[sql | dyn-sql].tables = &lt;comma separated tables, parsed from the SQL by default&gt;</code></li>
+ * <li><code>&lt;name&gt;.[sql | dyn-sql].shard-key = &lt;parameter that picks the shard, see {@link ShardedSqlClient}&gt;</code></li>
+ * <li><code>&lt;name&gt;.[sql | dyn-sql].sort-key = &lt;column the rows are paged by, as the statement names it, optionally followed by desc, see {@link #selectPageAfter(String, Object, Object, int)}&gt;</code></li>
  * </ul>
  * <p>
  * The sql statements are of 2 types - regular and dynamic. Regular sql
@@ -113,9 +139,79 @@ import javax.sql.DataSource;
  */
 public class SqlClient
 {
-    private DataManager                   _dataManager;
-    private Map<String, SqlStmt>          _stmts;
-    private ThreadLocal<List<SqlSession>> _threadSessions;
+    private static final Logger                _logger        = LoggerFactory.getLogger(SqlClient.class);
+
+    /**
+     * The sql properties files of a schema, later files overriding earlier ones, and their last modified times when
+     * they are files on the file system.
+     */
+    private static class SchemaSource
+    {
+        private final List<URL> _urls;
+        private long[]          _lastModified;
+        private SqlMapParser    _parser;
+
+        SchemaSource(List<URL> urls)
+        {
+            _urls = urls;
+            _lastModified = lastModified();
+        }
+
+        long[] lastModified()
+        {
+            long[] lastModified = new long[_urls.size()];
+
+            for (int i = 0; i < lastModified.length; i++)
+            {
+                URL url = _urls.get(i);
+
+                if (!"file".equals(url.getProtocol()))
+                    continue;
+
+                try
+                {
+                    lastModified[i] = new File(url.toURI()).lastModified();
+                }
+                catch (URISyntaxException e)
+                {
+                    lastModified[i] = new File(url.getPath()).lastModified();
+                }
+            }
+
+            return lastModified;
+        }
+
+        Properties load()
+        {
+            Properties sqlProps = IOUtils.loadProperties(_urls.get(0));
+
+            for (int i = 1; i < _urls.size(); i++)
+                sqlProps.putAll(IOUtils.loadProperties(_urls.get(i)));
+
+            return sqlProps;
+        }
+
+        @Override
+        public String toString()
+        {
+            return _urls.toString();
+        }
+    }
+
+    private DataManager                        _dataManager;
+    private volatile Map<String, SqlMapParser> _schema        = Collections.emptyMap();
+    private final List<SchemaSource>           _schemaSources = new ArrayList<SchemaSource>();
+    private Timer                              _schemaWatcher;
+    private QueryCache                         _queryCache    = new QueryCache();
+    private ThreadLocal<List<SqlSession>>      _threadSessions;
+    private ThreadLocal<SqlSession>            _readSessions  = new ThreadLocal<SqlSession>();
+    private int                                _asyncThreads;
+    private ExecutorService                    _executor;
+    private RetryPolicy                        _retryPolicy   = new RetryPolicy();
+    private boolean                            _warmUp;
+    private File                               _schemaCacheDir;
+    private volatile SqlMonitor                _monitor;
+    private Dialect                            _dialect       = Dialect.LIMIT_OFFSET;
 
     public SqlClient(String jndiName, String dbId)
     {
@@ -146,6 +242,73 @@ public class SqlClient
         return _dataManager;
     }
 
+    /**
+     * @return The cache of the rows selected by the statements that have a <code>.cache</code> property.
+     */
+    public QueryCache queryCache()
+    {
+        return _queryCache;
+    }
+
+    /**
+     * @param warmUp
+     *            True to parse the statements of every schema loaded from
+     *            now on in a background thread; by default a statement is
+     *            parsed on first use.
+     */
+    public SqlClient setWarmUp(boolean warmUp)
+    {
+        _warmUp = warmUp;
+
+        return this;
+    }
+
+    /**
+     * Keeps the parsed statements of every schema loaded from now on in a
+     * {@link SchemaCache} file in the provided directory, so they do not need
+     * to be parsed on later starts. A schema whose file does not exist yet is
+     * parsed, and its file written, in a background thread.
+     */
+    public SqlClient setSchemaCache(File dir)
+    {
+        _schemaCacheDir = dir;
+
+        return this;
+    }
+
+    /**
+     * Checks the sql properties files of the schemas loaded with {@link #loadSchema(Class, String)}, when they are
+     * files on the file system, for changes every <code>millis</code> milliseconds, and reloads the schemas whose files
+     * changed. Statements whose SQL or properties changed are replaced, and those that were removed dropped, all at
+     * once; their cached rows and cached prepared statements are discarded. Operations already running carry on with
+     * the statements they started with.
+     *
+     * @param millis
+     *            The interval between checks, or 0, the default, to never check.
+     */
+    public synchronized SqlClient setReloadInterval(long millis)
+    {
+        if (_schemaWatcher != null)
+            _schemaWatcher.cancel();
+
+        _schemaWatcher = null;
+
+        if (millis <= 0)
+            return this;
+
+        _schemaWatcher = new Timer("SqlClient-" + _dataManager.dbId() + "-schema-watcher", true);
+        _schemaWatcher.schedule(new TimerTask()
+        {
+            @Override
+            public void run()
+            {
+                reloadSchemas();
+            }
+        }, millis, millis);
+
+        return this;
+    }
+
     /**
      * Loads, parses and caches the provided sql properties file.
      * 
@@ -162,15 +325,21 @@ public class SqlClient
     {
         try
         {
-            Properties sqlProps = IOUtils.loadProperties(clazz
-                    .getResource(name + ".sql.properties"));
+            List<URL> urls = new ArrayList<URL>();
+            urls.add(clazz.getResource(name + ".sql.properties"));
 
             URL url = clazz.getResource(name + '.' + _dataManager.dbId() + ".sql.properties");
 
             if (url != null)
-                sqlProps.putAll(IOUtils.loadProperties(url));
+                urls.add(url);
 
-            loadSchema(sqlProps);
+            SchemaSource source = new SchemaSource(urls);
+
+            synchronized (_schemaSources)
+            {
+                source._parser = install(source.load(), null);
+                _schemaSources.add(source);
+            }
         }
         catch (Exception e)
         {
@@ -180,31 +349,211 @@ public class SqlClient
     }
 
     /**
-     * Parses and caches the provided sql properties.
+     * Loads the provided sql properties. Statements are parsed on first use,
+     * unless {@link #setWarmUp(boolean) warm-up} is on, and then cached.
      * 
      * @param sqlProps
      */
     public void loadSchema(Properties sqlProps)
     {
-        if (_stmts == null)
-            _stmts = new HashMap<String, SqlStmt>();
+        synchronized (_schemaSources)
+        {
+            install(sqlProps, null);
+        }
+    }
+
+    /**
+     * Reloads the schemas whose files changed since they were last loaded.
+     */
+    private void reloadSchemas()
+    {
+        synchronized (_schemaSources)
+        {
+            for (SchemaSource source : _schemaSources)
+            {
+                long[] lastModified = source.lastModified();
+
+                if (Arrays.equals(lastModified, source._lastModified))
+                    continue;
+
+                source._lastModified = lastModified;
+
+                try
+                {
+                    source._parser = install(source.load(), source._parser);
+                }
+                catch (Exception e)
+                {
+                    _logger.warn("Unable to reload schema " + source + ", keeping the loaded statements.", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Puts the statements of the provided sql properties in a copy of the schema, which then replaces the schema, so
+     * readers never wait and never see a partly loaded schema. Statements that were loaded by the provided previous
+     * parser, of the same schema source, and are unchanged are kept as they are; the others are replaced, and those
+     * the previous parser loaded but the provided properties no longer have are removed. Must be called while holding
+     * the lock of {@link #_schemaSources}.
+     *
+     * @throws RuntimeException
+     *             When a changed statement of a reload cannot be parsed; the schema is then left as it was.
+     *
+     * @return The parser of the provided properties.
+     */
+    private SqlMapParser install(Properties sqlProps, SqlMapParser previous)
+    {
+        SqlMapParser parser = new SqlMapParser(sqlProps);
+        File cacheFile = null;
+
+        if (_schemaCacheDir != null)
+        {
+            String hash = parser.getHash();
+            cacheFile = SchemaCache.file(_schemaCacheDir, hash);
+
+            try
+            {
+                Map<String, SqlMapParser.ParsedSql> parsedSql = SchemaCache.read(cacheFile, hash);
+
+                if (parsedSql != null)
+                {
+                    parser.setParsedSql(parsedSql);
+                    cacheFile = null;
+                }
+            }
+            catch (Exception e)
+            {
+                _logger.warn("Unable to read schema cache " + cacheFile + ", parsing the schema.", e);
+            }
+        }
+
+        Map<String, SqlMapParser> schema = new HashMap<String, SqlMapParser>(_schema);
+        List<SqlStmt> replaced = new ArrayList<SqlStmt>();
+        int changed = 0;
+
+        for (String key : parser.getStmtKeys())
+        {
+            SqlMapParser current = schema.put(key, parser);
+
+            if (current == previous && previous != null && previous.isSame(key, parser))
+            {
+                parser.adopt(key, previous);
+                continue;
+            }
+
+            changed++;
+
+            // Parse the changed statements of a reload up front, so a broken edit keeps the loaded statements
+            if (previous != null)
+                parser.parse(key);
+
+            if (current != null && current.getParsed(key) != null)
+                replaced.add(current.getParsed(key));
+        }
+
+        if (previous != null)
+        {
+            for (String key : previous.getStmtKeys())
+            {
+                if (schema.get(key) != previous)
+                    continue;
+
+                schema.remove(key);
+                changed++;
+
+                if (previous.getParsed(key) != null)
+                    replaced.add(previous.getParsed(key));
+            }
+        }
+
+        _schema = schema;
+
+        for (SqlStmt sqlStmt : replaced)
+        {
+            _queryCache.remove(sqlStmt);
+            _dataManager.evictStatements(sqlStmt.getPreparedSql());
+        }
+
+        if (previous != null)
+            _logger.info("Reloaded schema of " + _dataManager.dbId() + ", " + changed + " statements changed.");
+
+        if (_warmUp || cacheFile != null)
+            warmUp(parser, cacheFile);
+
+        return parser;
+    }
+
+    /**
+     * Parses all statements of the provided parser in a background thread and then writes them to the provided cache
+     * file, if any.
+     */
+    private void warmUp(final SqlMapParser parser, final File cacheFile)
+    {
+        Thread thread = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    parser.parse();
 
-        _stmts.putAll(new SqlMapParser().parse(sqlProps));
+                    if (cacheFile != null)
+                        SchemaCache.write(cacheFile, parser.getHash(), parser.getParsedSql());
+                }
+                catch (Exception e)
+                {
+                    _logger.warn("Unable to warm up schema" + (cacheFile == null ? "." : ", " + cacheFile), e);
+                }
+            }
+        }, "SqlClient-" + _dataManager.dbId() + "-warm-up");
+
+        thread.setDaemon(true);
+        thread.start();
     }
 
-    private SqlStmt stmt(String stmtId)
+    SqlStmt stmt(String stmtId)
     {
-        SqlStmt stmt = _stmts.get(stmtId);
+        SqlMapParser parser = _schema.get(stmtId);
 
-        if (stmt == null)
+        if (parser == null)
             throw new IllegalArgumentException("SQL statement not found - " + stmtId);
 
-        return stmt;
+        return parser.parse(stmtId);
+    }
+
+    /**
+     * @return A session that is not bound to the calling thread; it must be closed by the caller.
+     */
+    SqlSession openSession()
+    {
+        return new SqlSession(_dataManager.getConnection(), _queryCache, _monitor);
+    }
+
+    /**
+     * @return A session on a replica, or on the primary when there are no replicas, that is not bound to the calling
+     *         thread; it must be closed by the caller.
+     */
+    private SqlSession openReadSession()
+    {
+        return new SqlSession(_dataManager.getReadConnection(), _queryCache, _monitor);
+    }
+
+    /**
+     * @return A session like {@link #openReadSession()}, or null when it would have to wait for a connection of the
+     *         primary's pool.
+     * @see DataManager#tryReadConnection()
+     */
+    SqlSession tryOpenReadSession()
+    {
+        Connection conn = _dataManager.tryReadConnection();
+
+        return conn == null ? null : new SqlSession(conn, _queryCache, _monitor);
     }
 
     private SqlSession newSession()
     {
-        SqlSession session = new SqlSession(_dataManager.getConnection());
+        SqlSession session = openSession();
 
         _threadSessions.get().add(session);
 
@@ -221,6 +570,39 @@ public class SqlClient
         return sessions.get(sessions.size() - 1);
     }
 
+    /**
+     * @return The calling thread's session on a replica, for the selects made outside a transaction. The thread's own
+     *         session is used instead when there are no replicas, when it is in a transaction and, with
+     *         {@link DataManager#readYourWrites(boolean) read-your-writes}, once it has updated the database.
+     */
+    private SqlSession readSession()
+    {
+        if (!_dataManager.hasReplicas())
+            return session();
+
+        List<SqlSession> sessions = _threadSessions.get();
+
+        if (!sessions.isEmpty())
+        {
+            SqlSession session = sessions.get(sessions.size() - 1);
+
+            if (session.isInTransaction())
+                return session;
+
+            if (_dataManager.isReadYourWrites())
+                for (SqlSession written : sessions)
+                    if (written.hasWritten())
+                        return session;
+        }
+
+        SqlSession session = _readSessions.get();
+
+        if (session == null)
+            _readSessions.set(session = openReadSession());
+
+        return session;
+    }
+
     private void discardSession()
     {
         List<SqlSession> sessions = _threadSessions.get();
@@ -231,11 +613,30 @@ public class SqlClient
         sessions.remove(sessions.size() - 1).close();
     }
 
+    /**
+     * Opens a scope that owns its session explicitly, instead of binding it to the calling thread. The scope takes a
+     * connection on first use and returns it to the pool when it is closed, so it needs no {@link #endSession()}.
+     * 
+     * @see SqlScope
+     */
+    public SqlScope open()
+    {
+        return new SqlScope(this);
+    }
+
     /**
      * Ends all sessions created by the calling thread.
      */
     public void endSession()
     {
+        SqlSession readSession = _readSessions.get();
+
+        if (readSession != null)
+        {
+            _readSessions.remove();
+            readSession.close();
+        }
+
         List<SqlSession> sessions = _threadSessions.get();
         _threadSessions.remove();
 
@@ -256,27 +657,147 @@ public class SqlClient
      */
     public void setFetchSize(String stmtKey, int size)
     {
-        _stmts.get(stmtKey).setFetchSize(size);
+        stmt(stmtKey).setFetchSize(size);
     }
 
     public int selectInt(String stmtId, Object paramModel)
     {
-        return session().selectInt(stmt(stmtId), paramModel);
+        return readSession().selectInt(stmt(stmtId), paramModel);
+    }
+
+    /**
+     * @return The number of rows the provided select statement selects, counted by the database. Statements whose
+     *         rows are merged into models with collections, a one to many join for example, cannot be counted.
+     */
+    public int selectCount(String stmtId, Object paramModel)
+    {
+        return readSession().selectCount(stmt(stmtId), paramModel);
+    }
+
+    /**
+     * Selects a page of the rows the provided select statement selects, limited by the database as per the
+     * {@link #setDialect(Dialect) dialect}. The statement should order its rows so pages do not overlap. The database
+     * still reads the rows before the page, so deep pages get slower; prefer
+     * {@link #selectPageAfter(String, Object, Object, int)} for those. Pages are not cached.
+     * <p>
+     * The database pages rows, not models, so statements whose rows are merged into models with collections, a one to
+     * many join for example, cannot be paged; page a statement that selects the models only, and select their
+     * collections for the ids of the page.
+     * 
+     * @param offset
+     *            The number of rows before the page.
+     * @param limit
+     *            The maximum number of rows in the page.
+     */
+    public <T> List<T> selectPage(String stmtId, Object paramModel, int offset, int limit)
+    {
+        checkPage(offset, limit);
+
+        return readSession().selectPage(stmt(stmtId), paramModel, _dialect, offset, limit);
+    }
+
+    /**
+     * Selects a page of the rows that follow the provided value of the statement's <code>sort-key</code>, in the
+     * order of the sort key. Unlike {@link #selectPage(String, Object, int, int)}, every page costs the same however
+     * deep it is, provided the sort key column is unique and indexed. Pages are not cached. Like
+     * {@link #selectPage(String, Object, int, int)}, statements whose rows are merged into models with collections
+     * cannot be paged.
+     * 
+     * <pre><code>
+     * List&lt;Employee&gt; page = sqlClient.selectPageAfter(&quot;allEmployees&quot;, null, null, 100);
+     * while (!page.isEmpty())
+     * {
+     *     export(page);
+     *     page = sqlClient.selectPageAfter(&quot;allEmployees&quot;, null, page.get(page.size() - 1).getId(), 100);
+     * }
+     * </code></pre>
+     * 
+     * @param afterKey
+     *            The sort key value of the last row of the previous page, null for the first page.
+     * @param limit
+     *            The maximum number of rows in the page.
+     */
+    public <T> List<T> selectPageAfter(String stmtId, Object paramModel, Object afterKey, int limit)
+    {
+        checkPage(0, limit);
+
+        return readSession().selectPageAfter(stmt(stmtId), paramModel, _dialect, afterKey, limit);
+    }
+
+    private void checkPage(int offset, int limit)
+    {
+        if (offset < 0)
+            throw new IllegalArgumentException("Offset must not be negative - " + offset);
+
+        if (limit <= 0)
+            throw new IllegalArgumentException("Limit must be positive - " + limit);
     }
 
     public <T> T selectOne(String stmtId, Object paramModel)
     {
-        return session().<T>selectOne(stmt(stmtId), paramModel);
+        return readSession().<T>selectOne(stmt(stmtId), paramModel);
     }
 
     public <T> List<T> select(String stmtId, Object paramModel)
     {
-        return session().select(stmt(stmtId), paramModel);
+        return readSession().select(stmt(stmtId), paramModel);
     }
 
     public <T> List<T> select(String stmtId, Object paramModel, RowCallback<T> callback)
     {
-        return session().select(stmt(stmtId), paramModel, callback);
+        return readSession().select(stmt(stmtId), paramModel, callback);
+    }
+
+    /**
+     * Executes the provided select statement and returns a cursor over the selected rows. Unlike
+     * {@link #select(String, Object)}, rows are mapped lazily as the cursor is advanced, so the memory used does not
+     * grow with the number of rows selected. The cursor must be closed when done, but it is also closed when it is
+     * exhausted or when the session ends. Rows that are merged into one model, as described in {@link SqlCursor}, must
+     * be ordered by the model id.
+     * 
+     * @see SqlCursor
+     */
+    public <T> SqlCursor<T> iterate(String stmtId, Object paramModel)
+    {
+        return iterate(stmtId, paramModel, null);
+    }
+
+    public <T> SqlCursor<T> iterate(String stmtId, Object paramModel, RowCallback<T> callback)
+    {
+        return readSession().iterate(stmt(stmtId), paramModel, callback);
+    }
+
+    /**
+     * Executes the provided select statement and passes each selected row to the provided handler as it is fetched.
+     * The underlying result set is closed when this method returns.
+     * 
+     * @return The number of rows handled.
+     */
+    public <T> int forEach(String stmtId, Object paramModel, RowHandler<T> handler)
+    {
+        SqlCursor<T> cursor = iterate(stmtId, paramModel);
+
+        try
+        {
+            int count = 0;
+
+            for (T model : cursor)
+            {
+                handler.handle(model);
+                count++;
+            }
+
+            return count;
+        }
+        catch (Exception e)
+        {
+            throw AggregateException.with(e, "Unable to handle rows for " + stmtId + ", Parameter: "
+                    + paramModel);
+        }
+        finally
+        {
+            cursor.close();
+        }
     }
 
     public void addBatch(String stmtId, Object param)
@@ -289,24 +810,338 @@ public class SqlClient
         return session().executeBatch(stmt(stmtId));
     }
 
+    /**
+     * Returns a sink that writes rows with the provided update statement in batches of the provided size. The sink
+     * joins the current transaction, if any, and otherwise runs in its own; it must be closed when done.
+     * 
+     * @see SqlBatch
+     */
+    public SqlBatch batch(String stmtId, int batchSize)
+    {
+        return new SqlBatch(session(), stmt(stmtId), batchSize);
+    }
+
+    /**
+     * Executes the provided update statement. When the statement has a <code>bulk-size</code> and the parameter is a
+     * collection, the statement is executed for every model in the collection, <code>bulk-size</code> models per
+     * round trip: single row inserts, <code>insert into T (c1, c2) values (#C1#, #C2#)</code>, are rewritten to
+     * insert that many rows, <code>values (?, ?),(?, ?)...</code>, and other statements are executed in JDBC batches.
+     * Keep <code>bulk-size</code> times the number of parameters under the driver's parameter limit.
+     * 
+     * @return The number of rows updated.
+     */
     public int executeUpdate(String stmtId, Object param)
     {
         return session().executeUpdate(stmt(stmtId), param);
     }
 
+    /**
+     * Sets the number of threads that run the asynchronous operations; defaults to the maximum size of the
+     * connection pool when the data source is a {@link SimpleDataSource} and to 10 otherwise. Must be called before
+     * the first asynchronous operation.
+     * <p>
+     * Asynchronous selects never wait for the pool, but asynchronous updates do, as they need a transaction of their
+     * own: when every connection is held by threads that wait for their updates, the updates time out. Size the pool
+     * above the number of threads that hold a connection while they wait by as many connections as the updates should
+     * run on.
+     */
+    public void setAsyncThreads(int threads)
+    {
+        _asyncThreads = threads;
+    }
+
+    synchronized ExecutorService executor()
+    {
+        if (_executor == null)
+        {
+            int threads = _asyncThreads > 0 ? _asyncThreads : _dataManager.maxConnections();
+
+            if (threads <= 0)
+                threads = 10;
+
+            final String name = "SqlClient-" + _dataManager.dbId() + "-";
+
+            // Tasks beyond the queue run on the submitting thread, which slows submitters down to the database's pace
+            _executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(threads * 64), new ThreadFactory()
+                    {
+                        private AtomicInteger _count = new AtomicInteger();
+
+                        public Thread newThread(Runnable task)
+                        {
+                            Thread thread = new Thread(task, name + _count.incrementAndGet());
+                            thread.setDaemon(true);
+
+                            return thread;
+                        }
+                    }, new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+
+        return _executor;
+    }
+
+    /**
+     * Runs the provided select statement on a pooled thread, in a session of its own, and returns the future rows.
+     * Independent selects submitted together run concurrently, each on its own connection, so they take as long as
+     * the slowest of them. The calling thread's sessions and transaction are not used; the select sees only committed
+     * data.
+     * <p>
+     * Like the selects of a {@link Prefetch}, the select only runs ahead when a read connection is free at once and a
+     * pooled thread is free to run it. Otherwise {@link Future#get()} runs it on the calling thread's session instead,
+     * so threads that hold connections while they wait for their selects never wait on each other for the pool.
+     */
+    public <T> Future<List<T>> selectAsync(String stmtId, Object paramModel)
+    {
+        AsyncSelect<T> select = new AsyncSelect<T>(stmt(stmtId), paramModel);
+        select._future = executor().submit(select);
+
+        return select;
+    }
+
+    /**
+     * The future rows of {@link SqlClient#selectAsync(String, Object)}. The pooled thread returns null when it could
+     * not get a connection right away, or when the executor is saturated and runs the select on the submitting thread;
+     * the select is then run by {@link #get()} on the session of the thread that waits for the rows.
+     */
+    private class AsyncSelect<T> implements Callable<List<T>>, Future<List<T>>
+    {
+        private final SqlStmt   _sqlStmt;
+        private final Object    _paramModel;
+        private final Thread    _caller = Thread.currentThread();
+        private Future<List<T>> _future;
+        private List<T>         _rows;
+
+        AsyncSelect(SqlStmt sqlStmt, Object paramModel)
+        {
+            _sqlStmt = sqlStmt;
+            _paramModel = paramModel;
+        }
+
+        public List<T> call()
+        {
+            if (Thread.currentThread() == _caller)
+                return null;
+
+            SqlSession session = tryOpenReadSession();
+
+            if (session == null)
+                return null;
+
+            try
+            {
+                return session.select(_sqlStmt, _paramModel);
+            }
+            finally
+            {
+                session.close();
+            }
+        }
+
+        public List<T> get() throws InterruptedException, ExecutionException
+        {
+            return rows(_future.get());
+        }
+
+        public List<T> get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+            TimeoutException
+        {
+            return rows(_future.get(timeout, unit));
+        }
+
+        private synchronized List<T> rows(List<T> rows) throws ExecutionException
+        {
+            if (rows != null)
+                return rows;
+
+            if (_rows == null)
+            {
+                try
+                {
+                    _rows = readSession().select(_sqlStmt, _paramModel);
+                }
+                catch (RuntimeException e)
+                {
+                    throw new ExecutionException(e);
+                }
+            }
+
+            return _rows;
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            return _future.cancel(mayInterruptIfRunning);
+        }
+
+        public boolean isCancelled()
+        {
+            return _future.isCancelled();
+        }
+
+        public boolean isDone()
+        {
+            return _future.isDone();
+        }
+    }
+
+    /**
+     * @return A new bundle of select statements that run concurrently, each on a read connection of its own when one
+     *         is free right away.
+     * @see Prefetch
+     */
+    public Prefetch prefetch()
+    {
+        return new Prefetch(this);
+    }
+
+    /**
+     * Runs the provided update statement on a pooled thread, in a transaction of its own, and returns the future
+     * number of rows updated. The pooled thread waits for a connection of its own, see
+     * {@link #setAsyncThreads(int)}.
+     * 
+     * @see #selectAsync(String, Object)
+     */
+    public Future<Integer> executeUpdateAsync(final String stmtId, final Object param)
+    {
+        final SqlStmt sqlStmt = stmt(stmtId);
+
+        return executor().submit(new Callable<Integer>()
+        {
+            public Integer call()
+            {
+                SqlSession session = openSession();
+
+                try
+                {
+                    session.startTransaction();
+
+                    int count = session.executeUpdate(sqlStmt, param);
+                    session.commit();
+
+                    return count;
+                }
+                finally
+                {
+                    try
+                    {
+                        session.endTransaction();
+                    }
+                    finally
+                    {
+                        session.close();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops the threads that run the asynchronous operations, after the operations already submitted are done, and
+     * stops checking the schema files for changes.
+     */
+    public synchronized void shutdown()
+    {
+        if (_executor != null)
+            _executor.shutdown();
+
+        _executor = null;
+
+        setReloadInterval(0);
+    }
+
+    /**
+     * Sets the policy that decides which failed transactions are retried by {@link #transact(SqlTask)}.
+     */
+    public SqlClient setRetryPolicy(RetryPolicy retryPolicy)
+    {
+        _retryPolicy = retryPolicy;
+
+        return this;
+    }
+
+    public RetryPolicy retryPolicy()
+    {
+        return _retryPolicy;
+    }
+
+    /**
+     * Sets the monitor told about every statement run by sessions opened from now on, {@link SqlStats} for example;
+     * null, the default, to not time statements at all.
+     */
+    public SqlClient setMonitor(SqlMonitor monitor)
+    {
+        _monitor = monitor;
+
+        return this;
+    }
+
+    public SqlMonitor monitor()
+    {
+        return _monitor;
+    }
+
+    /**
+     * Sets how the database limits the rows of a page, {@link Dialect#LIMIT_OFFSET} by default.
+     */
+    public SqlClient setDialect(Dialect dialect)
+    {
+        _dialect = dialect;
+
+        return this;
+    }
+
+    public Dialect dialect()
+    {
+        return _dialect;
+    }
+
     /**
      * This method will run the provided task as a unit of work within a DB
-     * transaction. This method will try to recover from broken DB connections
-     * and throws an {@link Exception} when the recovery fails.
+     * transaction. Transactions that fail with a failure the
+     * {@link #setRetryPolicy(RetryPolicy) retry policy} considers transient,
+     * such as a deadlock, or whose connection breaks are rolled back and run
+     * again, on a new connection when the old one is broken, until the policy
+     * gives up. The task must therefore be safe to run more than once.
+     * <p>
+     * A task run within another task is {@link Propagation#NESTED nested} in
+     * the enclosing transaction.
      * 
-     * @throws Error
-     *             when the DB connection is broken and recovery attempts fail.
+     * @throws AggregateException
+     *             when the task fails and is not retried or the retries fail.
      */
     public <V> V transact(SqlTask<V> task)
     {
+        return transact(task, Propagation.NESTED);
+    }
+
+    /**
+     * Runs the provided task as {@link #transact(SqlTask)} does, relating it
+     * to the transaction in progress, if any, as the provided propagation
+     * says.
+     */
+    public <V> V transact(SqlTask<V> task, Propagation propagation)
+    {
+        SqlSession session = session();
+
+        if (propagation == Propagation.NESTED && session.isInTransaction() && session.supportsSavepoints())
+            return session.transactNested(task);
+
         try
         {
-            return transact(task, 1);
+            return transact(task, _retryPolicy, new Sessions()
+            {
+                public SqlSession session()
+                {
+                    SqlSession session = SqlClient.this.session();
+
+                    return session.isInTransaction() ? newSession() : session;
+                }
+
+                public void discard(SqlSession session)
+                {
+                    discardSession();
+                }
+            });
         }
         finally
         {
@@ -316,55 +1151,100 @@ public class SqlClient
         }
     }
 
-    private <V> V transact(SqlTask<V> task, int attempt)
+    /**
+     * Where {@link SqlClient#transact(SqlTask, RetryPolicy, Sessions)} gets the session of every attempt, and gives
+     * back a session whose connection broke.
+     */
+    interface Sessions
     {
-        SqlSession session = session();
-
-        if (session.isInTransaction())
-            session = newSession();
+        SqlSession session();
 
-        AggregateException te = null;
-        boolean committed = false;
+        void discard(SqlSession session);
+    }
 
-        try
+    /**
+     * Runs the provided task in a new transaction, on the session of the provided sessions, until it commits or the
+     * provided policy gives up. A failure to end the transaction is chained to the task's failure rather than
+     * replacing it.
+     */
+    <V> V transact(SqlTask<V> task, RetryPolicy policy, Sessions sessions)
+    {
+        for (int attempt = 1;; attempt++)
         {
-            session.startTransaction();
-            V result = task.execute();
-            session.commit();
+            SqlSession session = sessions.session();
 
-            committed = true;
+            Exception failure = null;
+            boolean committed = false, broken = false;
+            V result = null;
+
+            try
+            {
+                session.startTransaction();
+                result = task.execute();
+                session.commit();
+
+                committed = true;
+            }
+            catch (Exception e)
+            {
+                failure = e;
+            }
 
-            return result;
-        }
-        catch (Exception e)
-        {
-            throw te = AggregateException.with(e, "DB transaction failed.");
-        }
-        finally
-        {
             try
             {
                 session.endTransaction();
             }
             catch (Exception e)
             {
+                broken = true;
+
+                failure = failure == null ? e : AggregateException.with(failure, e.toString());
+
+                sessions.discard(session);
+            }
+
+            if (committed)
+            {
+                if (attempt > 1)
+                    policy.succeededAfterRetry();
+
+                return result;
+            }
+
+            boolean retryable = broken || policy.isRetryable(failure);
+
+            if (!retryable || attempt >= policy.getMaxAttempts())
+            {
+                if (attempt > 1 || retryable)
+                    policy.gaveUp();
+
                 if (attempt > 1)
-                    throw AggregateException.with(AggregateException.with(te, e.toString()),
+                    throw AggregateException.with(failure, "DB transaction failed after " + attempt + " attempts.");
+
+                if (broken)
+                    throw AggregateException.with(failure,
                             "DB transaction error. The database or the network is possibly down.");
 
-                discardSession();
+                throw AggregateException.with(failure, "DB transaction failed.");
+            }
 
-                try
-                {
-                    if (!committed)
-                        transact(task, 2);
-                }
-                catch (Exception e2)
-                {
-                    throw AggregateException.with(AggregateException.with(AggregateException.with(
-                            te, e.toString()), e2.toString()),
-                            "DB transaction failed after two attempts.");
-                }
+            policy.retrying();
+
+            long backoff = policy.backoffMillis(attempt + 1);
+
+            if (_logger.isWarnEnabled())
+                _logger.warn("DB transaction failed on attempt " + attempt + ", retrying in " + backoff + " ms: "
+                    + failure);
+
+            try
+            {
+                Thread.sleep(backoff);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+
+                throw AggregateException.with(failure, "DB transaction retry interrupted.");
             }
         }
     }
@@ -0,0 +1,214 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package jBlocks.server.sql;
+
+import jBlocks.server.AggregateException;
+
+import java.io.Closeable;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A forward only iterator over the rows selected by a statement. Rows are mapped one at a time, as they are
+ * requested, so the memory used stays the same regardless of the number of rows selected; use the statement's
+ * <code>.fetch-size</code> to control how many rows the driver buffers. The cursor holds on to its statement and
+ * result set until it is either exhausted or closed, so always close it in a finally block.
+ * <p>
+ * Like {@link SqlClient#select(String, Object)}, the cursor merges the rows that share the id of a
+ * {@link jBlocks.shared.domain.BaseDomainObject} model into one model, the parent of a one to many join for example,
+ * but only when the rows follow each other; the statement must be ordered by the model id, or a model may be returned
+ * more than once, each time with part of its collections.
+ *
+ * <pre><code>
+ * SqlCursor&lt;Employee&gt; cursor = sqlClient.iterate(&quot;allEmployees&quot;, null);
+ * try
+ * {
+ *     for (Employee emp : cursor)
+ *         export(emp);
+ * }
+ * finally
+ * {
+ *     cursor.close();
+ * }
+ * </code></pre>
+ *
+ * @author hkrishna
+ * @see SqlClient#iterate(String, Object)
+ * @see SqlClient#forEach(String, Object, RowHandler)
+ */
+public class SqlCursor<T> implements Iterator<T>, Iterable<T>, Closeable
+{
+    private SqlSession        _session;
+    private SqlStmt           _sqlStmt;
+    private PreparedStatement _stmt;
+    private ResultSet         _result;
+    private RowMapper<T>      _rowMapper;
+    private RowCallback<T>    _rowCallback;
+    private T                 _header;
+    private Boolean           _hasNext;
+    private SqlExecution      _execution;
+    private int               _rows;
+    private Exception         _failure;
+
+    SqlCursor(SqlSession session, SqlStmt sqlStmt, PreparedStatement stmt, ResultSet result, RowCallback<T> callback,
+        SqlExecution execution) throws SQLException
+    {
+        _session = session;
+        _sqlStmt = sqlStmt;
+        _stmt = stmt;
+        _result = result;
+        _rowCallback = callback;
+        _execution = execution;
+        _rowMapper = sqlStmt.getRowMapper(result);
+
+        if (_rowMapper.isListModel())
+            _header = ResultBuilder.buildListHeader(sqlStmt, _rowMapper);
+    }
+
+    public Iterator<T> iterator()
+    {
+        return this;
+    }
+
+    public boolean hasNext()
+    {
+        if (_header != null)
+            return true;
+
+        if (_hasNext != null)
+            return _hasNext.booleanValue();
+
+        if (_result == null)
+            return false;
+
+        return fetch();
+    }
+
+    /**
+     * Moves to the next row, closing the cursor when there are no more rows.
+     */
+    private boolean fetch()
+    {
+        try
+        {
+            if (_execution != null)
+                _execution.mapped();
+
+            _hasNext = Boolean.valueOf(_result.next());
+
+            if (_execution != null)
+                _execution.fetched();
+        }
+        catch (Exception e)
+        {
+            _failure = e;
+            close();
+
+            throw AggregateException.with(e, "Unable to fetch next row " + _sqlStmt);
+        }
+
+        if (!_hasNext.booleanValue())
+            close();
+
+        return _hasNext.booleanValue();
+    }
+
+    public T next()
+    {
+        if (!hasNext())
+            throw new NoSuchElementException();
+
+        if (_header != null)
+        {
+            T header = _header;
+            _header = null;
+
+            return header;
+        }
+
+        _hasNext = null;
+        _rows++;
+
+        try
+        {
+            if (!_rowMapper.isIdentityAware())
+                return _rowMapper.map(_result, _rowCallback);
+
+            return mapModel();
+        }
+        catch (Exception e)
+        {
+            _failure = e;
+            close();
+
+            throw AggregateException.with(e, "Unable to map row " + _sqlStmt);
+        }
+    }
+
+    /**
+     * Maps the current row and merges the rows that follow it with the same model id into the same model. The cursor
+     * is left on the first row of the next model, if any.
+     */
+    private T mapModel() throws Exception
+    {
+        RowMapper.Identities identities = new RowMapper.Identities();
+
+        Object id = _rowMapper.id(_result);
+        T model = _rowMapper.map(_result, _rowCallback, identities);
+
+        if (id == null)
+            return model;
+
+        while (fetch())
+        {
+            if (!id.equals(_rowMapper.id(_result)))
+                return model;
+
+            _rows++;
+            _rowMapper.map(_result, _rowCallback, identities);
+        }
+
+        return model;
+    }
+
+    public void remove()
+    {
+        throw new UnsupportedOperationException("Rows cannot be removed from a cursor.");
+    }
+
+    /**
+     * Closes the underlying result set and statement. Calling this method more than once has no effect.
+     */
+    public void close()
+    {
+        if (_result == null)
+            return;
+
+        try
+        {
+            _session.closeCursor(this, _result, _stmt);
+        }
+        finally
+        {
+            _result = null;
+            _stmt = null;
+
+            _session.endExecution(_execution, _failure == null ? _rows : -1, _failure);
+        }
+    }
+}
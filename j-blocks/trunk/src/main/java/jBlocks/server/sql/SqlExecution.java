@@ -0,0 +1,171 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package jBlocks.server.sql;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One execution of a statement, as reported to a {@link SqlMonitor}, with the time, in nanoseconds, spent in each of
+ * its phases:
+ * <ul>
+ * <li>prepare: getting the JDBC statement, from the statement cache when it was prepared before;</li>
+ * <li>execute: binding the parameters and running the statement;</li>
+ * <li>fetch: moving the result set from row to row, which is when drivers fetch more rows from the database;</li>
+ * <li>map: turning the rows into models.</li>
+ * </ul>
+ * Updates only prepare and execute. Selects that do not map models, {@link SqlClient#selectInt(String, Object)} for
+ * example, report their reading of the rows as mapping.
+ *
+ * @author hkrishna
+ */
+public class SqlExecution
+{
+    private final SqlStmt _sqlStmt;
+    private final Object  _param;
+    private long          _mark;
+    private long          _prepareNanos, _executeNanos, _fetchNanos, _mapNanos;
+    private int           _rows = -1;
+    private Throwable     _failure;
+
+    SqlExecution(SqlStmt sqlStmt, Object param)
+    {
+        _sqlStmt = sqlStmt;
+        _param = param;
+        _mark = System.nanoTime();
+    }
+
+    private long lap()
+    {
+        long now = System.nanoTime(), lap = now - _mark;
+        _mark = now;
+
+        return lap;
+    }
+
+    void prepared()
+    {
+        _prepareNanos += lap();
+    }
+
+    void executed()
+    {
+        _executeNanos += lap();
+    }
+
+    void fetched()
+    {
+        _fetchNanos += lap();
+    }
+
+    void mapped()
+    {
+        _mapNanos += lap();
+    }
+
+    void end(int rows, Throwable failure)
+    {
+        _rows = rows;
+        _failure = failure;
+    }
+
+    public String getStmtId()
+    {
+        return _sqlStmt.getId();
+    }
+
+    public SqlStmt getSqlStmt()
+    {
+        return _sqlStmt;
+    }
+
+    public Object getParam()
+    {
+        return _param;
+    }
+
+    /**
+     * @return The values bound to the statement's parameters by their paths, or null when the statement was executed
+     *         for a collection of models, in bulk.
+     */
+    public Map<String, Object> getParamValues()
+    {
+        if (_param instanceof Collection && _sqlStmt.getBulkSize() > 0)
+            return null;
+
+        List<SqlParam> params = _sqlStmt.getParams();
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+
+        if (params != null)
+            for (SqlParam param : params)
+                values.put(param.getPath(), param.getValue(_param));
+
+        return values;
+    }
+
+    /**
+     * @return The number of rows selected or updated, or -1 when the execution failed.
+     */
+    public int getRows()
+    {
+        return _rows;
+    }
+
+    /**
+     * @return The exception the execution failed with, or null when it succeeded.
+     */
+    public Throwable getFailure()
+    {
+        return _failure;
+    }
+
+    public long getPrepareNanos()
+    {
+        return _prepareNanos;
+    }
+
+    public long getExecuteNanos()
+    {
+        return _executeNanos;
+    }
+
+    public long getFetchNanos()
+    {
+        return _fetchNanos;
+    }
+
+    public long getMapNanos()
+    {
+        return _mapNanos;
+    }
+
+    public long getTotalNanos()
+    {
+        return _prepareNanos + _executeNanos + _fetchNanos + _mapNanos;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder b = new StringBuilder(getStmtId()).append(", Rows: ").append(_rows);
+        b.append(", Prepare/execute/fetch/map (us): ").append(_prepareNanos / 1000).append('/');
+        b.append(_executeNanos / 1000).append('/').append(_fetchNanos / 1000).append('/').append(_mapNanos / 1000);
+
+        return _failure == null ? b.toString() : b.append(", Failure: ").append(_failure).toString();
+    }
+}
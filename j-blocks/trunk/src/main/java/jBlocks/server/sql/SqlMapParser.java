@@ -17,30 +17,75 @@ package jBlocks.server.sql;
 import jBlocks.server.Utils;
 import jBlocks.shared.SharedUtils;
 
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
+ * Parses the statements of a sql properties file. The properties are scanned up front, for the statement keys and the
+ * <code>.class</code> and <code>.select-clause</code> of each map, but a statement's SQL is only parsed when the
+ * statement is first asked for, so that loading a large schema costs little until its statements are used. The parsed
+ * SQL can be saved to and restored from a {@link SchemaCache}, which skips parsing altogether.
+ *
  * @author hkrishna
  */
 class SqlMapParser
 {
+    /**
+     * What parsing a statement's SQL yields, as paths and strings that the schema cache can keep.
+     */
+    static class ParsedSql
+    {
+        String       _stmt;
+        List<String> _fields;
+        List<String> _params;
+        List<String> _dynParams;
+        List<String> _chunks;
+        List<String> _bulkInsert;
+        Set<String>  _tables;
+    }
+
     private final String         CLASS         = ".class";
     private final String         SELECT_CLAUSE = ".select-clause";
     private final String         FETCH_SIZE    = ".fetch-size";
+    private final String         BULK_SIZE     = ".bulk-size";
+    private final String         CACHE         = ".cache";
+    private final String         CACHE_SIZE    = ".cache-size";
+    private final String         TABLES        = ".tables";
+    private final String         SHARD_KEY     = ".shard-key";
+    private final String         SORT_KEY      = ".sort-key";
     private final String         SQL           = ".sql";
     private final String         DYNAMIC_SQL   = ".dyn-sql";
     private final String         SELECT        = "select ";
     private final String         FROM          = " from ";
 
-    private Map<String, SqlStmt> _sqlStmts     = new HashMap<String, SqlStmt>();
-    private Map<String, SqlMap>  _sqlMaps      = new HashMap<String, SqlMap>();
+    private static final Pattern     TOKEN           = Pattern.compile("[,()]|[^\\s,()]+");
+    private static final Set<String> TABLE_PREFIXES  = new HashSet<String>(Arrays.asList("from", "join", "into",
+                                                         "update"));
+    private static final Set<String> CLAUSE_KEYWORDS = new HashSet<String>(Arrays.asList("where", "group", "order",
+                                                         "having", "union", "join", "inner", "left", "right", "full",
+                                                         "cross", "outer", "on", "for", "limit"));
 
-    Map<String, SqlStmt> parse(Properties sqlProps)
+    private Properties             _sqlProps;
+    private List<String>           _stmtKeys  = new ArrayList<String>();
+    private Map<String, SqlMap>    _sqlMaps   = new HashMap<String, SqlMap>();
+    private Map<String, ParsedSql> _parsedSql = new HashMap<String, ParsedSql>();
+    private Map<String, SqlStmt>   _sqlStmts  = new ConcurrentHashMap<String, SqlStmt>();
+
+    SqlMapParser(Properties sqlProps)
     {
+        _sqlProps = sqlProps;
+
         for (Object keyObj : sqlProps.keySet())
         {
             String key = (String) keyObj, keylc = key.toLowerCase();
@@ -53,31 +98,235 @@ class SqlMapParser
 
             else if (keylc.endsWith(SQL) || keylc.endsWith(DYNAMIC_SQL))
             {
-                SqlStmt sqlStmt = newSqlStmt(key);
-                sqlStmt.setFetchSize(Utils.getIntProperty(sqlProps, key + FETCH_SIZE, 0));
-
-                String sql = sqlProps.getProperty(key);
-
-                if (sql.substring(0, 7).equalsIgnoreCase(SELECT))
-                    parseSelectSql(sql, sqlStmt);
-                else
-                    parseUpdateSql(sql, sqlStmt);
+                getSqlMap(key);
+                _stmtKeys.add(key);
             }
         }
+    }
+
+    List<String> getStmtKeys()
+    {
+        return _stmtKeys;
+    }
+
+    /**
+     * Parses all statements.
+     */
+    Map<String, SqlStmt> parse()
+    {
+        for (String key : _stmtKeys)
+            parse(key);
 
         return _sqlStmts;
     }
 
-    private SqlStmt newSqlStmt(String key)
+    /**
+     * @return The statement with the provided key, parsed on first call.
+     */
+    SqlStmt parse(String key)
+    {
+        SqlStmt sqlStmt = _sqlStmts.get(key);
+
+        if (sqlStmt != null)
+            return sqlStmt;
+
+        synchronized (this)
+        {
+            sqlStmt = _sqlStmts.get(key);
+
+            if (sqlStmt != null)
+                return sqlStmt;
+
+            ParsedSql parsed = _parsedSql.get(key);
+
+            if (parsed == null)
+                _parsedSql.put(key, parsed = parseSql(key));
+
+            _sqlStmts.put(key, sqlStmt = newSqlStmt(key, parsed));
+
+            return sqlStmt;
+        }
+    }
+
+    /**
+     * @return The statement with the provided key if it has been parsed, null otherwise.
+     */
+    SqlStmt getParsed(String key)
+    {
+        return _sqlStmts.get(key);
+    }
+
+    /**
+     * @return True when the statement with the provided key has the same properties, and its map the same class and
+     *         select clause, in this and the provided parser.
+     */
+    boolean isSame(String key, SqlMapParser other)
+    {
+        for (String suffix : new String[] { "", FETCH_SIZE, BULK_SIZE, CACHE, CACHE_SIZE, TABLES, SHARD_KEY, SORT_KEY })
+            if (!equal(_sqlProps.getProperty(key + suffix), other._sqlProps.getProperty(key + suffix)))
+                return false;
+
+        SqlMap sqlMap = getSqlMap(key), otherMap = other.getSqlMap(key);
+
+        return equal(sqlMap.getClassName(), otherMap.getClassName())
+            && equal(sqlMap.getSelectClause(), otherMap.getSelectClause());
+    }
+
+    private static boolean equal(String s1, String s2)
+    {
+        return s1 == null ? s2 == null : s1.equals(s2);
+    }
+
+    /**
+     * Takes over the statement with the provided key from the provided parser, where it is the same, so that the
+     * statement keeps its parsed SQL and its identity, and with it its cached rows, when its schema is reloaded.
+     */
+    synchronized void adopt(String key, SqlMapParser other)
+    {
+        SqlStmt sqlStmt = other._sqlStmts.get(key);
+
+        if (sqlStmt != null)
+            _sqlStmts.put(key, sqlStmt);
+
+        ParsedSql parsed;
+
+        synchronized (other)
+        {
+            parsed = other._parsedSql.get(key);
+        }
+
+        if (parsed != null)
+            _parsedSql.put(key, parsed);
+    }
+
+    /**
+     * @return The SHA-1 hash of the properties, which changes whenever any property changes.
+     */
+    String getHash()
+    {
+        List<String> lines = new ArrayList<String>();
+
+        for (Object key : _sqlProps.keySet())
+            lines.add(key + "=" + _sqlProps.getProperty((String) key));
+
+        Collections.sort(lines);
+
+        StringBuilder b = new StringBuilder();
+
+        for (String line : lines)
+            b.append(line).append('\n');
+
+        try
+        {
+            return Utils.getSHA1(b.toString().getBytes("UTF-8"));
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new Error(e);
+        }
+    }
+
+    /**
+     * @return The parsed SQL of all statements, parsing the statements not parsed yet.
+     */
+    synchronized Map<String, ParsedSql> getParsedSql()
+    {
+        for (String key : _stmtKeys)
+            if (!_parsedSql.containsKey(key))
+                _parsedSql.put(key, parseSql(key));
+
+        return new HashMap<String, ParsedSql>(_parsedSql);
+    }
+
+    /**
+     * Provides the parsed SQL of the statements, restored from a {@link SchemaCache}, so they are not parsed again.
+     */
+    synchronized void setParsedSql(Map<String, ParsedSql> parsedSql)
+    {
+        _parsedSql.putAll(parsedSql);
+    }
+
+    private ParsedSql parseSql(String key)
+    {
+        ParsedSql parsed = new ParsedSql();
+
+        String sql = _sqlProps.getProperty(key);
+        String tables = _sqlProps.getProperty(key + TABLES);
+
+        parsed._tables = tables == null ? parseTables(sql) : normalizeTables(tables.split(","));
+
+        if (sql.substring(0, 7).equalsIgnoreCase(SELECT))
+            parseSelectSql(sql, parsed);
+        else
+            parseUpdateSql(sql, parsed, Utils.getIntProperty(_sqlProps, key + BULK_SIZE, 0));
+
+        return parsed;
+    }
+
+    private SqlStmt newSqlStmt(String key, ParsedSql parsed)
     {
         SqlStmt sqlStmt = new SqlStmt();
+        sqlStmt.setId(key);
         sqlStmt.setSqlMap(getSqlMap(key));
 
-        _sqlStmts.put(key, sqlStmt);
+        sqlStmt.setFetchSize(Utils.getIntProperty(_sqlProps, key + FETCH_SIZE, 0));
+        sqlStmt.setBulkSize(Utils.getIntProperty(_sqlProps, key + BULK_SIZE, 0));
+        sqlStmt.setCacheTtl(Utils.getIntProperty(_sqlProps, key + CACHE, 0));
+        sqlStmt.setCacheSize(Utils.getIntProperty(_sqlProps, key + CACHE_SIZE, 100));
+        sqlStmt.setShardKey(_sqlProps.getProperty(key + SHARD_KEY));
+        sqlStmt.setSortKey(_sqlProps.getProperty(key + SORT_KEY));
+        sqlStmt.setTables(parsed._tables);
+
+        if (parsed._fields != null)
+        {
+            List<SqlField> fields = new ArrayList<SqlField>(parsed._fields.size());
+
+            for (String field : parsed._fields)
+                fields.add(new SqlField(field));
+
+            sqlStmt.setFields(fields);
+        }
+
+        List<SqlParam> dynParams = sqlParams(parsed._dynParams);
+
+        sqlStmt.setParams(sqlParams(parsed._params));
+        sqlStmt.setDynamicParams(dynParams);
+
+        String stmt = parsed._stmt;
+        SqlTemplate template = dynParams == null ? null : new SqlTemplate(parsed._chunks, dynParams);
+        String selectClause = getSqlMap(key).getSelectClause();
+
+        // The map's select clause replaces the statement's select keyword
+        if (selectClause != null && parsed._fields != null)
+        {
+            stmt = selectClause + stmt.substring(SELECT.length() - 1);
+
+            if (template != null)
+                template = template.replaceHead(SELECT.length() - 1, selectClause);
+        }
+
+        sqlStmt.setTemplate(template);
+        sqlStmt.setStmt(stmt);
+
+        if (parsed._bulkInsert != null)
+            sqlStmt.setBulkInsert(parsed._bulkInsert.get(0), parsed._bulkInsert.get(1), parsed._bulkInsert.get(2));
 
         return sqlStmt;
     }
 
+    private List<SqlParam> sqlParams(List<String> paths)
+    {
+        if (paths == null)
+            return null;
+
+        List<SqlParam> params = new ArrayList<SqlParam>(paths.size());
+
+        for (String path : paths)
+            params.add(new SqlParam(path));
+
+        return params;
+    }
+
     private SqlMap getSqlMap(String key)
     {
         key = key.substring(0, key.indexOf('.'));
@@ -92,7 +341,7 @@ class SqlMapParser
         return sqlMap;
     }
 
-    private void parseSelectSql(String sql, SqlStmt sqlStmt)
+    private void parseSelectSql(String sql, ParsedSql parsed)
     {
         int fromIdx = sql.toLowerCase().indexOf(FROM);
 
@@ -100,30 +349,95 @@ class SqlMapParser
 
         StringBuffer stmtBuf = new StringBuffer(selStr);
 
-        parseFields(sqlStmt, selStr.substring(7));
-        parseParams(sqlStmt, sql.substring(fromIdx), stmtBuf);
+        parseFields(parsed, selStr.substring(7));
+        parseParams(parsed, sql.substring(fromIdx), stmtBuf);
+
+        parsed._stmt = stmtBuf.toString();
+    }
+
+    /**
+     * Finds the tables that follow <code>from</code>, including comma separated lists, <code>join</code>,
+     * <code>into</code> and <code>update</code>. A table named by a placeholder, or a statement where no table is
+     * found, is reported as {@link QueryCache#ANY_TABLE}.
+     */
+    private Set<String> parseTables(String sql)
+    {
+        List<String> tokens = new ArrayList<String>();
+        Matcher matcher = TOKEN.matcher(sql);
+
+        while (matcher.find())
+            tokens.add(matcher.group());
+
+        List<String> tables = new ArrayList<String>();
+
+        for (int i = 0; i < tokens.size() - 1; i++)
+        {
+            String token = tokens.get(i).toLowerCase();
+
+            if (!TABLE_PREFIXES.contains(token) || tokens.get(i + 1).equals("("))
+                continue;
+
+            tables.add(tokens.get(++i));
+
+            if (!token.equals("from"))
+                continue;
 
-        sqlStmt.setStmt(stmtBuf.toString());
+            // Comma separated tables, each with an optional alias
+            while (i + 1 < tokens.size())
+            {
+                int next = i + 1;
+
+                if (!tokens.get(next).equals(",") && !CLAUSE_KEYWORDS.contains(tokens.get(next).toLowerCase()))
+                    next++;
+
+                if (next + 1 >= tokens.size() || !tokens.get(next).equals(",") || tokens.get(next + 1).equals("("))
+                    break;
+
+                tables.add(tokens.get(i = next + 1));
+            }
+        }
+
+        if (tables.isEmpty())
+            tables.add("@");
+
+        return normalizeTables(tables.toArray(new String[tables.size()]));
     }
 
-    private void parseFields(SqlStmt sqlStmt, String cols)
+    private Set<String> normalizeTables(String[] tables)
     {
-        List<SqlField> fields = new ArrayList<SqlField>();
+        Set<String> names = new HashSet<String>();
+
+        for (String table : tables)
+        {
+            table = table.replaceAll("[\"`\\[\\]]", "").trim().toLowerCase();
+
+            if (table.indexOf('@') >= 0)
+                names.add(QueryCache.ANY_TABLE);
+            else if (table.length() > 0)
+                names.add(table.substring(table.lastIndexOf('.') + 1));
+        }
+
+        return names;
+    }
+
+    private void parseFields(ParsedSql parsed, String cols)
+    {
+        List<String> fields = new ArrayList<String>();
 
         for (String field : SharedUtils.splitQuoted(cols, ',', true))
             addField(fields, field);
 
-        sqlStmt.setFields(fields);
+        parsed._fields = fields;
     }
 
-    private void addField(List<SqlField> fields, String field)
+    private void addField(List<String> fields, String field)
     {
         List<String> parts = SharedUtils.splitQuoted(field, ' ', true);
 
         field = parts.size() > 1 ? SharedUtils.trim(parts.get(1), "\"") : camelCase(parts.get(0)
                 .substring(parts.get(0).indexOf(".") + 1));
 
-        fields.add(new SqlField(field));
+        fields.add(field);
     }
 
     private String camelCase(String str)
@@ -138,21 +452,69 @@ class SqlMapParser
         return cName.toString();
     }
 
-    private void parseUpdateSql(String sql, SqlStmt sqlStmt)
+    private void parseUpdateSql(String sql, ParsedSql parsed, int bulkSize)
     {
         StringBuffer stmtBuf = new StringBuffer();
 
-        parseParams(sqlStmt, sql, stmtBuf);
+        parseParams(parsed, sql, stmtBuf);
+
+        parsed._stmt = stmtBuf.toString();
 
-        sqlStmt.setStmt(stmtBuf.toString());
+        if (bulkSize > 0 && parsed._dynParams == null)
+            parseBulkInsert(parsed, stmtBuf.toString());
     }
 
-    private void parseParams(SqlStmt sqlStmt, String sql, StringBuffer stmt)
+    /**
+     * Splits a single row insert, <code>insert into T (c1, c2) values (?, ?)</code>, into the part before the row, the
+     * row and the part after it so the row can be repeated. Statements where parameters appear outside the row, or
+     * that insert from a select, are executed in JDBC batches instead.
+     */
+    private void parseBulkInsert(ParsedSql parsed, String stmt)
+    {
+        String stmtlc = stmt.toLowerCase();
+
+        if (!stmtlc.trim().startsWith("insert "))
+            return;
+
+        int valuesIdx = stmtlc.lastIndexOf(" values");
+        int open = valuesIdx < 0 ? -1 : stmt.indexOf('(', valuesIdx);
+
+        if (open < 0 || stmt.substring(valuesIdx + 7, open).trim().length() > 0)
+            return;
+
+        int close = -1, depth = 0;
+        boolean inQuote = false;
+
+        for (int i = open; i < stmt.length() && close < 0; i++)
+        {
+            char chr = stmt.charAt(i);
+
+            if (chr == '\'')
+                inQuote = !inQuote;
+            else if (!inQuote && chr == '(')
+                depth++;
+            else if (!inQuote && chr == ')' && --depth == 0)
+                close = i;
+        }
+
+        if (close < 0)
+            return;
+
+        String head = stmt.substring(0, open), tail = stmt.substring(close + 1);
+
+        if (head.indexOf('?') >= 0 || tail.indexOf('?') >= 0 || tail.indexOf('(') >= 0)
+            return;
+
+        parsed._bulkInsert = Arrays.asList(head, stmt.substring(open, close + 1), tail);
+    }
+
+    private void parseParams(ParsedSql parsed, String sql, StringBuffer stmt)
     {
         boolean inParam = false, inDynParam = false;
-        List<SqlParam> params = new ArrayList<SqlParam>();
-        List<SqlParam> dynParams = new ArrayList<SqlParam>();
-        int dynParamIndex = 0;
+        List<String> params = new ArrayList<String>();
+        List<String> dynParams = new ArrayList<String>();
+        List<String> chunks = new ArrayList<String>();
+        int dynParamIndex = 0, chunkStart = 0;
         StringBuffer param = new StringBuffer();
 
         for (int i = 0; i < sql.length(); i++)
@@ -163,7 +525,7 @@ class SqlMapParser
             {
                 if (chr == '#')
                 {
-                    params.add(new SqlParam(param.toString()));
+                    params.add(param.toString());
                     param.delete(0, param.length());
 
                     stmt.append(" ? ");
@@ -177,10 +539,12 @@ class SqlMapParser
             {
                 if (chr == '@')
                 {
-                    dynParams.add(new SqlParam(param.toString()));
+                    dynParams.add(param.toString());
                     param.delete(0, param.length());
 
+                    chunks.add(stmt.substring(chunkStart));
                     stmt.append('@').append(dynParamIndex++).append('@');
+                    chunkStart = stmt.length();
 
                     inDynParam = false;
                 }
@@ -195,7 +559,13 @@ class SqlMapParser
                 stmt.append(chr);
         }
 
-        sqlStmt.setParams(params.size() == 0 ? null : params);
-        sqlStmt.setDynamicParams(dynParams.size() == 0 ? null : dynParams);
+        parsed._params = params.size() == 0 ? null : params;
+        parsed._dynParams = dynParams.size() == 0 ? null : dynParams;
+
+        if (dynParams.size() > 0)
+        {
+            chunks.add(stmt.substring(chunkStart));
+            parsed._chunks = chunks;
+        }
     }
 }
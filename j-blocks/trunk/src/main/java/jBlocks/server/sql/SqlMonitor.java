@@ -0,0 +1,30 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package jBlocks.server.sql;
+
+/**
+ * A hook into every statement run by a {@link SqlClient}. The monitor is told about each execution, with its timings,
+ * on the thread that ran it, after the statement's results have been read; it must therefore be quick and must not
+ * throw. When a client has no monitor, which is the default, executions are not timed at all.
+ *
+ * @author hkrishna
+ * @see SqlClient#setMonitor(SqlMonitor)
+ * @see SqlStats
+ */
+public interface SqlMonitor
+{
+    void executed(SqlExecution execution);
+}
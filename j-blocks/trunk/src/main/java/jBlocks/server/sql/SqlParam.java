@@ -14,13 +14,77 @@
 
 package jBlocks.server.sql;
 
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * @author hkrishna
  */
 class SqlParam extends PropertyPath
 {
+    private final boolean                         _self;
+    private final Map<Class<?>, PropertyAccessor> _accessors = new ConcurrentHashMap<Class<?>, PropertyAccessor>();
+    private volatile PropertyAccessor             _lastAccessor;
+
     SqlParam(String path)
     {
         super(path, parsePath(path, false));
+
+        _self = ".".equals(path);
+    }
+
+    /**
+     * @return The accessor for this parameter's property path resolved against the provided model class. Accessors are
+     *         built on first use and cached per model class.
+     */
+    PropertyAccessor accessor(Class<?> modelClass)
+    {
+        PropertyAccessor accessor = _lastAccessor;
+
+        if (accessor != null && accessor.getModelClass() == modelClass)
+            return accessor;
+
+        accessor = _accessors.get(modelClass);
+
+        if (accessor == null)
+        {
+            accessor = new PropertyAccessor(modelClass, getProperties());
+            _accessors.put(modelClass, accessor);
+        }
+
+        return _lastAccessor = accessor;
+    }
+
+    @SuppressWarnings("unchecked")
+    Object getValue(Object model)
+    {
+        if (_self)
+            return model;
+
+        if (model instanceof Map)
+            return ((Map<String, ?>) model).get(getPath());
+
+        if (model == null)
+            return null;
+
+        return accessor(model.getClass()).get(model);
+    }
+
+    /**
+     * Binds the value of this parameter, read from the provided model, to the statement at the provided index.
+     */
+    void bind(PreparedStatement stmt, int i, Object model) throws SQLException
+    {
+        if (_self || model == null || model instanceof Map)
+        {
+            JdbcType.OBJECT.set(stmt, i, getValue(model));
+            return;
+        }
+
+        PropertyAccessor accessor = accessor(model.getClass());
+
+        accessor.getJdbcType().set(stmt, i, accessor.get(model));
     }
 }
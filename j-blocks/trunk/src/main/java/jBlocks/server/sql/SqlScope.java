@@ -0,0 +1,189 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package jBlocks.server.sql;
+
+import jBlocks.server.AggregateException;
+
+import java.io.Closeable;
+import java.util.List;
+
+/**
+ * An explicitly owned session. Unlike the sessions {@link SqlClient} binds to the calling thread, a scope is not
+ * tied to any thread and does not need {@link SqlClient#endSession()}: it takes a connection on its first operation
+ * and gives it back to the pool as soon as it is closed. A scope must be used by one thread at a time.
+ *
+ * <pre><code>
+ * final SqlScope scope = sqlClient.open();
+ * try
+ * {
+ *     final List&lt;Employee&gt; emps = scope.select(&quot;allEmployees&quot;, null);
+ *
+ *     scope.transact(new SqlTask&lt;Object&gt;()
+ *     {
+ *         public Object execute()
+ *         {
+ *             return scope.executeUpdate(&quot;raiseSalary&quot;, emps);
+ *         }
+ *     });
+ * }
+ * finally
+ * {
+ *     scope.close();
+ * }
+ * </code></pre>
+ *
+ * Updates made outside {@link #transact(SqlTask)} are committed on their own.
+ *
+ * @author hkrishna
+ * @see SqlClient#open()
+ */
+public class SqlScope implements Closeable
+{
+    private SqlClient  _client;
+    private SqlSession _session;
+    private boolean    _closed;
+
+    SqlScope(SqlClient client)
+    {
+        _client = client;
+    }
+
+    private SqlSession session()
+    {
+        if (_closed)
+            throw new IllegalStateException("Scope has been closed.");
+
+        if (_session == null)
+            _session = _client.openSession();
+
+        return _session;
+    }
+
+    public int selectInt(String stmtId, Object paramModel)
+    {
+        return session().selectInt(_client.stmt(stmtId), paramModel);
+    }
+
+    public <T> T selectOne(String stmtId, Object paramModel)
+    {
+        return session().<T> selectOne(_client.stmt(stmtId), paramModel);
+    }
+
+    public <T> List<T> select(String stmtId, Object paramModel)
+    {
+        return session().select(_client.stmt(stmtId), paramModel);
+    }
+
+    public <T> List<T> select(String stmtId, Object paramModel, RowCallback<T> callback)
+    {
+        return session().select(_client.stmt(stmtId), paramModel, callback);
+    }
+
+    /**
+     * @see SqlClient#iterate(String, Object)
+     */
+    public <T> SqlCursor<T> iterate(String stmtId, Object paramModel)
+    {
+        return session().iterate(_client.stmt(stmtId), paramModel, null);
+    }
+
+    /**
+     * @see SqlClient#executeUpdate(String, Object)
+     */
+    public int executeUpdate(final String stmtId, final Object param)
+    {
+        if (session().isInTransaction())
+            return _session.executeUpdate(_client.stmt(stmtId), param);
+
+        return transact(new SqlTask<Integer>()
+        {
+            public Integer execute()
+            {
+                return session().executeUpdate(_client.stmt(stmtId), param);
+            }
+        });
+    }
+
+    /**
+     * @see SqlClient#batch(String, int)
+     */
+    public SqlBatch batch(String stmtId, int batchSize)
+    {
+        return new SqlBatch(session(), _client.stmt(stmtId), batchSize);
+    }
+
+    /**
+     * Runs the provided task in a transaction on this scope's connection; the task should use this scope for its
+     * operations. Like {@link SqlClient#transact(SqlTask)}, transactions that fail with a failure the client's
+     * {@link SqlClient#setRetryPolicy(RetryPolicy) retry policy} considers transient are rolled back and run again, on
+     * a new connection when the old one broke. A task run within another task is {@link Propagation#NESTED nested} in
+     * the enclosing transaction and is not retried on its own.
+     *
+     * @throws IllegalStateException
+     *             When a task is run within another task and the driver does not support savepoints; a scope has a
+     *             single connection, so it cannot fall back to {@link Propagation#REQUIRES_NEW} as
+     *             {@link SqlClient#transact(SqlTask)} does.
+     */
+    public <V> V transact(SqlTask<V> task)
+    {
+        SqlSession session = session();
+
+        if (session.isInTransaction())
+        {
+            if (!session.supportsSavepoints())
+                throw new IllegalStateException("The driver does not support savepoints, a scope cannot nest "
+                    + "transactions.");
+
+            return session.transactNested(task);
+        }
+
+        return _client.transact(task, _client.retryPolicy(), new SqlClient.Sessions()
+        {
+            public SqlSession session()
+            {
+                return SqlScope.this.session();
+            }
+
+            public void discard(SqlSession broken)
+            {
+                if (_session == broken)
+                    _session = null;
+
+                broken.close();
+            }
+        });
+    }
+
+    /**
+     * Rolls back any work in progress and returns the connection to the pool. Calling this method more than once has
+     * no effect.
+     */
+    public void close()
+    {
+        _closed = true;
+
+        if (_session == null)
+            return;
+
+        try
+        {
+            _session.close();
+        }
+        finally
+        {
+            _session = null;
+        }
+    }
+}
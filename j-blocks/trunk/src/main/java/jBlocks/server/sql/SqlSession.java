@@ -1,20 +1,22 @@
 package jBlocks.server.sql;
 
 import jBlocks.server.AggregateException;
-import jBlocks.server.ReflectUtils;
 
 import java.sql.BatchUpdateException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.sql.Statement;
-import java.sql.Types;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * @author hkrishna
@@ -25,6 +27,22 @@ class SqlSession
     {
         private boolean                         _committed;
         private Map<SqlStmt, PreparedStatement> _batchStmts;
+        private Set<String>                     _writtenTables;
+
+        /**
+         * Invalidates the cached rows of the tables the provided statement writes, now and again when the transaction
+         * ends, as rows selected by other sessions in between are stale once this transaction commits.
+         */
+        private void written(SqlStmt sqlStmt)
+        {
+            if (_writtenTables == null)
+                _writtenTables = new HashSet<String>();
+
+            _writtenTables.addAll(sqlStmt.getTables());
+            _queryCache.invalidate(sqlStmt.getTables());
+
+            _written = true;
+        }
 
         void addBatch(SqlStmt sqlStmt, Object param)
         {
@@ -35,8 +53,12 @@ class SqlSession
                 if (_batchStmts == null)
                     _batchStmts = new HashMap<SqlStmt, PreparedStatement>();
 
-                if (!_batchStmts.containsKey(sqlStmt))
+                PreparedStatement batchStmt = _batchStmts.get(sqlStmt);
+
+                if (batchStmt == null)
                     _batchStmts.put(sqlStmt, stmt);
+                else if (batchStmt != stmt)
+                    throw new IllegalStateException("Dynamic statement resolved to different SQL within one batch.");
 
                 setStatementParams(sqlStmt, stmt, param);
                 stmt.addBatch();
@@ -50,50 +72,162 @@ class SqlSession
 
         int[] executeBatch(SqlStmt sqlStmt)
         {
-            PreparedStatement stmt = _stmts.get(sqlStmt);
+            PreparedStatement stmt = _batchStmts == null ? null : _batchStmts.remove(sqlStmt);
 
             if (stmt == null)
                 return null;
 
+            written(sqlStmt);
+
+            SqlExecution execution = startExecution(sqlStmt, null);
+            int[] status;
+
             try
             {
-                int[] status = stmt.executeBatch();
+                status = stmt.executeBatch();
 
                 for (int i = 0; i < status.length; i++)
                     if (status[i] == PreparedStatement.EXECUTE_FAILED)
                         throw new BatchUpdateException("Batch execution failed at statement #: "
                                 + i, status);
 
-                return status;
+                if (execution != null)
+                    execution.executed();
             }
             catch (Exception e)
             {
+                endExecution(execution, -1, e);
+
                 throw AggregateException.with(e, "Unable to execute batch " + sqlStmt);
             }
             finally
             {
-                clear(sqlStmt);
+                clear(stmt);
             }
+
+            endExecution(execution, status.length, null);
+
+            return status;
         }
 
         int executeUpdate(SqlStmt sqlStmt, Object param)
         {
+            if (param instanceof Collection && sqlStmt.getBulkSize() > 0)
+                return executeBulkUpdate(sqlStmt, (Collection<?>) param);
+
+            written(sqlStmt);
+
+            PreparedStatement stmt = null;
+            SqlExecution execution = startExecution(sqlStmt, param);
+            int count;
+
             try
             {
-                PreparedStatement stmt = getStatement(sqlStmt, param);
+                stmt = getStatement(sqlStmt, param);
+
+                if (execution != null)
+                    execution.prepared();
+
                 setStatementParams(sqlStmt, stmt, param);
+                count = stmt.executeUpdate();
 
-                return stmt.executeUpdate();
+                if (execution != null)
+                    execution.executed();
             }
             catch (Exception e)
             {
+                endExecution(execution, -1, e);
+
                 throw AggregateException.with(e, "Unable to execute update " + sqlStmt
                         + ", Parameter: " + param);
             }
             finally
             {
-                clear(sqlStmt);
+                clear(stmt);
+            }
+
+            endExecution(execution, count, null);
+
+            return count;
+        }
+
+        /**
+         * Executes the provided statement for every model in the provided collection, <code>bulk-size</code> models
+         * at a time; single row inserts are rewritten to insert that many rows at once, other statements are executed
+         * in JDBC batches.
+         */
+        private int executeBulkUpdate(SqlStmt sqlStmt, Collection<?> models)
+        {
+            List<Object> chunk = new ArrayList<Object>(Math.min(sqlStmt.getBulkSize(), models.size()));
+            int count = 0;
+
+            for (Iterator<?> it = models.iterator(); it.hasNext();)
+            {
+                chunk.add(it.next());
+
+                if (chunk.size() < sqlStmt.getBulkSize() && it.hasNext())
+                    continue;
+
+                if (sqlStmt.isBulkInsert())
+                    count += executeBulkInsert(sqlStmt, chunk);
+                else
+                {
+                    for (Object model : chunk)
+                        addBatch(sqlStmt, model);
+
+                    for (int status : executeBatch(sqlStmt))
+                        count += status == Statement.SUCCESS_NO_INFO ? 1 : status;
+                }
+
+                chunk.clear();
             }
+
+            return count;
+        }
+
+        private int executeBulkInsert(SqlStmt sqlStmt, List<Object> models)
+        {
+            PreparedStatement stmt = null;
+
+            written(sqlStmt);
+
+            SqlExecution execution = startExecution(sqlStmt, models);
+            int count;
+
+            try
+            {
+                stmt = getStatement(sqlStmt, sqlStmt.getBulkStmt(models.size()));
+
+                if (execution != null)
+                    execution.prepared();
+
+                List<SqlParam> params = sqlStmt.getParams();
+                int paramCount = params == null ? 0 : params.size();
+
+                for (int r = 0; r < models.size(); r++)
+                    for (int i = 0; i < paramCount; i++)
+                        params.get(i).bind(stmt, r * paramCount + i + 1, models.get(r));
+
+                count = stmt.executeUpdate();
+
+                if (execution != null)
+                    execution.executed();
+            }
+            catch (Exception e)
+            {
+                endExecution(execution, -1, e);
+
+                throw AggregateException.with(e, "Unable to execute bulk insert " + sqlStmt + ", Rows: "
+                        + models.size());
+            }
+            finally
+            {
+                clear(stmt);
+            }
+
+            endExecution(execution, count, null);
+
+            return count;
         }
 
         SqlSession commit()
@@ -111,6 +245,59 @@ class SqlSession
             }
         }
 
+        /**
+         * Commits the work done so far and keeps the transaction going.
+         */
+        SqlSession checkpoint()
+        {
+            try
+            {
+                _conn.commit();
+
+                return SqlSession.this;
+            }
+            catch (SQLException e)
+            {
+                throw AggregateException.with(e, "Unable to commit DB transaction.");
+            }
+        }
+
+        Savepoint setSavepoint()
+        {
+            try
+            {
+                return _conn.setSavepoint();
+            }
+            catch (SQLException e)
+            {
+                throw AggregateException.with(e, "Unable to set savepoint.");
+            }
+        }
+
+        void rollback(Savepoint savepoint)
+        {
+            try
+            {
+                _conn.rollback(savepoint);
+            }
+            catch (SQLException e)
+            {
+                throw AggregateException.with(e, "Unable to rollback to savepoint.");
+            }
+        }
+
+        void release(Savepoint savepoint)
+        {
+            try
+            {
+                _conn.releaseSavepoint(savepoint);
+            }
+            catch (SQLException e)
+            {
+                // Some drivers cannot release savepoints; they are released when the transaction ends anyway
+            }
+        }
+
         SqlSession end()
         {
             try
@@ -128,25 +315,40 @@ class SqlSession
             {
                 if (_batchStmts != null)
                 {
-                    for (SqlStmt sqlStmt : _batchStmts.keySet())
-                        clear(sqlStmt);
+                    for (PreparedStatement stmt : _batchStmts.values())
+                        clear(stmt);
 
                     _batchStmts = null;
                 }
+
+                if (_writtenTables != null)
+                    _queryCache.invalidate(_writtenTables);
             }
         }
     }
 
-    private Connection                      _conn;
-    private Map<SqlStmt, PreparedStatement> _stmts = new HashMap<SqlStmt, PreparedStatement>();
-    private SqlTrn                          _trn;
+    private Connection                     _conn;
+    private QueryCache                     _queryCache;
+    private Map<String, PreparedStatement> _stmts = new HashMap<String, PreparedStatement>();
+    private SqlTrn                         _trn;
+    private List<SqlCursor<?>>             _cursors;
+    private Boolean                        _supportsSavepoints;
+    private boolean                        _written;
+    private SqlMonitor                     _monitor;
 
-    SqlSession(Connection conn)
+    SqlSession(Connection conn, QueryCache queryCache)
+    {
+        this(conn, queryCache, null);
+    }
+
+    SqlSession(Connection conn, QueryCache queryCache, SqlMonitor monitor)
     {
         if (conn == null)
             throw new IllegalArgumentException("SQL connection must be provided.");
 
         _conn = conn;
+        _queryCache = queryCache;
+        _monitor = monitor;
     }
 
     boolean isInTransaction()
@@ -154,6 +356,34 @@ class SqlSession
         return _trn != null;
     }
 
+    /**
+     * @return True once this session has run an update statement.
+     */
+    boolean hasWritten()
+    {
+        return _written;
+    }
+
+    /**
+     * @return True when this session's connection can roll back to savepoints.
+     */
+    boolean supportsSavepoints()
+    {
+        if (_supportsSavepoints == null)
+        {
+            try
+            {
+                _supportsSavepoints = _conn.getMetaData().supportsSavepoints();
+            }
+            catch (Exception e)
+            {
+                _supportsSavepoints = false;
+            }
+        }
+
+        return _supportsSavepoints;
+    }
+
     SqlSession startTransaction()
     {
         if (_trn != null)
@@ -164,19 +394,15 @@ class SqlSession
         return this;
     }
 
+    /**
+     * @return The statement for the SQL the provided statement resolves to with the provided parameter. Statements are
+     *         kept, keyed by their SQL text, until the session is closed.
+     */
     PreparedStatement getStatement(SqlStmt sqlStmt, Object param)
     {
         try
         {
-            PreparedStatement stmt = _stmts.get(sqlStmt);
-
-            if (stmt == null)
-            {
-                stmt = prepareStatement(sqlStmt, param);
-                _stmts.put(sqlStmt, stmt);
-            }
-
-            return stmt;
+            return getStatement(sqlStmt, sqlStmt.getStmt(param));
         }
         catch (Exception e)
         {
@@ -185,24 +411,112 @@ class SqlSession
         }
     }
 
+    private PreparedStatement getStatement(SqlStmt sqlStmt, String sql) throws SQLException
+    {
+        PreparedStatement stmt = _stmts.get(sql);
+
+        if (stmt == null)
+        {
+            stmt = prepareStatement(sqlStmt, sql);
+            _stmts.put(sql, stmt);
+        }
+
+        return stmt;
+    }
+
+    private static final ResultHandler<Integer> INT_HANDLER = new ResultHandler<Integer>()
+    {
+        public List<Integer> handle(ResultSet result) throws Exception
+        {
+            List<Integer> list = new ArrayList<Integer>();
+
+            if (result.next())
+                list.add(result.getInt(1));
+            else
+                list.add(0);
+
+            return list;
+        }
+    };
+
     int selectInt(SqlStmt sqlStmt, Object paramModel)
     {
-        List<Integer> result = executeQuery(sqlStmt, paramModel, new ResultHandler<Integer>()
+        return executeQuery(sqlStmt, paramModel, INT_HANDLER).get(0);
+    }
+
+    /**
+     * @return The number of rows the provided statement selects.
+     */
+    int selectCount(SqlStmt sqlStmt, Object paramModel)
+    {
+        checkRows(sqlStmt);
+
+        String sql = Dialect.count(stmt(sqlStmt, paramModel));
+
+        return executeQuery(sqlStmt, sql, paramModel, null, 0, INT_HANDLER).get(0);
+    }
+
+    /**
+     * Selects the rows of the page at the provided offset. Pages are not cached.
+     */
+    <T> List<T> selectPage(SqlStmt sqlStmt, Object paramModel, Dialect dialect, int offset, int limit)
+    {
+        checkRows(sqlStmt);
+
+        String sql = dialect.page(stmt(sqlStmt, paramModel), offset, limit);
+
+        return executeQuery(sqlStmt, sql, paramModel, dialect.pageParams(offset, limit), dialect.skip(offset),
+            new ResultBuilder<T>(sqlStmt, null));
+    }
+
+    /**
+     * Selects the rows that follow the provided sort key value, in the order of the statement's sort key, or the first
+     * rows when the value is null. Pages are not cached.
+     */
+    <T> List<T> selectPageAfter(SqlStmt sqlStmt, Object paramModel, Dialect dialect, Object afterKey, int limit)
+    {
+        if (sqlStmt.getSortKey() == null)
+            throw new IllegalArgumentException("Statement has no sort-key - " + sqlStmt.getId());
+
+        checkRows(sqlStmt);
+
+        String sql = dialect.page(Dialect.keyset(stmt(sqlStmt, paramModel), sqlStmt.getSortKey(), sqlStmt
+            .isSortDescending(), afterKey != null), 0, limit);
+
+        Object[] pageParams = dialect.pageParams(0, limit);
+
+        if (afterKey != null)
         {
-            public List<Integer> handle(ResultSet result) throws Exception
-            {
-                List<Integer> list = new ArrayList<Integer>();
+            Object[] params = new Object[pageParams.length + 1];
+            params[0] = afterKey;
+            System.arraycopy(pageParams, 0, params, 1, pageParams.length);
+            pageParams = params;
+        }
 
-                if (result.next())
-                    list.add(result.getInt(1));
-                else
-                    list.add(0);
+        return executeQuery(sqlStmt, sql, paramModel, pageParams, 0, new ResultBuilder<T>(sqlStmt, null));
+    }
 
-                return list;
-            }
-        });
+    /**
+     * Rejects statements whose rows are merged into models with collections; the database would page and count the
+     * joined rows, cutting models across pages.
+     */
+    private void checkRows(SqlStmt sqlStmt)
+    {
+        if (sqlStmt.mergesRows())
+            throw new IllegalArgumentException("Rows of statement " + sqlStmt.getId() + " are merged into models "
+                + "with collections and cannot be paged or counted; page a statement that selects the models only.");
+    }
 
-        return result.get(0);
+    private String stmt(SqlStmt sqlStmt, Object paramModel)
+    {
+        try
+        {
+            return sqlStmt.getStmt(paramModel);
+        }
+        catch (Exception e)
+        {
+            throw AggregateException.with(e, "Unable to build statement " + sqlStmt + ", Parameter: " + paramModel);
+        }
     }
 
     /**
@@ -219,32 +533,151 @@ class SqlSession
         return select(sqlStmt, paramModel, null);
     }
 
+    /**
+     * Selects through the {@link QueryCache} when the statement is cached, no callback is provided and no transaction
+     * is in progress. A transaction bypasses the cache altogether: the rows it selects may include its uncommitted
+     * changes, and the cached rows, which other sessions may have refilled since it wrote, would miss them.
+     */
     <T> List<T> select(SqlStmt sqlStmt, Object paramModel, RowCallback<T> callback)
     {
-        return executeQuery(sqlStmt, paramModel, new ResultBuilder<T>(sqlStmt, callback));
+        if (callback != null || !sqlStmt.isCached() || _trn != null)
+            return executeQuery(sqlStmt, paramModel, new ResultBuilder<T>(sqlStmt, callback));
+
+        Object key = QueryCache.key(sqlStmt, paramModel);
+        List<T> rows = _queryCache.get(sqlStmt, key);
+
+        if (rows != null)
+            return rows;
+
+        long generation = _queryCache.generation(sqlStmt);
+
+        rows = executeQuery(sqlStmt, paramModel, new ResultBuilder<T>(sqlStmt, null));
+        _queryCache.put(sqlStmt, key, rows, generation);
+
+        return rows;
     }
 
     <T> List<T> executeQuery(SqlStmt sqlStmt, Object param, ResultHandler<T> handler)
     {
+        return executeQuery(sqlStmt, null, param, null, 0, handler);
+    }
+
+    /**
+     * Executes the provided SQL, or the statement's own SQL when it is null, binding the provided extra parameters
+     * after the statement's parameters and skipping the provided number of rows before handling the result.
+     */
+    private <T> List<T> executeQuery(SqlStmt sqlStmt, String sql, Object param, Object[] extraParams, int skip,
+        ResultHandler<T> handler)
+    {
+        PreparedStatement stmt = null;
         ResultSet result = null;
+        SqlExecution execution = startExecution(sqlStmt, param);
+        List<T> rows;
 
         try
         {
-            PreparedStatement stmt = getStatement(sqlStmt, param);
+            stmt = sql == null ? getStatement(sqlStmt, param) : getStatement(sqlStmt, sql);
+
+            if (execution != null)
+                execution.prepared();
+
             setStatementParams(sqlStmt, stmt, param);
 
-            return handler.handle(result = stmt.executeQuery());
+            if (extraParams != null)
+                setExtraParams(sqlStmt, stmt, extraParams);
+
+            result = stmt.executeQuery();
+
+            for (int i = skip; i > 0 && result.next(); i--)
+            {
+                // Skip the rows before the page
+            }
+
+            if (execution != null)
+            {
+                execution.executed();
+
+                if (handler instanceof ResultBuilder)
+                    ((ResultBuilder<T>) handler).setExecution(execution);
+            }
+
+            rows = handler.handle(result);
+
+            if (execution != null)
+                execution.mapped();
         }
         catch (Exception e)
         {
+            endExecution(execution, -1, e);
+
             throw AggregateException.with(e, "Unable to execute query " + sqlStmt + ", Parameter: "
                     + param);
         }
         finally
         {
             close(result);
-            clear(sqlStmt);
+            clear(stmt);
         }
+
+        if (execution != null)
+            endExecution(execution, rows.size() == 1 && rows.get(0) instanceof ColumnarResult
+                ? ((ColumnarResult) rows.get(0)).size() : rows.size(), null);
+
+        return rows;
+    }
+
+    /**
+     * Opens a cursor over the rows selected by the provided statement. The cursor gets its own JDBC statement so the
+     * session can keep executing other statements, including this one, while the cursor is open.
+     */
+    <T> SqlCursor<T> iterate(SqlStmt sqlStmt, Object param, RowCallback<T> callback)
+    {
+        if (sqlStmt.isColumnar())
+            throw new IllegalArgumentException("Columnar results cannot be iterated, select them instead - "
+                + sqlStmt.getId());
+
+        PreparedStatement stmt = null;
+        SqlExecution execution = startExecution(sqlStmt, param);
+
+        try
+        {
+            stmt = prepareStatement(sqlStmt, sqlStmt.getStmt(param));
+
+            if (execution != null)
+                execution.prepared();
+
+            setStatementParams(sqlStmt, stmt, param);
+            ResultSet result = stmt.executeQuery();
+
+            if (execution != null)
+                execution.executed();
+
+            SqlCursor<T> cursor = new SqlCursor<T>(this, sqlStmt, stmt, result, callback, execution);
+
+            if (_cursors == null)
+                _cursors = new ArrayList<SqlCursor<?>>();
+
+            _cursors.add(cursor);
+
+            return cursor;
+        }
+        catch (Exception e)
+        {
+            release(stmt);
+            endExecution(execution, -1, e);
+
+            throw AggregateException.with(e, "Unable to execute query " + sqlStmt + ", Parameter: "
+                    + param);
+        }
+    }
+
+    void closeCursor(SqlCursor<?> cursor, ResultSet result, PreparedStatement stmt)
+    {
+        if (_cursors != null)
+            _cursors.remove(cursor);
+
+        close(result);
+        release(stmt);
     }
 
     void addBatch(SqlStmt sqlStmt, Object param)
@@ -267,6 +700,11 @@ class SqlSession
         return trn().commit();
     }
 
+    SqlSession checkpoint()
+    {
+        return trn().checkpoint();
+    }
+
     SqlSession endTransaction()
     {
         try
@@ -279,8 +717,45 @@ class SqlSession
         }
     }
 
+    /**
+     * Runs the provided task within this session's transaction behind a savepoint and rolls back to the savepoint when
+     * the task fails.
+     *
+     * @see Propagation#NESTED
+     */
+    <V> V transactNested(SqlTask<V> task)
+    {
+        SqlTrn trn = trn();
+        Savepoint savepoint = trn.setSavepoint();
+        V result;
+
+        try
+        {
+            result = task.execute();
+        }
+        catch (Exception e)
+        {
+            try
+            {
+                trn.rollback(savepoint);
+            }
+            catch (Exception re)
+            {
+                throw AggregateException.with(AggregateException.with(e, re.toString()),
+                        "Nested DB transaction failed.");
+            }
+
+            throw AggregateException.with(e, "Nested DB transaction failed.");
+        }
+
+        trn.release(savepoint);
+
+        return result;
+    }
+
     void close()
     {
+        closeCursors();
         closeStatements();
         closeConnection();
     }
@@ -291,9 +766,29 @@ class SqlSession
         close();
     }
 
+    /**
+     * Reports the provided execution, if any, to the monitor.
+     */
+    void endExecution(SqlExecution execution, int rows, Throwable failure)
+    {
+        if (execution == null)
+            return;
+
+        execution.end(rows, failure);
+        _monitor.executed(execution);
+    }
+
     // Private methods
     // ===========================================================================
 
+    /**
+     * @return A new execution of the provided statement when this session is monitored, null otherwise.
+     */
+    private SqlExecution startExecution(SqlStmt sqlStmt, Object param)
+    {
+        return _monitor == null ? null : new SqlExecution(sqlStmt, param);
+    }
+
     private SqlTrn trn()
     {
         if (_trn == null)
@@ -303,34 +798,24 @@ class SqlSession
         return _trn;
     }
 
-    private PreparedStatement prepareStatement(SqlStmt sqlStmt, Object model) throws SQLException
+    /**
+     * Prepares the provided SQL through the connection's statement cache when the connection is pooled by
+     * {@link SimpleDataSource}. Statements prepared here must be given up with {@link #release(PreparedStatement)}.
+     */
+    private PreparedStatement prepareStatement(SqlStmt sqlStmt, String sql) throws SQLException
     {
-        String sql = sqlStmt.getStmt();
-
-        if (sqlStmt.isDynamic())
-            sql = setDynamicSqlSubstitutions(sqlStmt, model);
+        PreparedStatement stmt;
 
-        PreparedStatement stmt = _conn.prepareStatement(sql);
+        if (_conn instanceof PooledConnection)
+            stmt = ((PooledConnection) _conn).prepareCached(sql);
+        else
+            stmt = _conn.prepareStatement(sql);
 
         sqlStmt.applyProperties(stmt);
 
         return stmt;
     }
 
-    private String setDynamicSqlSubstitutions(SqlStmt sqlStmt, Object model)
-    {
-        String sql = sqlStmt.getStmt();
-        List<SqlParam> dynParams = sqlStmt.getDynamicParams();
-
-        for (int i = 0; i < dynParams.size(); i++)
-        {
-            Object value = getComplexPropertyValue(model, dynParams.get(i));
-            sql = sql.replaceFirst("@" + i + "@", String.valueOf(value));
-        }
-
-        return sql;
-    }
-
     private void setStatementParams(SqlStmt sqlStmt, PreparedStatement stmt, Object model)
             throws SQLException
     {
@@ -340,55 +825,20 @@ class SqlSession
             return;
 
         for (int i = 0; i < params.size(); i++)
-            setStatementParam(stmt, i + 1, params.get(i), model);
-    }
-
-    private void setStatementParam(PreparedStatement stmt, int i, SqlParam param, Object model)
-            throws SQLException
-    {
-        Object val = getComplexPropertyValue(model, param);
-
-        if (val == null)
-        {
-            stmt.setNull(i, Types.NULL);
-            return;
-        }
-
-        String typeName = val.getClass().getSimpleName();
-
-        if ("Date".equals(typeName))
-        {
-            val = new java.sql.Timestamp(((Date) val).getTime());
-            typeName = "Timestamp";
-        }
-        else if ("Integer".equals(typeName))
-            typeName = "Int";
-
-        ReflectUtils.invokeMethod(stmt, "set" + typeName, new Object[] { new Integer(i), val });
+            params.get(i).bind(stmt, i + 1, model);
     }
 
-    @SuppressWarnings("unchecked")
-    private Object getComplexPropertyValue(final Object model, SqlParam param)
+    private void setExtraParams(SqlStmt sqlStmt, PreparedStatement stmt, Object[] values) throws SQLException
     {
-        if (".".equals(param.getPath()))
-            return model;
-
-        if (model instanceof Map)
-            return ((Map<String, ?>) model).get(param.getPath());
-
-        Object obj = model;
-        String[] props = param.getProperties();
-
-        for (int i = 0; obj != null && i < props.length; i++)
-            obj = ReflectUtils.invokeMethod(obj, props[i], (Object[]) null);
+        List<SqlParam> params = sqlStmt.getParams();
+        int first = params == null ? 1 : params.size() + 1;
 
-        return obj;
+        for (int i = 0; i < values.length; i++)
+            JdbcType.forClass(values[i].getClass()).set(stmt, first + i, values[i]);
     }
 
-    private void clear(SqlStmt sqlStmt)
+    private void clear(PreparedStatement stmt)
     {
-        PreparedStatement stmt = _stmts.get(sqlStmt);
-
         if (stmt == null)
             return;
 
@@ -400,7 +850,8 @@ class SqlSession
         }
         catch (Exception e)
         {
-            close(_stmts.remove(sqlStmt));
+            _stmts.values().remove(stmt);
+            release(stmt);
         }
     }
 
@@ -417,6 +868,17 @@ class SqlSession
         }
     }
 
+    private void closeCursors()
+    {
+        if (_cursors == null)
+            return;
+
+        for (SqlCursor<?> cursor : new ArrayList<SqlCursor<?>>(_cursors))
+            cursor.close();
+
+        _cursors = null;
+    }
+
     private void closeStatements()
     {
         if (_stmts == null)
@@ -425,7 +887,7 @@ class SqlSession
         try
         {
             for (PreparedStatement stmt : _stmts.values())
-                close(stmt);
+                release(stmt);
         }
         finally
         {
@@ -433,6 +895,21 @@ class SqlSession
         }
     }
 
+    /**
+     * Hands the provided statement back to the connection's statement cache, or closes it when the connection is not
+     * pooled.
+     */
+    private void release(PreparedStatement stmt)
+    {
+        if (stmt == null)
+            return;
+
+        if (_conn instanceof PooledConnection)
+            ((PooledConnection) _conn).releaseStatement(stmt);
+        else
+            close(stmt);
+    }
+
     private void close(Statement stmt)
     {
         try
@@ -0,0 +1,204 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package jBlocks.server.sql;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link SqlMonitor} that keeps, per statement id, {@link Histogram histograms} of the time spent in each phase of
+ * the statement's executions, and logs the executions that take longer than the {@link #slowThreshold(long)
+ * slowThreshold} with their bound parameters and row count. Parameters holding sensitive data can be
+ * {@link #redact(String...) redacted} from the log. Poll {@link #snapshot()} to scrape the statistics, and
+ * {@link #reset()} them between scrapes if only the latest interval is of interest.
+ *
+ * <pre><code>
+ * SqlStats stats = new SqlStats().slowThreshold(500).redact(&quot;Password&quot;, &quot;CardNumber&quot;);
+ * sqlClient.setMonitor(stats);
+ * </code></pre>
+ *
+ * @author hkrishna
+ */
+public class SqlStats implements SqlMonitor
+{
+    private static final Logger _logger = LoggerFactory.getLogger(SqlStats.class);
+
+    private static class Stats
+    {
+        private final Histogram  _prepare  = new Histogram();
+        private final Histogram  _execute  = new Histogram();
+        private final Histogram  _fetch    = new Histogram();
+        private final Histogram  _map      = new Histogram();
+        private final Histogram  _total    = new Histogram();
+        private final AtomicLong _failures = new AtomicLong();
+        private final AtomicLong _slow     = new AtomicLong();
+        private final AtomicLong _rows     = new AtomicLong();
+
+        private void reset()
+        {
+            _prepare.reset();
+            _execute.reset();
+            _fetch.reset();
+            _map.reset();
+            _total.reset();
+            _failures.set(0);
+            _slow.set(0);
+            _rows.set(0);
+        }
+    }
+
+    private final Map<String, Stats> _stats         = new ConcurrentHashMap<String, Stats>();
+    private long                     _slowThreshold = 1000;
+    private Set<String>              _redacted      = Collections.emptySet();
+
+    /**
+     * @param millis
+     *            The time above which executions are logged as slow; defaults to 1000, 0 to log none.
+     */
+    public SqlStats slowThreshold(long millis)
+    {
+        _slowThreshold = millis;
+
+        return this;
+    }
+
+    /**
+     * @param paramPaths
+     *            The paths of the parameters whose values are left out of the slow query log, <code>*</code> for all
+     *            parameters.
+     */
+    public SqlStats redact(String... paramPaths)
+    {
+        _redacted = new HashSet<String>(Arrays.asList(paramPaths));
+
+        return this;
+    }
+
+    public void executed(SqlExecution execution)
+    {
+        Stats stats = stats(execution.getStmtId());
+
+        stats._prepare.record(execution.getPrepareNanos() / 1000);
+        stats._execute.record(execution.getExecuteNanos() / 1000);
+        stats._fetch.record(execution.getFetchNanos() / 1000);
+        stats._map.record(execution.getMapNanos() / 1000);
+        stats._total.record(execution.getTotalNanos() / 1000);
+
+        if (execution.getFailure() != null)
+            stats._failures.incrementAndGet();
+        else
+            stats._rows.addAndGet(execution.getRows());
+
+        if (_slowThreshold > 0 && execution.getTotalNanos() > _slowThreshold * 1000000)
+        {
+            stats._slow.incrementAndGet();
+
+            if (_logger.isWarnEnabled())
+                _logger.warn(slowQuery(execution));
+        }
+    }
+
+    /**
+     * @return The slow query log entry of the provided execution, without the redacted parameter values.
+     */
+    String slowQuery(SqlExecution execution)
+    {
+        return "Slow SQL " + execution.getStmtId() + " took " + execution.getTotalNanos() / 1000000 + " ms, Rows: "
+            + execution.getRows() + ", Parameters: " + redacted(execution);
+    }
+
+    private Stats stats(String stmtId)
+    {
+        Stats stats = _stats.get(stmtId);
+
+        if (stats == null)
+        {
+            synchronized (_stats)
+            {
+                stats = _stats.get(stmtId);
+
+                if (stats == null)
+                    _stats.put(stmtId, stats = new Stats());
+            }
+        }
+
+        return stats;
+    }
+
+    private Object redacted(SqlExecution execution)
+    {
+        Map<String, Object> values = execution.getParamValues();
+
+        if (values == null)
+            return "bulk of " + ((Collection<?>) execution.getParam()).size();
+
+        if (_redacted.contains("*"))
+            return values.keySet();
+
+        for (Map.Entry<String, Object> entry : values.entrySet())
+            if (_redacted.contains(entry.getKey()))
+                entry.setValue("***");
+
+        return values;
+    }
+
+    /**
+     * @return A snapshot of the statistics of every statement executed since the last reset, by statement id.
+     */
+    public Map<String, StatementStats> snapshot()
+    {
+        Map<String, StatementStats> snapshot = new TreeMap<String, StatementStats>();
+
+        for (Map.Entry<String, Stats> entry : _stats.entrySet())
+        {
+            String stmtId = entry.getKey();
+            Stats stats = entry.getValue();
+
+            snapshot.put(stmtId, new StatementStats(stmtId, stats._total.getCount(), stats._failures.get(),
+                stats._slow.get(), stats._rows.get(), stats._prepare, stats._execute, stats._fetch, stats._map,
+                stats._total));
+        }
+
+        return snapshot;
+    }
+
+    public void reset()
+    {
+        for (Stats stats : _stats.values())
+            stats.reset();
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder b = new StringBuilder();
+
+        for (StatementStats stats : snapshot().values())
+            b.append(stats).append('\n');
+
+        return b.toString();
+    }
+}
@@ -17,44 +17,72 @@ package jBlocks.server.sql;
 import jBlocks.server.ReflectUtils;
 
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * @author hkrishna
  */
 class SqlStmt
 {
-    private String              _stmt, _tStmt;
-    private List<SqlField>      _fields;
-    private List<SqlParam>      _params;
-    private List<SqlParam>      _dynParams;
-    private SqlMap              _sqlMap;
-    private Map<String, Object> _props;
+    private String                _id;
+    private String                _stmt;
+    private List<SqlField>        _fields;
+    private List<SqlParam>        _params;
+    private List<SqlParam>        _dynParams;
+    private SqlTemplate           _template;
+    private int                   _bulkSize;
+    private String                _bulkHead, _bulkRow, _bulkTail;
+    private volatile String       _bulkStmt;
+    private long                  _cacheTtl;
+    private int                   _cacheSize;
+    private Set<String>           _tables = Collections.emptySet();
+    private SqlParam              _shardKey;
+    private String                _sortKey;
+    private boolean               _sortDescending;
+    private SqlMap                _sqlMap;
+    private Map<String, Object>   _props;
+    private volatile RowMapper<?> _rowMapper;
+    private volatile Boolean      _mergesRows;
 
-    public String getStmt()
+    /**
+     * @return The key of this statement in its sql properties file.
+     */
+    public String getId()
     {
-        if (_stmt == null)
-        {
-            _stmt = _tStmt;
-            _tStmt = null;
-            
-            if (_sqlMap != null && _sqlMap.getSelectClause() != null)
-            {
-                StringBuilder buf = new StringBuilder(_stmt);
-                buf.replace(0, 6, _sqlMap.getSelectClause());
-
-                _stmt = buf.toString();
-            }
-        }
+        return _id;
+    }
+
+    void setId(String id)
+    {
+        _id = id;
+    }
 
+    public String getStmt()
+    {
         return _stmt;
     }
 
+    /**
+     * @return The statement with its dynamic parameters substituted with their values in the provided model.
+     */
+    public String getStmt(Object model)
+    {
+        String stmt = getStmt();
+
+        return _template == null ? stmt : _template.render(model);
+    }
+
     public void setStmt(String stmt)
     {
-        _tStmt = stmt;
+        _stmt = stmt;
     }
 
     public boolean isDynamic()
@@ -92,6 +120,11 @@ class SqlStmt
         _dynParams = params;
     }
 
+    void setTemplate(SqlTemplate template)
+    {
+        _template = template;
+    }
+
     public SqlMap getSqlMap()
     {
         return _sqlMap;
@@ -102,6 +135,212 @@ class SqlStmt
         _sqlMap = sqlMap;
     }
 
+    /**
+     * @return The row mapper for this statement, compiled on first use with the column types of the provided result.
+     */
+    @SuppressWarnings("unchecked")
+    <T> RowMapper<T> getRowMapper(ResultSet result) throws SQLException
+    {
+        if (_rowMapper == null)
+            _rowMapper = RowMapper.compile(this, result.getMetaData());
+
+        return (RowMapper<T>) _rowMapper;
+    }
+
+    /**
+     * @return True when the rows this statement selects are merged into models with collections, the parents of a one
+     *         to many join for example, so they cannot be paged or counted row by row.
+     * @see RowMapper#mergesRows()
+     */
+    boolean mergesRows()
+    {
+        if (_mergesRows == null)
+        {
+            RowMapper<?> rowMapper = _rowMapper;
+
+            if (rowMapper == null && (_sqlMap == null || _fields == null || isColumnar()))
+                _mergesRows = Boolean.FALSE;
+            else
+                _mergesRows = Boolean.valueOf((rowMapper == null ? RowMapper.compile(this, null) : rowMapper)
+                    .mergesRows());
+        }
+
+        return _mergesRows.booleanValue();
+    }
+
+    /**
+     * @return The number of rows executed together when a collection of models is provided; 0 when this statement
+     *         does not execute in bulk.
+     */
+    public int getBulkSize()
+    {
+        return _bulkSize;
+    }
+
+    public void setBulkSize(int size)
+    {
+        _bulkSize = size;
+    }
+
+    /**
+     * @return True when this is an insert with a single <code>values</code> row, that can be rewritten to insert
+     *         several rows in one statement.
+     */
+    public boolean isBulkInsert()
+    {
+        return _bulkRow != null;
+    }
+
+    /**
+     * Marks this statement as a single row insert, <code>head (row) tail</code>.
+     */
+    void setBulkInsert(String head, String row, String tail)
+    {
+        _bulkHead = head;
+        _bulkRow = row;
+        _bulkTail = tail;
+    }
+
+    /**
+     * @return This insert rewritten to insert the provided number of rows, with the parameters of each row following
+     *         the parameters of the previous row.
+     */
+    public String getBulkStmt(int rows)
+    {
+        if (rows == _bulkSize && _bulkStmt != null)
+            return _bulkStmt;
+
+        StringBuilder b = new StringBuilder(_bulkHead.length() + (_bulkRow.length() + 1) * rows + _bulkTail.length());
+        b.append(_bulkHead).append(_bulkRow);
+
+        for (int i = 1; i < rows; i++)
+            b.append(',').append(_bulkRow);
+
+        String stmt = b.append(_bulkTail).toString();
+
+        if (rows == _bulkSize)
+            _bulkStmt = stmt;
+
+        return stmt;
+    }
+
+    /**
+     * @return The SQL texts this statement is likely to have been prepared with: the statement itself, its bulk insert
+     *         of <code>bulk-size</code> rows and the recent renderings of its template.
+     */
+    Collection<String> getPreparedSql()
+    {
+        List<String> sqls = new ArrayList<String>();
+        sqls.add(getStmt());
+
+        if (_bulkStmt != null)
+            sqls.add(_bulkStmt);
+
+        if (_template != null)
+            sqls.addAll(_template.getRendered());
+
+        return sqls;
+    }
+
+    /**
+     * @return True when this statement selects into a {@link ColumnarResult}.
+     */
+    public boolean isColumnar()
+    {
+        return _sqlMap != null && ColumnarResult.class.getName().equals(_sqlMap.getClassName());
+    }
+
+    /**
+     * @return True when the rows selected by this statement are kept in the {@link QueryCache}.
+     */
+    public boolean isCached()
+    {
+        return _cacheTtl > 0;
+    }
+
+    /**
+     * @return How long, in milliseconds, the rows selected by this statement are cached.
+     */
+    public long getCacheTtl()
+    {
+        return _cacheTtl;
+    }
+
+    public void setCacheTtl(long millis)
+    {
+        _cacheTtl = millis;
+    }
+
+    /**
+     * @return The maximum number of parameter combinations whose rows are cached for this statement.
+     */
+    public int getCacheSize()
+    {
+        return _cacheSize;
+    }
+
+    public void setCacheSize(int size)
+    {
+        _cacheSize = size;
+    }
+
+    /**
+     * @return The lower case names, without schema, of the tables this statement reads or writes.
+     */
+    public Set<String> getTables()
+    {
+        return _tables;
+    }
+
+    public void setTables(Set<String> tables)
+    {
+        _tables = tables;
+    }
+
+    /**
+     * @return The parameter whose value picks the shard this statement runs on, or null when the statement is not
+     *         routed by {@link ShardedSqlClient}.
+     */
+    public SqlParam getShardKey()
+    {
+        return _shardKey;
+    }
+
+    public void setShardKey(String path)
+    {
+        _shardKey = path == null ? null : new SqlParam(path.trim());
+    }
+
+    /**
+     * @return The column the rows of this statement are paged by, or null.
+     * @see SqlClient#selectPageAfter(String, Object, Object, int)
+     */
+    public String getSortKey()
+    {
+        return _sortKey;
+    }
+
+    public boolean isSortDescending()
+    {
+        return _sortDescending;
+    }
+
+    /**
+     * @param sortKey
+     *            A column as the statement names it, <code>e.id</code> for example, optionally followed by
+     *            <code>desc</code>.
+     */
+    public void setSortKey(String sortKey)
+    {
+        if (sortKey == null)
+            return;
+
+        String[] parts = sortKey.trim().split("\\s+");
+
+        _sortKey = parts[0];
+        _sortDescending = parts.length > 1 && "desc".equalsIgnoreCase(parts[1]);
+    }
+
     public void setFetchSize(int size)
     {
         setProperty("setFetchSize", size);
@@ -0,0 +1,168 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package jBlocks.server.sql;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The compiled form of a <code>.dyn-sql</code> statement: the literal chunks of the statement with a slot, between
+ * every two chunks, for the value of a dynamic parameter. Rendering copies the chunks and the parameter values, as is,
+ * into a builder reused by the rendering thread. The most recently rendered statements are cached by their parameter
+ * values, so rendering the same substitutions again returns the same SQL text.
+ *
+ * @author hkrishna
+ */
+class SqlTemplate
+{
+    private static final int                        CACHE_SIZE = 64;
+
+    private static final ThreadLocal<StringBuilder> _builder   = new ThreadLocal<StringBuilder>()
+                                                               {
+                                                                   @Override
+                                                                   protected StringBuilder initialValue()
+                                                                   {
+                                                                       return new StringBuilder(256);
+                                                                   }
+                                                               };
+
+    /**
+     * The values of the dynamic parameters of a rendering.
+     */
+    private static class Key
+    {
+        private final String[] _values;
+        private final int      _hash;
+
+        Key(String[] values)
+        {
+            _values = values;
+            _hash = Arrays.hashCode(values);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return _hash;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            return obj instanceof Key && Arrays.equals(_values, ((Key) obj)._values);
+        }
+    }
+
+    private final String[]         _chunks;
+    private final SqlParam[]       _params;
+    private final int              _length;
+    private final Map<Key, String> _cache = new LinkedHashMap<Key, String>(16, 0.75f, true)
+                                          {
+                                              private static final long serialVersionUID = 1L;
+
+                                              @Override
+                                              protected boolean removeEldestEntry(Map.Entry<Key, String> eldest)
+                                              {
+                                                  return size() > CACHE_SIZE;
+                                              }
+                                          };
+
+    /**
+     * @param chunks
+     *            The literal chunks of the statement, one more than there are parameters.
+     * @param params
+     *            The dynamic parameters, in the order they appear in the statement.
+     */
+    SqlTemplate(List<String> chunks, List<SqlParam> params)
+    {
+        if (chunks.size() != params.size() + 1)
+            throw new IllegalArgumentException("A template must have one more chunk than parameters.");
+
+        _chunks = chunks.toArray(new String[chunks.size()]);
+        _params = params.toArray(new SqlParam[params.size()]);
+
+        int length = 0;
+
+        for (String chunk : _chunks)
+            length += chunk.length();
+
+        _length = length;
+    }
+
+    /**
+     * @return A copy of this template with the first <code>length</code> characters replaced by the provided head;
+     *         used to merge the select clause of the SQL map into the statement.
+     */
+    SqlTemplate replaceHead(int length, String head)
+    {
+        List<String> chunks = Arrays.asList(_chunks.clone());
+        chunks.set(0, head + _chunks[0].substring(length));
+
+        return new SqlTemplate(chunks, Arrays.asList(_params));
+    }
+
+    /**
+     * @return The most recently rendered SQL texts.
+     */
+    Collection<String> getRendered()
+    {
+        synchronized (_cache)
+        {
+            return new ArrayList<String>(_cache.values());
+        }
+    }
+
+    /**
+     * @return The SQL text with the dynamic parameters substituted with their values in the provided model.
+     */
+    String render(Object model)
+    {
+        String[] values = new String[_params.length];
+
+        for (int i = 0; i < values.length; i++)
+            values[i] = String.valueOf(_params[i].getValue(model));
+
+        Key key = new Key(values);
+        String sql;
+
+        synchronized (_cache)
+        {
+            sql = _cache.get(key);
+        }
+
+        if (sql != null)
+            return sql;
+
+        StringBuilder b = _builder.get();
+        b.setLength(0);
+        b.ensureCapacity(_length + 16 * values.length);
+
+        for (int i = 0; i < values.length; i++)
+            b.append(_chunks[i]).append(values[i]);
+
+        sql = b.append(_chunks[values.length]).toString();
+
+        synchronized (_cache)
+        {
+            _cache.put(key, sql);
+        }
+
+        return sql;
+    }
+}
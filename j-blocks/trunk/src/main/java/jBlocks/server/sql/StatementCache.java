@@ -0,0 +1,202 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package jBlocks.server.sql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A least recently used cache of the prepared statements of a single physical connection, keyed by the SQL text and
+ * the result set options the statement was prepared with. A statement is removed from the cache while it is checked
+ * out, so two users of the connection never share a statement, and it is put back when it is returned. When the cache
+ * is full the least recently returned statement is closed.
+ * <p>
+ * Like the connection it belongs to, a cache is used by one thread at a time; only the hit and miss counters, which
+ * are shared by all the connections of a pool, and {@link #evict(Collection)}, which only queues the SQL to evict until
+ * the next checkout, are thread safe.
+ *
+ * @author hkrishna
+ */
+class StatementCache
+{
+    private final Connection                     _conn;
+    private final int                            _maxSize;
+    private final AtomicLong                     _hits;
+    private final AtomicLong                     _misses;
+    private final Map<String, PreparedStatement> _stmts;
+    private final Map<PreparedStatement, String> _checkedOut = new IdentityHashMap<PreparedStatement, String>();
+    private final Queue<String>                  _evictions  = new ConcurrentLinkedQueue<String>();
+
+    StatementCache(Connection conn, int maxSize, AtomicLong hits, AtomicLong misses)
+    {
+        _conn = conn;
+        _maxSize = maxSize;
+        _hits = hits;
+        _misses = misses;
+
+        _stmts = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest)
+            {
+                if (size() <= _maxSize)
+                    return false;
+
+                close(eldest.getValue());
+
+                return true;
+            }
+        };
+    }
+
+    PreparedStatement checkout(String sql, int resultSetType, int resultSetConcurrency) throws SQLException
+    {
+        if (!_evictions.isEmpty())
+            evictQueued();
+
+        String key = new StringBuilder(sql.length() + 10).append(resultSetType).append(':').append(
+            resultSetConcurrency).append(':').append(sql).toString();
+
+        PreparedStatement stmt = _stmts.remove(key);
+
+        if (stmt == null)
+        {
+            _misses.incrementAndGet();
+
+            if (resultSetType == ResultSet.TYPE_FORWARD_ONLY && resultSetConcurrency == ResultSet.CONCUR_READ_ONLY)
+                stmt = _conn.prepareStatement(sql);
+            else
+                stmt = _conn.prepareStatement(sql, resultSetType, resultSetConcurrency);
+        }
+        else
+            _hits.incrementAndGet();
+
+        _checkedOut.put(stmt, key);
+
+        return stmt;
+    }
+
+    /**
+     * Puts the provided statement back in the cache, after clearing its parameters and batch. Statements that were not
+     * checked out from this cache, or that cannot be cleared, are closed.
+     */
+    void checkin(PreparedStatement stmt)
+    {
+        String key = _checkedOut.remove(stmt);
+
+        if (key == null || _stmts.containsKey(key))
+        {
+            close(stmt);
+            return;
+        }
+
+        try
+        {
+            stmt.clearParameters();
+            stmt.clearBatch();
+            stmt.clearWarnings();
+        }
+        catch (Exception e)
+        {
+            close(stmt);
+            return;
+        }
+
+        _stmts.put(key, stmt);
+    }
+
+    /**
+     * Queues the statements prepared with the provided SQL texts to be closed on the next checkout; statements checked
+     * out by then are closed when they are returned.
+     */
+    void evict(Collection<String> sqls)
+    {
+        _evictions.addAll(sqls);
+    }
+
+    private void evictQueued()
+    {
+        Set<String> sqls = new HashSet<String>();
+
+        for (String sql = _evictions.poll(); sql != null; sql = _evictions.poll())
+            sqls.add(sql);
+
+        for (Iterator<Map.Entry<String, PreparedStatement>> i = _stmts.entrySet().iterator(); i.hasNext();)
+        {
+            Map.Entry<String, PreparedStatement> entry = i.next();
+
+            if (sqls.contains(sql(entry.getKey())))
+            {
+                close(entry.getValue());
+                i.remove();
+            }
+        }
+
+        for (Map.Entry<PreparedStatement, String> entry : _checkedOut.entrySet())
+            if (entry.getValue() != null && sqls.contains(sql(entry.getValue())))
+                entry.setValue(null);
+    }
+
+    /**
+     * @return The SQL text of the provided cache key.
+     */
+    private String sql(String key)
+    {
+        return key.substring(key.indexOf(':', key.indexOf(':') + 1) + 1);
+    }
+
+    int size()
+    {
+        return _stmts.size();
+    }
+
+    void clear()
+    {
+        for (PreparedStatement stmt : _stmts.values())
+            close(stmt);
+
+        for (PreparedStatement stmt : _checkedOut.keySet())
+            close(stmt);
+
+        _stmts.clear();
+        _checkedOut.clear();
+    }
+
+    private void close(PreparedStatement stmt)
+    {
+        try
+        {
+            stmt.close();
+        }
+        catch (Exception e)
+        {
+            // Ignore
+        }
+    }
+}
@@ -0,0 +1,165 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package jBlocks.server.sql;
+
+import java.io.Serializable;
+
+/**
+ * A point in time snapshot of the executions of one statement recorded by {@link SqlStats}. Times are in
+ * microseconds.
+ *
+ * @author hkrishna
+ * @see SqlStats#snapshot()
+ */
+public class StatementStats implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The distribution of the time spent in one phase of the executions.
+     */
+    public static class Timing implements Serializable
+    {
+        private static final long serialVersionUID = 1L;
+
+        private long              _mean, _p50, _p95, _p99, _max;
+
+        Timing(Histogram histogram)
+        {
+            _mean = Math.round(histogram.getMean());
+            _p50 = histogram.getPercentile(50);
+            _p95 = histogram.getPercentile(95);
+            _p99 = histogram.getPercentile(99);
+            _max = histogram.getMax();
+        }
+
+        public long getMean()
+        {
+            return _mean;
+        }
+
+        public long get50()
+        {
+            return _p50;
+        }
+
+        public long get95()
+        {
+            return _p95;
+        }
+
+        public long get99()
+        {
+            return _p99;
+        }
+
+        public long getMax()
+        {
+            return _max;
+        }
+
+        @Override
+        public String toString()
+        {
+            return _mean + "/" + _p50 + "/" + _p95 + "/" + _p99 + "/" + _max;
+        }
+    }
+
+    private String            _stmtId;
+    private long              _count, _failures, _slow, _rows;
+    private Timing            _prepare, _execute, _fetch, _map, _total;
+
+    StatementStats(String stmtId, long count, long failures, long slow, long rows, Histogram prepare,
+        Histogram execute, Histogram fetch, Histogram map, Histogram total)
+    {
+        _stmtId = stmtId;
+        _count = count;
+        _failures = failures;
+        _slow = slow;
+        _rows = rows;
+        _prepare = new Timing(prepare);
+        _execute = new Timing(execute);
+        _fetch = new Timing(fetch);
+        _map = new Timing(map);
+        _total = new Timing(total);
+    }
+
+    public String getStmtId()
+    {
+        return _stmtId;
+    }
+
+    public long getCount()
+    {
+        return _count;
+    }
+
+    public long getFailures()
+    {
+        return _failures;
+    }
+
+    /**
+     * @return The number of executions that took longer than the slow query threshold.
+     */
+    public long getSlow()
+    {
+        return _slow;
+    }
+
+    /**
+     * @return The total number of rows selected or updated.
+     */
+    public long getRows()
+    {
+        return _rows;
+    }
+
+    public Timing getPrepare()
+    {
+        return _prepare;
+    }
+
+    public Timing getExecute()
+    {
+        return _execute;
+    }
+
+    public Timing getFetch()
+    {
+        return _fetch;
+    }
+
+    public Timing getMap()
+    {
+        return _map;
+    }
+
+    public Timing getTotal()
+    {
+        return _total;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder b = new StringBuilder(_stmtId).append(": Count: ").append(_count);
+        b.append(", Failures: ").append(_failures).append(", Slow: ").append(_slow).append(", Rows: ").append(_rows);
+        b.append(", Mean/50/95/99/max (us) total: ").append(_total).append(", prepare: ").append(_prepare);
+        b.append(", execute: ").append(_execute).append(", fetch: ").append(_fetch);
+        return b.append(", map: ").append(_map).toString();
+    }
+}
@@ -0,0 +1,142 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package jBlocks.server.bench;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A measured operation, run by {@link BenchmarkRunner} in a loop on one or more threads for a fixed time per
+ * iteration. The value returned by {@link #invoke()} is kept by the runner so the JIT cannot drop the work that
+ * produced it.
+ *
+ * @author hkrishna
+ */
+public abstract class Benchmark
+{
+    private String              _name;
+    private int                 _threads          = 1;
+    private int                 _opsPerInvocation = 1;
+    private Map<String, String> _params           = new LinkedHashMap<String, String>();
+
+    protected Benchmark(String name)
+    {
+        _name = name;
+    }
+
+    /**
+     * @param threads
+     *            The number of threads that invoke the operation concurrently; defaults to 1.
+     */
+    public Benchmark threads(int threads)
+    {
+        _threads = threads;
+
+        return this;
+    }
+
+    /**
+     * @param ops
+     *            The number of operations one invocation stands for, the rows of a batch for example; defaults to 1.
+     */
+    public Benchmark opsPerInvocation(int ops)
+    {
+        _opsPerInvocation = ops;
+
+        return this;
+    }
+
+    /**
+     * Records a parameter of the benchmark in its results.
+     */
+    public Benchmark param(String name, Object value)
+    {
+        _params.put(name, String.valueOf(value));
+
+        return this;
+    }
+
+    public String getName()
+    {
+        return _name;
+    }
+
+    public int getThreads()
+    {
+        return _threads;
+    }
+
+    public int getOpsPerInvocation()
+    {
+        return _opsPerInvocation;
+    }
+
+    public Map<String, String> getParams()
+    {
+        return Collections.unmodifiableMap(_params);
+    }
+
+    /**
+     * Called once, before the first iteration.
+     */
+    public void setUp() throws Exception
+    {
+        // Nothing by default
+    }
+
+    /**
+     * Called on every benchmark thread before its first invocation.
+     */
+    public void setUpThread() throws Exception
+    {
+        // Nothing by default
+    }
+
+    /**
+     * The measured operation.
+     */
+    public abstract Object invoke() throws Exception;
+
+    /**
+     * Called after every iteration, warm up iterations included, once all threads are done.
+     */
+    public void tearDownIteration() throws Exception
+    {
+        // Nothing by default
+    }
+
+    /**
+     * Called on every benchmark thread after its last invocation.
+     */
+    public void tearDownThread() throws Exception
+    {
+        // Nothing by default
+    }
+
+    /**
+     * Called once, after the last iteration.
+     */
+    public void tearDown() throws Exception
+    {
+        // Nothing by default
+    }
+
+    @Override
+    public String toString()
+    {
+        return _params.isEmpty() ? _name : _name + _params;
+    }
+}
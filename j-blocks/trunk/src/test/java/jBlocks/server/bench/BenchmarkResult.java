@@ -0,0 +1,136 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package jBlocks.server.bench;
+
+import java.util.Map;
+
+/**
+ * The throughput of a {@link Benchmark}, in operations per second, for each of its measured iterations.
+ *
+ * @author hkrishna
+ */
+public class BenchmarkResult
+{
+    // Two sided 99.9% quantiles of Student's t distribution for 1 to 10 degrees of freedom
+    private static final double[] T_999 = { 636.619, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781,
+        4.587 };
+
+    private String                _name;
+    private Map<String, String>   _params;
+    private int                   _threads;
+    private double[]              _scores;
+
+    BenchmarkResult(Benchmark benchmark, double[] scores)
+    {
+        _name = benchmark.getName();
+        _params = benchmark.getParams();
+        _threads = benchmark.getThreads();
+        _scores = scores;
+    }
+
+    public String getName()
+    {
+        return _name;
+    }
+
+    public Map<String, String> getParams()
+    {
+        return _params;
+    }
+
+    public int getThreads()
+    {
+        return _threads;
+    }
+
+    /**
+     * @return The operations per second of each measured iteration.
+     */
+    public double[] getScores()
+    {
+        return _scores.clone();
+    }
+
+    /**
+     * @return The mean operations per second.
+     */
+    public double getScore()
+    {
+        double sum = 0;
+
+        for (double score : _scores)
+            sum += score;
+
+        return _scores.length == 0 ? Double.NaN : sum / _scores.length;
+    }
+
+    /**
+     * @return The half width of the 99.9% confidence interval of the mean, NaN with less than 2 iterations.
+     */
+    public double getScoreError()
+    {
+        int n = _scores.length;
+
+        if (n < 2)
+            return Double.NaN;
+
+        double mean = getScore(), squares = 0;
+
+        for (double score : _scores)
+            squares += (score - mean) * (score - mean);
+
+        return quantile(n - 1) * Math.sqrt(squares / (n - 1)) / Math.sqrt(n);
+    }
+
+    /**
+     * @return The t quantile for the provided degrees of freedom, by the Cornish-Fisher expansion beyond the table.
+     */
+    private static double quantile(int df)
+    {
+        if (df <= T_999.length)
+            return T_999[df - 1];
+
+        double z = 3.2905, z3 = z * z * z, z5 = z3 * z * z;
+
+        return z + (z3 + z) / (4 * df) + (5 * z5 + 16 * z3 + 3 * z) / (96.0 * df * df);
+    }
+
+    public double getMin()
+    {
+        double min = _scores.length == 0 ? Double.NaN : _scores[0];
+
+        for (double score : _scores)
+            min = Math.min(min, score);
+
+        return min;
+    }
+
+    public double getMax()
+    {
+        double max = _scores.length == 0 ? Double.NaN : _scores[0];
+
+        for (double score : _scores)
+            max = Math.max(max, score);
+
+        return max;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%-40s %3d %14.3f \u00b1 %12.3f ops/s", _params.isEmpty() ? _name : _name + _params,
+            _threads, getScore(), getScoreError());
+    }
+}
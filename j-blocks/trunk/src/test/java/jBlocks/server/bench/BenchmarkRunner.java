@@ -0,0 +1,515 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package jBlocks.server.bench;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CyclicBarrier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs {@link Benchmark}s the way JMH does in throughput mode, in the JVM it is called from: every benchmark is run
+ * for a number of warm up iterations, whose results are discarded, and then for a number of measured iterations of a
+ * fixed time each, on as many threads as the benchmark asks for. The results can be written in JMH's JSON and CSV
+ * formats so they can be tracked with the tools built for JMH.
+ * <p>
+ * The options follow JMH's command line: <code>-wi</code> warm up iterations, <code>-i</code> measured iterations,
+ * <code>-w</code> and <code>-r</code> the time of each warm up and measured iteration, in JMH's form such as
+ * <code>500ms</code>, <code>1s</code> or <code>1min</code> where a bare number is seconds, and any other argument a
+ * regular expression the names of the benchmarks to run must contain. The benchmarks are not forked; they run as with
+ * JMH's <code>-f 0</code>, which is the only fork count accepted, so results of benchmarks that share a JVM can
+ * influence each other through its JIT and heap.
+ *
+ * @author hkrishna
+ */
+public class BenchmarkRunner
+{
+    private static final Pattern TIME = Pattern.compile("(\\d+)\\s*(ms|s|min|hr)?");
+
+    private int         _warmupIterations = 3;
+    private int         _iterations       = 5;
+    private long        _warmupMillis     = 1000;
+    private long        _iterationMillis  = 1000;
+    private Pattern     _filter;
+    private PrintStream _out              = System.out;
+
+    /**
+     * Parses the options, in JMH's command line form, and returns the options left over along with their values.
+     * Like all of JMH's options, options the runner does not know are taken to have a value.
+     *
+     * @throws IllegalArgumentException
+     *             When an option's value is invalid, or a fork count other than 0 is asked for.
+     */
+    public List<String> options(String[] args)
+    {
+        List<String> rest = new ArrayList<String>();
+        List<String> regexes = new ArrayList<String>();
+
+        for (int i = 0; i < args.length; i++)
+        {
+            String arg = args[i];
+
+            if (!arg.startsWith("-"))
+            {
+                regexes.add(arg);
+                continue;
+            }
+
+            if (i + 1 == args.length)
+                throw new IllegalArgumentException("Option " + arg + " needs a value.");
+
+            String value = args[++i];
+
+            if (arg.equals("-wi"))
+                _warmupIterations = Integer.parseInt(value);
+            else if (arg.equals("-i"))
+                _iterations = Integer.parseInt(value);
+            else if (arg.equals("-w"))
+                _warmupMillis = millis(value);
+            else if (arg.equals("-r"))
+                _iterationMillis = millis(value);
+            else if (arg.equals("-f"))
+                forks(Integer.parseInt(value));
+            else
+            {
+                rest.add(arg);
+                rest.add(value);
+            }
+        }
+
+        if (!regexes.isEmpty())
+            filter(regexes.toArray(new String[regexes.size()]));
+
+        return rest;
+    }
+
+    /**
+     * @return The milliseconds of the provided time, in JMH's form: a number followed by <code>ms</code>,
+     *         <code>s</code>, <code>min</code> or <code>hr</code>, seconds when there is no unit.
+     */
+    static long millis(String time)
+    {
+        Matcher matcher = TIME.matcher(time.trim());
+
+        if (!matcher.matches())
+            throw new IllegalArgumentException("Invalid time " + time + ", expected a number of ms, s, min or hr.");
+
+        long value = Long.parseLong(matcher.group(1));
+        String unit = matcher.group(2);
+
+        if ("ms".equals(unit))
+            return value;
+
+        if ("min".equals(unit))
+            return value * 60 * 1000;
+
+        if ("hr".equals(unit))
+            return value * 60 * 60 * 1000;
+
+        return value * 1000;
+    }
+
+    /**
+     * @return The provided milliseconds the way JMH writes times.
+     */
+    static String time(long millis)
+    {
+        return millis % 1000 == 0 ? millis / 1000 + " s" : millis + " ms";
+    }
+
+    /**
+     * @param forks
+     *            Must be 0; the benchmarks run in the calling JVM.
+     */
+    public BenchmarkRunner forks(int forks)
+    {
+        if (forks != 0)
+            throw new IllegalArgumentException("Forking is not supported; the benchmarks run in the calling JVM, "
+                + "as with -f 0.");
+
+        return this;
+    }
+
+    public BenchmarkRunner warmupIterations(int iterations)
+    {
+        _warmupIterations = iterations;
+
+        return this;
+    }
+
+    public BenchmarkRunner iterations(int iterations)
+    {
+        _iterations = iterations;
+
+        return this;
+    }
+
+    public BenchmarkRunner warmupMillis(long millis)
+    {
+        _warmupMillis = millis;
+
+        return this;
+    }
+
+    public BenchmarkRunner iterationMillis(long millis)
+    {
+        _iterationMillis = millis;
+
+        return this;
+    }
+
+    /**
+     * @param regexes
+     *            Regular expressions, one of which the names of the benchmarks to run must contain; none to run all.
+     */
+    public BenchmarkRunner filter(String... regexes)
+    {
+        if (regexes == null || regexes.length == 0)
+        {
+            _filter = null;
+            return this;
+        }
+
+        StringBuilder filter = new StringBuilder();
+
+        for (String regex : regexes)
+            filter.append(filter.length() == 0 ? "" : "|").append("(?:").append(regex).append(')');
+
+        _filter = Pattern.compile(filter.toString());
+
+        return this;
+    }
+
+    /**
+     * @param out
+     *            Where the progress is reported; defaults to the standard output.
+     */
+    public BenchmarkRunner out(PrintStream out)
+    {
+        _out = out;
+
+        return this;
+    }
+
+    /**
+     * Runs the benchmarks whose names match the filter, one after the other.
+     */
+    public List<BenchmarkResult> run(List<Benchmark> benchmarks) throws Exception
+    {
+        List<BenchmarkResult> results = new ArrayList<BenchmarkResult>();
+
+        for (Benchmark benchmark : benchmarks)
+            if (_filter == null || _filter.matcher(benchmark.getName()).find())
+                results.add(run(benchmark));
+
+        _out.println();
+
+        for (BenchmarkResult result : results)
+            _out.println(result);
+
+        return results;
+    }
+
+    public BenchmarkResult run(Benchmark benchmark) throws Exception
+    {
+        _out.println();
+        _out.println("# Benchmark: " + benchmark + ", " + benchmark.getThreads() + " thread(s)");
+
+        benchmark.setUp();
+
+        try
+        {
+            return new Trial(benchmark).run();
+        }
+        finally
+        {
+            benchmark.tearDown();
+        }
+    }
+
+    /**
+     * The iterations of one benchmark. The workers and the controlling thread meet at a barrier at the start and at
+     * the end of every iteration; in between the workers invoke the benchmark until the controlling thread, after
+     * sleeping through the iteration time, tells them to stop.
+     */
+    private class Trial
+    {
+        private Benchmark        _benchmark;
+        private Worker[]         _workers;
+        private CyclicBarrier    _start;
+        private CyclicBarrier    _end;
+        private volatile boolean _running;
+        private volatile boolean _done;
+
+        Trial(Benchmark benchmark)
+        {
+            _benchmark = benchmark;
+            _workers = new Worker[benchmark.getThreads()];
+            _start = new CyclicBarrier(_workers.length + 1);
+            _end = new CyclicBarrier(_workers.length + 1);
+        }
+
+        BenchmarkResult run() throws Exception
+        {
+            for (int i = 0; i < _workers.length; i++)
+            {
+                _workers[i] = new Worker();
+
+                Thread thread = new Thread(_workers[i], "bench-" + _benchmark.getName() + "-" + (i + 1));
+                thread.setDaemon(true);
+                thread.start();
+            }
+
+            double[] scores = new double[_iterations];
+
+            try
+            {
+                for (int i = 0; i < _warmupIterations; i++)
+                    _out.println(String.format("# Warmup Iteration %3d: %.3f ops/s", i + 1,
+                        iteration(_warmupMillis)));
+
+                for (int i = 0; i < _iterations; i++)
+                    _out.println(String.format("Iteration %3d: %.3f ops/s", i + 1,
+                        scores[i] = iteration(_iterationMillis)));
+            }
+            finally
+            {
+                _done = true;
+                _start.await();
+            }
+
+            for (Worker worker : _workers)
+                worker.check();
+
+            BenchmarkResult result = new BenchmarkResult(_benchmark, scores);
+            _out.println(String.format("Result: %.3f \u00b1 %.3f ops/s", result.getScore(), result.getScoreError()));
+
+            return result;
+        }
+
+        /**
+         * @return The operations per second of the iteration.
+         */
+        private double iteration(long millis) throws Exception
+        {
+            _running = true;
+            _start.await();
+
+            long start = System.nanoTime();
+            Thread.sleep(millis);
+            _running = false;
+
+            _end.await();
+            long elapsed = System.nanoTime() - start;
+
+            long ops = 0;
+
+            for (Worker worker : _workers)
+            {
+                worker.check();
+                ops += worker._ops;
+            }
+
+            _benchmark.tearDownIteration();
+
+            return ops * _benchmark.getOpsPerInvocation() * 1e9 / elapsed;
+        }
+
+        private class Worker implements Runnable
+        {
+            private long            _ops;
+            private Throwable       _failure;
+            private volatile Object _sink;
+
+            public void run()
+            {
+                try
+                {
+                    _benchmark.setUpThread();
+                }
+                catch (Throwable e)
+                {
+                    _failure = e;
+                }
+
+                try
+                {
+                    while (true)
+                    {
+                        _start.await();
+
+                        if (_done)
+                            break;
+
+                        _ops = 0;
+
+                        while (_running && _failure == null)
+                        {
+                            try
+                            {
+                                _sink = _benchmark.invoke();
+                                _ops++;
+                            }
+                            catch (Throwable e)
+                            {
+                                _failure = e;
+                            }
+                        }
+
+                        _end.await();
+                    }
+                }
+                catch (Throwable e)
+                {
+                    _failure = e;
+                }
+                finally
+                {
+                    _sink = null;
+
+                    try
+                    {
+                        _benchmark.tearDownThread();
+                    }
+                    catch (Throwable e)
+                    {
+                        _failure = e;
+                    }
+                }
+            }
+
+            void check() throws Exception
+            {
+                if (_failure instanceof Exception)
+                    throw (Exception) _failure;
+
+                if (_failure != null)
+                    throw new RuntimeException(_failure);
+            }
+        }
+    }
+
+    /**
+     * Writes the results in JMH's JSON format.
+     */
+    public void writeJson(List<BenchmarkResult> results, Appendable out) throws IOException
+    {
+        out.append("[\n");
+
+        for (int r = 0; r < results.size(); r++)
+        {
+            BenchmarkResult result = results.get(r);
+            double score = result.getScore(), error = result.getScoreError();
+
+            out.append("    {\n");
+            out.append("        \"benchmark\" : ").append(quote(result.getName())).append(",\n");
+            out.append("        \"mode\" : \"thrpt\",\n");
+            out.append("        \"threads\" : ").append(String.valueOf(result.getThreads())).append(",\n");
+            // Not forked, as JMH reports benchmarks run in its own JVM
+            out.append("        \"forks\" : 0,\n");
+            out.append("        \"warmupIterations\" : ").append(String.valueOf(_warmupIterations)).append(",\n");
+            out.append("        \"warmupTime\" : \"").append(time(_warmupMillis)).append("\",\n");
+            out.append("        \"measurementIterations\" : ").append(String.valueOf(_iterations)).append(",\n");
+            out.append("        \"measurementTime\" : \"").append(time(_iterationMillis)).append("\",\n");
+
+            if (!result.getParams().isEmpty())
+            {
+                out.append("        \"params\" : {");
+
+                String sep = " ";
+
+                for (Map.Entry<String, String> param : result.getParams().entrySet())
+                {
+                    out.append(sep).append(quote(param.getKey())).append(" : ").append(quote(param.getValue()));
+                    sep = ", ";
+                }
+
+                out.append(" },\n");
+            }
+
+            out.append("        \"primaryMetric\" : {\n");
+            out.append("            \"score\" : ").append(number(score)).append(",\n");
+            out.append("            \"scoreError\" : ").append(number(error)).append(",\n");
+            out.append("            \"scoreConfidence\" : [ ").append(number(score - error)).append(", ").append(
+                number(score + error)).append(" ],\n");
+            out.append("            \"scoreUnit\" : \"ops/s\",\n");
+            out.append("            \"rawData\" : [ [");
+
+            double[] scores = result.getScores();
+
+            for (int i = 0; i < scores.length; i++)
+                out.append(i == 0 ? " " : ", ").append(number(scores[i]));
+
+            out.append(" ] ]\n");
+            out.append("        },\n");
+            out.append("        \"secondaryMetrics\" : { }\n");
+            out.append(r < results.size() - 1 ? "    },\n" : "    }\n");
+        }
+
+        out.append("]\n");
+    }
+
+    /**
+     * Writes the results in JMH's CSV format, a column per parameter of any of the benchmarks.
+     */
+    public void writeCsv(List<BenchmarkResult> results, Appendable out) throws IOException
+    {
+        Set<String> params = new LinkedHashSet<String>();
+
+        for (BenchmarkResult result : results)
+            params.addAll(result.getParams().keySet());
+
+        out.append("\"Benchmark\",\"Mode\",\"Threads\",\"Samples\",\"Score\",\"Score Error (99.9%)\",\"Unit\"");
+
+        for (String param : params)
+            out.append(",\"Param: ").append(param).append('"');
+
+        out.append("\r\n");
+
+        for (BenchmarkResult result : results)
+        {
+            out.append(quote(result.getName())).append(",\"thrpt\",").append(String.valueOf(result.getThreads()));
+            out.append(',').append(String.valueOf(result.getScores().length));
+            out.append(',').append(String.format(Locale.US, "%f", result.getScore()));
+            out.append(',').append(String.format(Locale.US, "%f", result.getScoreError()));
+            out.append(",\"ops/s\"");
+
+            for (String param : params)
+            {
+                String value = result.getParams().get(param);
+                out.append(',').append(value == null ? "" : value);
+            }
+
+            out.append("\r\n");
+        }
+    }
+
+    private static String quote(String value)
+    {
+        return '"' + value.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+
+    private static String number(double value)
+    {
+        return Double.isNaN(value) || Double.isInfinite(value) ? "\"NaN\"" : String.valueOf(value);
+    }
+}
@@ -0,0 +1,101 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package jBlocks.server.bench;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class BenchmarkRunnerTest
+{
+    private Benchmark benchmark(String name)
+    {
+        return new Benchmark(name)
+        {
+            @Override
+            public Object invoke()
+            {
+                return null;
+            }
+        };
+    }
+
+    @Test
+    public void testTimeValues()
+    {
+        assertEquals(500, BenchmarkRunner.millis("500ms"));
+        assertEquals(2000, BenchmarkRunner.millis("2s"));
+        assertEquals(3000, BenchmarkRunner.millis("3"));
+        assertEquals(60000, BenchmarkRunner.millis("1min"));
+        assertEquals(3600000, BenchmarkRunner.millis("1hr"));
+
+        try
+        {
+            BenchmarkRunner.millis("10us");
+            fail();
+        }
+        catch (IllegalArgumentException e)
+        {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testRejectsForks()
+    {
+        new BenchmarkRunner().options(new String[] { "-f", "0" });
+
+        try
+        {
+            new BenchmarkRunner().options(new String[] { "-f", "1" });
+            fail();
+        }
+        catch (IllegalArgumentException e)
+        {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testOptions() throws Exception
+    {
+        BenchmarkRunner runner = new BenchmarkRunner().out(new PrintStream(new ByteArrayOutputStream()));
+
+        List<String> rest = runner.options(new String[] { "-wi", "0", "-i", "1", "-w", "5ms", "-r", "20ms", "-o",
+            "target", "select", "^insert" });
+
+        assertEquals(Arrays.asList("-o", "target"), rest);
+
+        List<BenchmarkResult> results = runner.run(Arrays.asList(benchmark("select.1"), benchmark("batch.insert"),
+            benchmark("insert.100")));
+
+        assertEquals(2, results.size());
+        assertEquals("select.1", results.get(0).getName());
+        assertEquals("insert.100", results.get(1).getName());
+
+        StringBuilder json = new StringBuilder();
+        runner.writeJson(results, json);
+
+        assertTrue(json.indexOf("\"warmupTime\" : \"5 ms\"") > 0);
+        assertTrue(json.indexOf("\"measurementTime\" : \"20 ms\"") > 0);
+    }
+}
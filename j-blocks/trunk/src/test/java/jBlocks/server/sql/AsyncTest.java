@@ -0,0 +1,203 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package jBlocks.server.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class AsyncTest extends DerbyTestCase
+{
+    private static CyclicBarrier _barrier;
+
+    /**
+     * Called by Derby for the <code>meet</code> function; returns once as many selects have called it.
+     */
+    public static int meet(int id) throws Exception
+    {
+        _barrier.await(5, TimeUnit.SECONDS);
+
+        return id;
+    }
+
+    @Override
+    protected Properties schema()
+    {
+        Properties props = super.schema();
+        props.setProperty("emp.meet.sql", "select meet(e.id) id from emp e where e.id = #.#");
+        props.setProperty("emp.missing.sql", "select m.id from missing m");
+
+        return props;
+    }
+
+    @Before
+    public void setUpFunctions() throws Exception
+    {
+        execute("create function meet(id int) returns int parameter style java no sql language java "
+            + "external name '" + AsyncTest.class.getName() + ".meet'");
+    }
+
+    private Map<String, Object> emp(int id)
+    {
+        Map<String, Object> emp = new HashMap<String, Object>();
+        emp.put("Id", id);
+        emp.put("Name", "e" + id);
+        emp.put("Dept", 1);
+
+        return emp;
+    }
+
+    @Test
+    public void testSelectsRunConcurrently() throws Exception
+    {
+        int selects = _dataSource.getMaxSize() - 1;
+
+        for (int i = 1; i <= selects; i++)
+            insert(i, "e" + i, 1);
+
+        // Each select waits in the database for all the others
+        _barrier = new CyclicBarrier(selects);
+
+        List<Future<List<Object>>> futures = new ArrayList<Future<List<Object>>>();
+
+        for (int i = 1; i <= selects; i++)
+            futures.add(_sqlClient.<Object> selectAsync("emp.meet.sql", i));
+
+        for (int i = 0; i < selects; i++)
+            assertEquals(1, futures.get(i).get().size());
+    }
+
+    @Test
+    public void testFailuresPropagateThroughGet() throws Exception
+    {
+        insert(1, "a", 1);
+
+        try
+        {
+            _sqlClient.selectAsync("emp.missing.sql", null).get();
+            fail();
+        }
+        catch (ExecutionException e)
+        {
+            // Expected
+        }
+
+        assertEquals(1, _sqlClient.executeUpdateAsync("emp.insert.sql", emp(2)).get().intValue());
+
+        try
+        {
+            _sqlClient.executeUpdateAsync("emp.insert.sql", emp(1)).get();
+            fail();
+        }
+        catch (ExecutionException e)
+        {
+            // Expected
+        }
+
+        assertEquals(2, _sqlClient.select("emp.all.sql", null).size());
+    }
+
+    @Test
+    public void testShutdownFinishesSubmittedOperations() throws Exception
+    {
+        insert(1, "a", 1);
+
+        ExecutorService executor = _sqlClient.executor();
+        List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+
+        for (int i = 2; i <= 9; i++)
+            futures.add(_sqlClient.executeUpdateAsync("emp.insert.sql", emp(i)));
+
+        _sqlClient.shutdown();
+
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+        for (Future<Integer> future : futures)
+            assertEquals(1, future.get().intValue());
+
+        assertEquals(9, _sqlClient.select("emp.all.sql", null).size());
+    }
+
+    /**
+     * As many transactions as there are connections select asynchronously at once; the selects cannot get a connection
+     * and run on the transactions' own sessions instead of waiting for the pool.
+     */
+    @Test
+    public void testNoStarvationWhenTransactionsHoldAllConnections() throws Exception
+    {
+        insert(1, "a", 1);
+
+        int transactions = _dataSource.getMaxSize();
+        final CyclicBarrier barrier = new CyclicBarrier(transactions);
+        ExecutorService threads = Executors.newFixedThreadPool(transactions);
+        List<Future<Object>> results = new ArrayList<Future<Object>>();
+
+        for (int i = 0; i < transactions; i++)
+        {
+            results.add(threads.submit(new Callable<Object>()
+            {
+                public Object call()
+                {
+                    try
+                    {
+                        return _sqlClient.transact(new SqlTask<Object>()
+                        {
+                            public Object execute()
+                            {
+                                _sqlClient.selectOne("emp.byId.sql", 1);
+
+                                try
+                                {
+                                    barrier.await();
+
+                                    return _sqlClient.selectAsync("emp.all.sql", null).get().size();
+                                }
+                                catch (Exception e)
+                                {
+                                    throw new IllegalStateException(e);
+                                }
+                            }
+                        });
+                    }
+                    finally
+                    {
+                        _sqlClient.endSession();
+                    }
+                }
+            }));
+        }
+
+        for (Future<Object> result : results)
+            assertEquals(1, result.get());
+
+        threads.shutdown();
+    }
+}
@@ -0,0 +1,180 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package jBlocks.server.sql;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class DataManagerTest extends DerbyTestCase
+{
+    private static int             _replicaDbs;
+
+    private List<String>           _replicaUrls = new ArrayList<String>();
+    private List<SimpleDataSource> _replicas    = new ArrayList<SimpleDataSource>();
+
+    @After
+    public void tearDownReplicas() throws Exception
+    {
+        _sqlClient.endSession();
+
+        for (SimpleDataSource replica : _replicas)
+            replica.shutdown();
+
+        for (String url : _replicaUrls)
+        {
+            try
+            {
+                DriverManager.getConnection(url + ";drop=true");
+            }
+            catch (SQLException e)
+            {
+                // Derby reports a dropped database with an exception, and a missing one too
+            }
+        }
+    }
+
+    /**
+     * @return The pool of a new replica database, which is only created when asked for; reading from a replica that
+     *         is not created fails.
+     */
+    private SimpleDataSource replica(boolean create) throws SQLException
+    {
+        String url = "jdbc:derby:memory:" + getClass().getSimpleName() + "Replica" + (++_replicaDbs);
+        _replicaUrls.add(url);
+
+        if (create)
+            createReplica(url);
+
+        SimpleDataSource replica = new SimpleDataSource(DRIVER, url, new Properties()).maxSize(2);
+        _replicas.add(replica);
+
+        return replica;
+    }
+
+    private void createReplica(String url) throws SQLException
+    {
+        Connection conn = DriverManager.getConnection(url + ";create=true");
+
+        try
+        {
+            Statement stmt = conn.createStatement();
+            stmt.executeUpdate("create table emp (id int primary key, name varchar(40), dept int)");
+            stmt.executeUpdate("insert into emp values (1, 'replica', 1)");
+            stmt.close();
+        }
+        finally
+        {
+            conn.close();
+        }
+    }
+
+    private String name()
+    {
+        return (String) ((Map<?, ?>) _sqlClient.selectOne("emp.byId.sql", 1)).get("Name");
+    }
+
+    private void rename(final String name)
+    {
+        _sqlClient.transact(new SqlTask<Integer>()
+        {
+            public Integer execute()
+            {
+                Map<String, Object> emp = new HashMap<String, Object>();
+                emp.put("Id", 1);
+                emp.put("Name", name);
+
+                return _sqlClient.executeUpdate("emp.rename.sql", emp);
+            }
+        });
+    }
+
+    @Test
+    public void testReadsFromReplicaUntilSessionWrites() throws Exception
+    {
+        insert(1, "primary", 1);
+        _sqlClient.dataManager().addReplica(replica(true));
+
+        assertEquals("replica", name());
+
+        rename("renamed");
+        assertEquals("renamed", name());
+
+        _sqlClient.endSession();
+        assertEquals("replica", name());
+    }
+
+    @Test
+    public void testReadsFromReplicaAfterWritesWithoutReadYourWrites() throws Exception
+    {
+        insert(1, "primary", 1);
+        _sqlClient.dataManager().addReplica(replica(true)).readYourWrites(false);
+
+        rename("renamed");
+        assertEquals("replica", name());
+    }
+
+    @Test
+    public void testSkipsFailedReplica() throws Exception
+    {
+        insert(1, "primary", 1);
+
+        DataManager dataManager = _sqlClient.dataManager();
+        dataManager.addReplica(replica(false)).addReplica(replica(true));
+
+        for (int i = 0; i < 4; i++)
+        {
+            assertEquals("replica", name());
+            _sqlClient.endSession();
+        }
+
+        assertEquals(1, dataManager.getHealthyReplicas());
+    }
+
+    @Test
+    public void testEjectsFailedReplicaForAWhile() throws Exception
+    {
+        insert(1, "primary", 1);
+
+        DataManager dataManager = _sqlClient.dataManager();
+        dataManager.addReplica(replica(false)).ejectFor(300).healthCheckQuery("values 1");
+
+        assertEquals("primary", name());
+        assertEquals(0, dataManager.getHealthyReplicas());
+
+        // The replica recovers, but is only checked again once the while is over
+        createReplica(_replicaUrls.get(0));
+
+        _sqlClient.endSession();
+        assertEquals("primary", name());
+
+        Thread.sleep(400);
+
+        _sqlClient.endSession();
+        assertEquals("replica", name());
+        assertEquals(1, dataManager.getHealthyReplicas());
+    }
+}
@@ -0,0 +1,109 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package jBlocks.server.sql;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+
+/**
+ * Runs every test against a new in-memory Derby database holding an <code>emp</code> table, through a
+ * {@link SimpleDataSource} and a {@link SqlClient}.
+ * 
+ * @author hkrishna
+ */
+public abstract class DerbyTestCase
+{
+    static final String        DRIVER = "org.apache.derby.jdbc.EmbeddedDriver";
+
+    private static int         _databases;
+
+    protected String           _url;
+    protected SimpleDataSource _dataSource;
+    protected SqlClient        _sqlClient;
+
+    @Before
+    public void setUpDatabase() throws Exception
+    {
+        _url = "jdbc:derby:memory:" + getClass().getSimpleName() + (++_databases);
+        _dataSource = new SimpleDataSource(DRIVER, _url + ";create=true", new Properties()).maxSize(4)
+            .checkoutTimeout(2000);
+
+        execute("create table emp (id int primary key, name varchar(40), dept int)");
+
+        _sqlClient = new SqlClient(_dataSource, getClass().getSimpleName());
+        _sqlClient.loadSchema(schema());
+    }
+
+    /**
+     * @return The statements of the test; by default <code>emp.byId.sql</code>, <code>emp.all.sql</code>,
+     *         <code>emp.insert.sql</code> and <code>emp.rename.sql</code>, mapped to a <code>HashMap</code>.
+     */
+    protected Properties schema()
+    {
+        Properties props = new Properties();
+
+        props.setProperty("emp.class", "java.util.HashMap");
+        props.setProperty("emp.byId.sql", "select e.id, e.name, e.dept from emp e where e.id = #.#");
+        props.setProperty("emp.all.sql", "select e.id, e.name, e.dept from emp e order by e.id");
+        props.setProperty("emp.insert.sql", "insert into emp (id, name, dept) values (#Id#, #Name#, #Dept#)");
+        props.setProperty("emp.rename.sql", "update emp set name = #Name# where id = #Id#");
+
+        return props;
+    }
+
+    @After
+    public void tearDownDatabase() throws Exception
+    {
+        _sqlClient.endSession();
+        _sqlClient.shutdown();
+        _dataSource.shutdown();
+
+        try
+        {
+            DriverManager.getConnection(_url + ";drop=true");
+        }
+        catch (SQLException e)
+        {
+            // Derby reports a dropped database with an exception
+        }
+    }
+
+    protected void execute(String sql) throws SQLException
+    {
+        Connection conn = _dataSource.getConnection();
+
+        try
+        {
+            Statement stmt = conn.createStatement();
+            stmt.executeUpdate(sql);
+            stmt.close();
+        }
+        finally
+        {
+            conn.close();
+        }
+    }
+
+    protected void insert(int id, String name, int dept) throws SQLException
+    {
+        execute("insert into emp values (" + id + ", '" + name + "', " + dept + ")");
+    }
+}
@@ -0,0 +1,199 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package jBlocks.server.sql;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.Test;
+
+public class DialectTest extends DerbyTestCase
+{
+    private static final String SQL = "select e.id, e.name from emp e where e.dept = ? order by e.name";
+
+    @Override
+    protected Properties schema()
+    {
+        Properties props = super.schema();
+        props.setProperty("emp.byDept.sql", "select e.id, e.name, e.dept from emp e where e.dept = #.# or e.dept = 9 "
+            + "order by e.name");
+        props.setProperty("emp.byDept.sql.sort-key", "e.id");
+        props.setProperty("emp.byDeptDesc.sql", "select e.id, e.name, e.dept from emp e where e.dept = #.#");
+        props.setProperty("emp.byDeptDesc.sql.sort-key", "e.id desc");
+
+        props.setProperty("order.class", ResultBuilderTest.Order.class.getName());
+        props.setProperty("order.all.sql", "select o.id, o.customer from orders o order by o.id");
+        props.setProperty("order.all.sql.sort-key", "o.id");
+        props.setProperty("order.withLines.sql", "select o.id, o.customer, l.id \"Lines$Id\", l.sku \"Lines$Sku\" "
+            + "from orders o join lines l on l.order_id = o.id order by o.id, l.id");
+        props.setProperty("order.withLines.sql.sort-key", "o.id");
+
+        return props;
+    }
+
+    @Test
+    public void testLimitOffset()
+    {
+        assertEquals(SQL + " limit ? offset ?", Dialect.LIMIT_OFFSET.page(SQL, 20, 10));
+        assertArrayEquals(new Object[] { 10, 20 }, Dialect.LIMIT_OFFSET.pageParams(20, 10));
+        assertEquals(0, Dialect.LIMIT_OFFSET.skip(20));
+    }
+
+    @Test
+    public void testOffsetFetch()
+    {
+        assertEquals(SQL + " offset ? rows fetch next ? rows only", Dialect.OFFSET_FETCH.page(SQL, 20, 10));
+        assertArrayEquals(new Object[] { 20, 10 }, Dialect.OFFSET_FETCH.pageParams(20, 10));
+        assertEquals(0, Dialect.OFFSET_FETCH.skip(20));
+    }
+
+    @Test
+    public void testTop()
+    {
+        assertEquals("select top 30 e.id, e.name from emp e where e.dept = ? order by e.name", Dialect.TOP.page(SQL,
+            20, 10));
+        assertEquals("select distinct top 30 e.name from emp e", Dialect.TOP.page("select distinct e.name from emp e",
+            20, 10));
+        assertEquals(0, Dialect.TOP.pageParams(20, 10).length);
+        assertEquals(20, Dialect.TOP.skip(20));
+    }
+
+    @Test
+    public void testStripOrderBy()
+    {
+        assertEquals("select e.id, e.name from emp e where e.dept = ?", Dialect.stripOrderBy(SQL));
+        assertEquals("select e.id from emp e where e.name = ' order by x'", Dialect.stripOrderBy(
+            "select e.id from emp e where e.name = ' order by x'"));
+        assertEquals("select e.id from (select id from emp order by id) e", Dialect.stripOrderBy(
+            "select e.id from (select id from emp order by id) e"));
+    }
+
+    @Test
+    public void testKeysetAddsToWhereClause()
+    {
+        assertEquals("select e.id from emp e where (e.dept = ? or e.dept = 2) and e.id > ? order by e.id", Dialect
+            .keyset("select e.id from emp e where e.dept = ? or e.dept = 2 order by e.name", "e.id", false, true));
+        assertEquals("select e.id from emp e where e.id < ? order by e.id desc", Dialect.keyset(
+            "select e.id from emp e", "e.id", true, true));
+        assertEquals("select e.id from emp e where e.dept = ? order by e.id", Dialect.keyset(
+            "select e.id from emp e where e.dept = ?", "e.id", false, false));
+    }
+
+    @Test
+    public void testKeysetIgnoresNestedWhere()
+    {
+        assertEquals("select e.id from emp e where (e.dept in (select id from dept where name = ?)) and e.id > ? "
+            + "order by e.id", Dialect.keyset("select e.id from emp e where e.dept in (select id from dept where "
+            + "name = ?)", "e.id", false, true));
+        assertEquals("select e.id from (select id from emp where dept = 1) e where e.id > ? order by e.id", Dialect
+            .keyset("select e.id from (select id from emp where dept = 1) e", "e.id", false, true));
+    }
+
+    @Test
+    public void testKeysetWrapsGroupBy()
+    {
+        assertEquals("select * from (select e.dept, count(*) n from emp e group by e.dept) p where p.dept > ? "
+            + "order by p.dept", Dialect.keyset("select e.dept, count(*) n from emp e group by e.dept order by n",
+            "e.dept", false, true));
+    }
+
+    @Test
+    public void testCount()
+    {
+        assertEquals("select count(*) from (select e.id, e.name from emp e where e.dept = ?) c", Dialect.count(SQL));
+    }
+
+    private List<Object> ids(List<?> rows)
+    {
+        List<Object> ids = new ArrayList<Object>();
+
+        for (Object row : rows)
+            ids.add(((Map<?, ?>) row).get("Id"));
+
+        return ids;
+    }
+
+    @Test
+    public void testPagesOnDerby() throws Exception
+    {
+        for (int i = 1; i <= 7; i++)
+            insert(i, "n" + (8 - i), i == 7 ? 2 : 1);
+
+        _sqlClient.setDialect(Dialect.OFFSET_FETCH);
+
+        assertEquals(6, _sqlClient.selectCount("emp.byDept.sql", 1));
+        assertEquals("[4, 3]", ids(_sqlClient.selectPage("emp.byDept.sql", 1, 2, 2)).toString());
+
+        List<?> page = _sqlClient.selectPageAfter("emp.byDept.sql", 1, null, 4);
+        assertEquals("[1, 2, 3, 4]", ids(page).toString());
+        assertEquals("[5, 6]", ids(_sqlClient.selectPageAfter("emp.byDept.sql", 1, 4, 4)).toString());
+        assertEquals("[4, 3]", ids(_sqlClient.selectPageAfter("emp.byDeptDesc.sql", 1, 5, 2)).toString());
+    }
+
+    @Test
+    public void testRejectsMergedRows() throws Exception
+    {
+        execute("create table orders (id int primary key, customer varchar(40))");
+        execute("create table lines (id int primary key, order_id int, sku varchar(40))");
+        execute("insert into orders values (1, 'x'), (2, 'y')");
+        execute("insert into lines values (11, 1, 'a'), (12, 1, 'b'), (13, 1, 'c'), (21, 2, 'd'), (22, 2, 'e')");
+
+        _sqlClient.setDialect(Dialect.OFFSET_FETCH);
+
+        try
+        {
+            _sqlClient.selectPage("order.withLines.sql", null, 0, 2);
+            fail();
+        }
+        catch (IllegalArgumentException e)
+        {
+            // Expected
+        }
+
+        try
+        {
+            _sqlClient.selectPageAfter("order.withLines.sql", null, null, 2);
+            fail();
+        }
+        catch (IllegalArgumentException e)
+        {
+            // Expected
+        }
+
+        try
+        {
+            _sqlClient.selectCount("order.withLines.sql", null);
+            fail();
+        }
+        catch (IllegalArgumentException e)
+        {
+            // Expected
+        }
+
+        // The models alone page as usual
+        assertEquals(2, _sqlClient.selectCount("order.all.sql", null));
+
+        List<ResultBuilderTest.Order> page = _sqlClient.selectPage("order.all.sql", null, 1, 2);
+        assertEquals(1, page.size());
+        assertEquals("y", page.get(0).getCustomer());
+        assertEquals(2, _sqlClient.selectPageAfter("order.all.sql", null, null, 2).size());
+    }
+}
@@ -0,0 +1,108 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package jBlocks.server.sql;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class PrefetchTest extends DerbyTestCase
+{
+    private Object name(Object emp)
+    {
+        return ((Map<?, ?>) emp).get("Name");
+    }
+
+    @Test
+    public void testSelectsByKey() throws Exception
+    {
+        insert(1, "a", 1);
+        insert(2, "b", 1);
+
+        Prefetch prefetch = _sqlClient.prefetch().select("emp.byId.sql", 1).select("two", "emp.byId.sql", 2).select(
+            "emp.all.sql", null);
+
+        assertEquals("a", name(prefetch.getOne("emp.byId.sql")));
+        assertEquals("b", name(prefetch.getOne("two")));
+        assertEquals(2, prefetch.get("emp.all.sql").size());
+    }
+
+    /**
+     * As many transactions as there are connections prefetch at once; the selects cannot get a connection and run on
+     * the transactions' own sessions instead of waiting for the pool.
+     */
+    @Test
+    public void testNoStarvationWhenTransactionsHoldAllConnections() throws Exception
+    {
+        insert(1, "a", 1);
+
+        int transactions = _dataSource.getMaxSize();
+        final CyclicBarrier barrier = new CyclicBarrier(transactions);
+        ExecutorService threads = Executors.newFixedThreadPool(transactions);
+        List<Future<Object>> results = new ArrayList<Future<Object>>();
+
+        for (int i = 0; i < transactions; i++)
+        {
+            results.add(threads.submit(new Callable<Object>()
+            {
+                public Object call()
+                {
+                    try
+                    {
+                        return _sqlClient.transact(new SqlTask<Object>()
+                        {
+                            public Object execute()
+                            {
+                                _sqlClient.selectOne("emp.byId.sql", 1);
+
+                                try
+                                {
+                                    barrier.await();
+                                }
+                                catch (Exception e)
+                                {
+                                    throw new IllegalStateException(e);
+                                }
+
+                                Prefetch prefetch = _sqlClient.prefetch().select("emp.byId.sql", 1).select(
+                                    "emp.all.sql", null);
+
+                                return name(prefetch.getOne("emp.byId.sql")) + "" + prefetch.get("emp.all.sql").size();
+                            }
+                        });
+                    }
+                    finally
+                    {
+                        _sqlClient.endSession();
+                    }
+                }
+            }));
+        }
+
+        for (Future<Object> result : results)
+            assertEquals("a1", result.get());
+
+        threads.shutdown();
+    }
+}
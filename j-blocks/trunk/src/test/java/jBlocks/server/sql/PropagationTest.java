@@ -0,0 +1,198 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package jBlocks.server.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import jBlocks.server.AggregateException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class PropagationTest extends DerbyTestCase
+{
+    private Map<String, Object> emp(int id)
+    {
+        Map<String, Object> emp = new HashMap<String, Object>();
+        emp.put("Id", id);
+        emp.put("Name", "e" + id);
+        emp.put("Dept", 1);
+
+        return emp;
+    }
+
+    private List<Integer> ids()
+    {
+        List<Integer> ids = new ArrayList<Integer>();
+
+        for (Object emp : _sqlClient.select("emp.all.sql", null))
+            ids.add(Integer.valueOf(String.valueOf(((Map<?, ?>) emp).get("Id"))));
+
+        return ids;
+    }
+
+    private void insert(int id)
+    {
+        _sqlClient.executeUpdate("emp.insert.sql", emp(id));
+    }
+
+    /**
+     * Inserts the provided employee in a nested transaction, then fails it.
+     */
+    private void insertAndFail(final int id, Propagation propagation)
+    {
+        try
+        {
+            _sqlClient.transact(new SqlTask<Object>()
+            {
+                public Object execute()
+                {
+                    insert(id);
+
+                    throw new IllegalArgumentException("Nested task failed");
+                }
+            }, propagation);
+            fail();
+        }
+        catch (AggregateException e)
+        {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testNestedFailureRollsBackOnlyItsWork()
+    {
+        _sqlClient.transact(new SqlTask<Object>()
+        {
+            public Object execute()
+            {
+                insert(1);
+                insertAndFail(2, Propagation.NESTED);
+                insert(3);
+
+                return null;
+            }
+        });
+
+        assertEquals(Arrays.asList(1, 3), ids());
+    }
+
+    @Test
+    public void testFailureRollsBackToInnermostSavepoint()
+    {
+        _sqlClient.transact(new SqlTask<Object>()
+        {
+            public Object execute()
+            {
+                insert(1);
+
+                _sqlClient.transact(new SqlTask<Object>()
+                {
+                    public Object execute()
+                    {
+                        insert(2);
+                        insertAndFail(3, Propagation.NESTED);
+                        insert(4);
+
+                        return null;
+                    }
+                });
+
+                insert(5);
+
+                return null;
+            }
+        });
+
+        assertEquals(Arrays.asList(1, 2, 4, 5), ids());
+    }
+
+    @Test
+    public void testEnclosingFailureRollsBackNestedWork()
+    {
+        try
+        {
+            _sqlClient.transact(new SqlTask<Object>()
+            {
+                public Object execute()
+                {
+                    insert(1);
+
+                    _sqlClient.transact(new SqlTask<Object>()
+                    {
+                        public Object execute()
+                        {
+                            insert(2);
+
+                            return null;
+                        }
+                    });
+
+                    throw new IllegalArgumentException("Enclosing task failed");
+                }
+            });
+            fail();
+        }
+        catch (AggregateException e)
+        {
+            // Expected
+        }
+
+        assertEquals(0, ids().size());
+    }
+
+    @Test
+    public void testRequiresNewCommitsIndependently()
+    {
+        try
+        {
+            _sqlClient.transact(new SqlTask<Object>()
+            {
+                public Object execute()
+                {
+                    insert(1);
+
+                    _sqlClient.transact(new SqlTask<Object>()
+                    {
+                        public Object execute()
+                        {
+                            insert(2);
+
+                            return null;
+                        }
+                    }, Propagation.REQUIRES_NEW);
+
+                    insertAndFail(3, Propagation.REQUIRES_NEW);
+
+                    throw new IllegalArgumentException("Enclosing task failed");
+                }
+            });
+            fail();
+        }
+        catch (AggregateException e)
+        {
+            // Expected
+        }
+
+        assertEquals(Arrays.asList(2), ids());
+    }
+}
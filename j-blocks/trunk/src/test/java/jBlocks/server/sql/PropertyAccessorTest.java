@@ -0,0 +1,164 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package jBlocks.server.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class PropertyAccessorTest
+{
+    public interface Named
+    {
+        String getName();
+    }
+
+    public interface Dept extends Named
+    {
+        int getFloor();
+    }
+
+    public static class DeptImpl implements Dept
+    {
+        private String _name;
+
+        DeptImpl(String name)
+        {
+            _name = name;
+        }
+
+        public String getName()
+        {
+            return _name;
+        }
+
+        public int getFloor()
+        {
+            return 3;
+        }
+    }
+
+    public static class Holder<T>
+    {
+        private T _value;
+
+        Holder(T value)
+        {
+            _value = value;
+        }
+
+        public T getValue()
+        {
+            return _value;
+        }
+    }
+
+    public static class Employee
+    {
+        private Dept         _dept;
+        private Holder<Dept> _holder;
+        private Object       _any;
+
+        Employee(Dept dept)
+        {
+            _dept = dept;
+            _holder = new Holder<Dept>(dept);
+            _any = dept;
+        }
+
+        public Dept getDept()
+        {
+            return _dept;
+        }
+
+        public Holder<Dept> getHolder()
+        {
+            return _holder;
+        }
+
+        public Object getAny()
+        {
+            return _any;
+        }
+    }
+
+    private Object get(String path, Object model)
+    {
+        return new SqlParam(path).getValue(model);
+    }
+
+    @Test
+    public void testGetterDeclaredOnInterface()
+    {
+        assertEquals(3, get("Dept$Floor", new Employee(new DeptImpl("a"))));
+    }
+
+    @Test
+    public void testGetterDeclaredOnSuperInterface()
+    {
+        assertEquals("a", get("Dept$Name", new Employee(new DeptImpl("a"))));
+    }
+
+    @Test
+    public void testGetterOfErasedGenericType()
+    {
+        assertEquals("b", get("Holder$Value$Name", new Employee(new DeptImpl("b"))));
+    }
+
+    @Test
+    public void testGetterOfObjectType()
+    {
+        assertEquals("c", get("Any$Name", new Employee(new DeptImpl("c"))));
+    }
+
+    @Test
+    public void testGetterOfObjectTypeAcrossRuntimeClasses()
+    {
+        SqlParam param = new SqlParam("Any$Name");
+
+        assertEquals("d", param.getValue(new Employee(new DeptImpl("d"))));
+        assertEquals("e", param.getValue(new Employee(null)
+        {
+            @Override
+            public Object getAny()
+            {
+                return new Named()
+                {
+                    public String getName()
+                    {
+                        return "e";
+                    }
+                };
+            }
+        }));
+    }
+
+    @Test
+    public void testNullIntermediate()
+    {
+        assertNull(get("Any$Name", new Employee(null)));
+    }
+
+    @Test
+    public void testJdbcType()
+    {
+        assertSame(JdbcType.INTEGER, new PropertyAccessor(Employee.class, PropertyPath.parsePath("Dept$Floor",
+            false)).getJdbcType());
+        assertSame(JdbcType.OBJECT, new PropertyAccessor(Employee.class, PropertyPath.parsePath("Any$Name", false))
+            .getJdbcType());
+    }
+}
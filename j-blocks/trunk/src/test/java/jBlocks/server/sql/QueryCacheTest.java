@@ -0,0 +1,169 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package jBlocks.server.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.Test;
+
+public class QueryCacheTest extends DerbyTestCase
+{
+    @Override
+    protected Properties schema()
+    {
+        Properties props = super.schema();
+        props.setProperty("emp.cached.sql", "select e.id, e.name, e.dept from emp e where e.id = #.#");
+        props.setProperty("emp.cached.sql.cache", "60000");
+        props.setProperty("emp.small.sql", "select e.id, e.name, e.dept from emp e where e.id = #.#");
+        props.setProperty("emp.small.sql.cache", "60000");
+        props.setProperty("emp.small.sql.cache-size", "2");
+        props.setProperty("emp.short.sql", "select e.id, e.name, e.dept from emp e where e.id = #.#");
+        props.setProperty("emp.short.sql.cache", "50");
+
+        return props;
+    }
+
+    private Map<String, Object> emp(int id, String name)
+    {
+        Map<String, Object> emp = new HashMap<String, Object>();
+        emp.put("Id", id);
+        emp.put("Name", name);
+
+        return emp;
+    }
+
+    private String name(Object emp)
+    {
+        return (String) ((Map<?, ?>) emp).get("Name");
+    }
+
+    @Test
+    public void testUpdateInvalidatesRows() throws Exception
+    {
+        insert(1, "a", 1);
+
+        QueryCache cache = _sqlClient.queryCache();
+
+        assertEquals("a", name(_sqlClient.selectOne("emp.cached.sql", 1)));
+        assertEquals("a", name(_sqlClient.selectOne("emp.cached.sql", 1)));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.size());
+
+        _sqlClient.transact(new SqlTask<Integer>()
+        {
+            public Integer execute()
+            {
+                return _sqlClient.executeUpdate("emp.rename.sql", emp(1, "b"));
+            }
+        });
+
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.getInvalidations());
+        assertEquals("b", name(_sqlClient.selectOne("emp.cached.sql", 1)));
+    }
+
+    @Test
+    public void testDiscardsRowsSelectedBeforeInvalidation() throws Exception
+    {
+        insert(1, "a", 1);
+
+        SqlStmt sqlStmt = _sqlClient.stmt("emp.cached.sql");
+        Object emp = _sqlClient.selectOne("emp.byId.sql", 1);
+        QueryCache cache = _sqlClient.queryCache();
+
+        // The rows are selected, then an update invalidates the statement before they are cached
+        long generation = cache.generation(sqlStmt);
+        cache.invalidate(Collections.singleton("emp"));
+        cache.put(sqlStmt, QueryCache.key(sqlStmt, 1), Collections.singletonList(emp), generation);
+
+        assertEquals(0, cache.size());
+
+        cache.put(sqlStmt, QueryCache.key(sqlStmt, 1), Collections.singletonList(emp), cache.generation(sqlStmt));
+
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsedRows() throws Exception
+    {
+        for (int i = 1; i <= 3; i++)
+            insert(i, "e" + i, 1);
+
+        QueryCache cache = _sqlClient.queryCache();
+
+        _sqlClient.selectOne("emp.small.sql", 1);
+        _sqlClient.selectOne("emp.small.sql", 2);
+        _sqlClient.selectOne("emp.small.sql", 1);
+        _sqlClient.selectOne("emp.small.sql", 3);
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+
+        cache.resetStats();
+
+        _sqlClient.selectOne("emp.small.sql", 1);
+        _sqlClient.selectOne("emp.small.sql", 2);
+
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testExpiresRows() throws Exception
+    {
+        insert(1, "a", 1);
+
+        SqlStmt sqlStmt = _sqlClient.stmt("emp.short.sql");
+        QueryCache cache = _sqlClient.queryCache();
+
+        _sqlClient.selectOne("emp.short.sql", 1);
+        Thread.sleep(100);
+
+        assertNull(cache.get(sqlStmt, QueryCache.key(sqlStmt, 1)));
+        assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void testTransactionReadsItsOwnWrites() throws Exception
+    {
+        insert(1, "a", 1);
+
+        final SqlStmt sqlStmt = _sqlClient.stmt("emp.cached.sql");
+        final Object staleEmp = _sqlClient.selectOne("emp.cached.sql", 1);
+
+        String name = _sqlClient.transact(new SqlTask<String>()
+        {
+            public String execute()
+            {
+                _sqlClient.executeUpdate("emp.rename.sql", emp(1, "b"));
+
+                // Another session refills the cache with the committed row after the write
+                QueryCache cache = _sqlClient.queryCache();
+                cache.put(sqlStmt, QueryCache.key(sqlStmt, 1), Collections.singletonList(staleEmp), cache
+                    .generation(sqlStmt));
+
+                return name(_sqlClient.selectOne("emp.cached.sql", 1));
+            }
+        });
+
+        assertEquals("b", name);
+    }
+}
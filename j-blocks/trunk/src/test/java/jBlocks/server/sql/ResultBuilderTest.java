@@ -0,0 +1,228 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package jBlocks.server.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import jBlocks.shared.domain.BaseDomainObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Before;
+import org.junit.Test;
+
+@SuppressWarnings("serial")
+public class ResultBuilderTest extends DerbyTestCase
+{
+    public static class Order extends BaseDomainObject
+    {
+        private String     _customer;
+        private List<Line> _lines;
+
+        public String getCustomer()
+        {
+            return _customer;
+        }
+
+        public void setCustomer(String customer)
+        {
+            _customer = customer;
+        }
+
+        public List<Line> getLines()
+        {
+            return _lines;
+        }
+
+        public void setLines(List<Line> lines)
+        {
+            _lines = lines;
+        }
+    }
+
+    public static class Line extends BaseDomainObject
+    {
+        private String     _sku;
+        private List<Part> _parts;
+
+        public String getSku()
+        {
+            return _sku;
+        }
+
+        public void setSku(String sku)
+        {
+            _sku = sku;
+        }
+
+        public List<Part> getParts()
+        {
+            return _parts;
+        }
+
+        public void setParts(List<Part> parts)
+        {
+            _parts = parts;
+        }
+    }
+
+    public static class Part extends BaseDomainObject
+    {
+        private String _name;
+
+        public String getName()
+        {
+            return _name;
+        }
+
+        public void setName(String name)
+        {
+            _name = name;
+        }
+    }
+
+    @Override
+    protected Properties schema()
+    {
+        Properties props = super.schema();
+
+        props.setProperty("order.class", Order.class.getName());
+        props.setProperty("order.withLines.sql", "select o.id, o.customer, l.id \"Lines$Id\", l.sku \"Lines$Sku\" "
+            + "from orders o left outer join lines l on l.order_id = o.id order by o.id, l.id");
+        props.setProperty("order.withParts.sql", "select o.id, l.id \"Lines$Id\", l.sku \"Lines$Sku\", "
+            + "p.id \"Lines$Parts$Id\", p.name \"Lines$Parts$Name\" from orders o join lines l on l.order_id = o.id "
+            + "left outer join parts p on p.line_id = l.id order by o.id, l.id, p.id");
+        props.setProperty("order.withLineCustomers.sql", "select o.id, o.customer from orders o "
+            + "join lines l on l.order_id = o.id order by o.id");
+
+        return props;
+    }
+
+    @Before
+    public void setUpOrders() throws Exception
+    {
+        execute("create table orders (id int primary key, customer varchar(40))");
+        execute("create table lines (id int primary key, order_id int, sku varchar(40))");
+        execute("create table parts (id int primary key, line_id int, name varchar(40))");
+
+        execute("insert into orders values (1, 'x'), (2, 'y'), (3, 'z')");
+        execute("insert into lines values (11, 1, 'a'), (12, 1, 'b'), (13, 1, 'c'), (21, 2, 'd'), (22, 2, 'e')");
+        execute("insert into parts values (111, 11, 'p'), (112, 11, 'q'), (211, 21, 'r')");
+    }
+
+    private String skus(Order order)
+    {
+        StringBuilder skus = new StringBuilder();
+
+        if (order.getLines() != null)
+            for (Line line : order.getLines())
+                skus.append(line.getSku());
+
+        return skus.toString();
+    }
+
+    private String parts(Line line)
+    {
+        StringBuilder parts = new StringBuilder();
+
+        if (line.getParts() != null)
+            for (Part part : line.getParts())
+                parts.append(part.getName());
+
+        return parts.toString();
+    }
+
+    @Test
+    public void testMergesOneToManyJoin()
+    {
+        List<Order> orders = _sqlClient.select("order.withLines.sql", null);
+
+        assertEquals(3, orders.size());
+        assertEquals("x", orders.get(0).getCustomer());
+        assertEquals("abc", skus(orders.get(0)));
+        assertEquals("de", skus(orders.get(1)));
+        assertEquals(Integer.valueOf(12), orders.get(0).getLines().get(1).getId());
+    }
+
+    @Test
+    public void testOuterJoinWithoutChildAddsNoElement()
+    {
+        List<Order> orders = _sqlClient.select("order.withLines.sql", null);
+
+        assertEquals(Integer.valueOf(3), orders.get(2).getId());
+        assertEquals("z", orders.get(2).getCustomer());
+        assertNull(orders.get(2).getLines());
+    }
+
+    @Test
+    public void testMergesNestedCollections()
+    {
+        List<Order> orders = _sqlClient.select("order.withParts.sql", null);
+
+        assertEquals(2, orders.size());
+        assertEquals("abc", skus(orders.get(0)));
+        assertEquals("pq", parts(orders.get(0).getLines().get(0)));
+        assertEquals("", parts(orders.get(0).getLines().get(1)));
+        assertEquals("r", parts(orders.get(1).getLines().get(0)));
+    }
+
+    @Test
+    public void testMergesDuplicateRowsWithoutCollection()
+    {
+        List<Order> orders = _sqlClient.select("order.withLineCustomers.sql", null);
+
+        assertEquals(2, orders.size());
+        assertEquals("x", orders.get(0).getCustomer());
+        assertEquals("y", orders.get(1).getCustomer());
+    }
+
+    @Test
+    public void testCursorMergesConsecutiveRows()
+    {
+        List<Order> orders = new ArrayList<Order>();
+        SqlCursor<Order> cursor = _sqlClient.iterate("order.withParts.sql", null);
+
+        try
+        {
+            for (Order order : cursor)
+                orders.add(order);
+        }
+        finally
+        {
+            cursor.close();
+        }
+
+        assertEquals(2, orders.size());
+        assertEquals("abc", skus(orders.get(0)));
+        assertEquals("pq", parts(orders.get(0).getLines().get(0)));
+        assertEquals("de", skus(orders.get(1)));
+        assertEquals("r", parts(orders.get(1).getLines().get(0)));
+
+        final List<String> customers = new ArrayList<String>();
+
+        _sqlClient.forEach("order.withLines.sql", null, new RowHandler<Order>()
+        {
+            public void handle(Order order)
+            {
+                customers.add(order.getCustomer() + skus(order));
+            }
+        });
+
+        assertEquals("[xabc, yde, z]", customers.toString());
+    }
+}
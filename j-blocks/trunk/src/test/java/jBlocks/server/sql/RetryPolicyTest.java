@@ -0,0 +1,181 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package jBlocks.server.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import jBlocks.server.AggregateException;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RetryPolicyTest extends DerbyTestCase
+{
+    private Map<String, Object> emp(int id, String name)
+    {
+        Map<String, Object> emp = new HashMap<String, Object>();
+        emp.put("Id", id);
+        emp.put("Name", name);
+
+        return emp;
+    }
+
+    @Test
+    public void testRetriesTransientSqlStates()
+    {
+        RetryPolicy policy = new RetryPolicy();
+
+        assertTrue(policy.isRetryable(new SQLException("Serialization failure", "40001")));
+        assertTrue(policy.isRetryable(new SQLException("Deadlock", "40P01")));
+        assertTrue(policy.isRetryable(new SQLException("Connection failure", "08006")));
+        assertTrue(policy.isRetryable(new SQLException("Connection refused", "08001")));
+
+        assertFalse(policy.isRetryable(new SQLException("Unique violation", "23505")));
+        assertFalse(policy.isRetryable(new SQLException("No state")));
+        assertFalse(policy.isRetryable(new IllegalStateException("Not SQL")));
+        assertFalse(policy.isRetryable(null));
+    }
+
+    @Test
+    public void testFollowsCausesAndNextExceptions()
+    {
+        RetryPolicy policy = new RetryPolicy();
+
+        SQLException batch = new SQLException("Batch failed", "XJ208");
+        assertFalse(policy.isRetryable(batch));
+
+        batch.setNextException(new SQLException("Deadlock", "40001"));
+        assertTrue(policy.isRetryable(batch));
+
+        assertTrue(policy.isRetryable(AggregateException.with(batch, "DB transaction failed.")));
+        assertTrue(policy.isRetryable(new RuntimeException(new SQLException("Connection failure", "08006"))));
+    }
+
+    @Test
+    public void testRetryOnReplacesSqlStates()
+    {
+        RetryPolicy policy = new RetryPolicy().retryOn("40XL1");
+
+        assertTrue(policy.isRetryable(new SQLException("Lock timeout", "40XL1")));
+        assertFalse(policy.isRetryable(new SQLException("Serialization failure", "40001")));
+    }
+
+    @Test
+    public void testBackoffDoublesUpToMax()
+    {
+        RetryPolicy policy = new RetryPolicy().backoff(100, 400);
+        long[][] bounds = { { 50, 100 }, { 100, 200 }, { 200, 400 }, { 200, 400 }, { 200, 400 } };
+
+        for (int i = 0; i < 100; i++)
+        {
+            for (int attempt = 2; attempt < 2 + bounds.length; attempt++)
+            {
+                long backoff = policy.backoffMillis(attempt);
+                long[] bound = bounds[attempt - 2];
+
+                assertTrue(backoff + " ms", backoff >= bound[0] && backoff <= bound[1]);
+            }
+        }
+
+        // Does not overflow after many attempts
+        long backoff = policy.backoffMillis(100);
+        assertTrue(backoff + " ms", backoff >= 200 && backoff <= 400);
+    }
+
+    @Test
+    public void testRetriesDeadlockVictim() throws Exception
+    {
+        insert(1, "a", 1);
+        insert(2, "b", 1);
+
+        execute("call SYSCS_UTIL.SYSCS_SET_DATABASE_PROPERTY('derby.locks.deadlockTimeout', '1')");
+        execute("call SYSCS_UTIL.SYSCS_SET_DATABASE_PROPERTY('derby.locks.waitTimeout', '10')");
+
+        RetryPolicy policy = new RetryPolicy().backoff(10, 100);
+        _sqlClient.setRetryPolicy(policy);
+
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+
+        Thread[] threads = new Thread[2];
+
+        for (int i = 0; i < threads.length; i++)
+        {
+            // Each thread updates both rows, in the opposite order of the other
+            final int first = i + 1, second = 2 - i;
+
+            threads[i] = new Thread()
+            {
+                private int _attempts;
+
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        _sqlClient.transact(new SqlTask<Object>()
+                        {
+                            public Object execute()
+                            {
+                                _sqlClient.executeUpdate("emp.rename.sql", emp(first, "t" + first));
+
+                                if (++_attempts == 1)
+                                {
+                                    try
+                                    {
+                                        barrier.await(5, TimeUnit.SECONDS);
+                                    }
+                                    catch (Exception e)
+                                    {
+                                        throw AggregateException.with(e);
+                                    }
+                                }
+
+                                return _sqlClient.executeUpdate("emp.rename.sql", emp(second, "t" + first));
+                            }
+                        });
+                    }
+                    catch (Throwable e)
+                    {
+                        failures.add(e);
+                    }
+                    finally
+                    {
+                        _sqlClient.endSession();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        for (Thread thread : threads)
+            thread.join(20000);
+
+        assertEquals(Collections.emptyList(), failures);
+        assertEquals(1, policy.getRetries());
+        assertEquals(1, policy.getSuccessesAfterRetry());
+        assertEquals(0, policy.getGiveUps());
+    }
+}
@@ -0,0 +1,256 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package jBlocks.server.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import jBlocks.server.AggregateException;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class RowMapperTest extends DerbyTestCase
+{
+    public static class Item
+    {
+        private int       _qty = -1;
+        private Dept      _dept;
+        private Object    _code;
+        private Number    _amount;
+        private Date      _shipped;
+        private Timestamp _stamped;
+        private Boolean   _active;
+
+        public int getQty()
+        {
+            return _qty;
+        }
+
+        public void setQty(int qty)
+        {
+            _qty = qty;
+        }
+
+        public Dept getDept()
+        {
+            return _dept;
+        }
+
+        public void setDept(Dept dept)
+        {
+            _dept = dept;
+        }
+
+        public Object getCode()
+        {
+            return _code;
+        }
+
+        public void setCode(Object code)
+        {
+            _code = code;
+        }
+
+        public Number getAmount()
+        {
+            return _amount;
+        }
+
+        public void setAmount(Number amount)
+        {
+            _amount = amount;
+        }
+
+        public Date getShipped()
+        {
+            return _shipped;
+        }
+
+        public void setShipped(Date shipped)
+        {
+            _shipped = shipped;
+        }
+
+        public Timestamp getStamped()
+        {
+            return _stamped;
+        }
+
+        public void setStamped(Timestamp stamped)
+        {
+            _stamped = stamped;
+        }
+
+        public Boolean getActive()
+        {
+            return _active;
+        }
+
+        public void setActive(Boolean active)
+        {
+            _active = active;
+        }
+    }
+
+    public static class Dept
+    {
+        private String _name;
+        private Dept   _parent;
+
+        public String getName()
+        {
+            return _name;
+        }
+
+        public void setName(String name)
+        {
+            _name = name;
+        }
+
+        public Dept getParent()
+        {
+            return _parent;
+        }
+
+        public void setParent(Dept parent)
+        {
+            _parent = parent;
+        }
+    }
+
+    public static class Bag
+    {
+        private List _items;
+
+        public List getItems()
+        {
+            return _items;
+        }
+
+        public void setItems(List items)
+        {
+            _items = items;
+        }
+    }
+
+    @Override
+    protected Properties schema()
+    {
+        Properties props = super.schema();
+
+        props.setProperty("item.class", Item.class.getName());
+        props.setProperty("item.all.sql", "select i.qty, i.dept \"Dept$Name\", i.parent \"Dept$Parent$Name\" "
+            + "from items i order by i.id");
+        props.setProperty("item.typed.sql", "select i.code, i.amount, i.shipped, i.stamped, i.active from items i "
+            + "order by i.id");
+        props.setProperty("bag.class", Bag.class.getName());
+        props.setProperty("bag.all.sql", "select i.qty \"Items$Qty\" from items i");
+
+        return props;
+    }
+
+    @Before
+    public void setUpItems() throws Exception
+    {
+        execute("create table items (id int primary key, qty int, dept varchar(20), parent varchar(20), code int, "
+            + "amount decimal(10, 2), shipped char(19), stamped varchar(30), active varchar(5))");
+
+        execute("insert into items values (1, 5, 'd', 'p', 7, 12.50, '2024-01-02 03:04:05', "
+            + "'2024-01-02 03:04:05.5', 'y'), (2, null, null, null, null, null, null, null, 'yes'), "
+            + "(3, 1, null, null, null, null, null, null, 'TRUE'), (4, 1, null, null, null, null, null, null, 'n')");
+    }
+
+    @Test
+    public void testNullColumnLeavesPrimitiveUnset()
+    {
+        List<Item> items = _sqlClient.select("item.all.sql", null);
+
+        assertEquals(5, items.get(0).getQty());
+        assertEquals(-1, items.get(1).getQty());
+    }
+
+    @Test
+    public void testCreatesRelationsOnDemand()
+    {
+        List<Item> items = _sqlClient.select("item.all.sql", null);
+
+        assertEquals("d", items.get(0).getDept().getName());
+        assertEquals("p", items.get(0).getDept().getParent().getName());
+        assertNull(items.get(1).getDept().getName());
+    }
+
+    @Test
+    public void testRejectsCollectionWithoutElementType()
+    {
+        try
+        {
+            _sqlClient.select("bag.all.sql", null);
+            fail();
+        }
+        catch (AggregateException e)
+        {
+            Throwable cause = e;
+
+            while (cause != null && !(cause instanceof IllegalArgumentException))
+                cause = cause.getCause();
+
+            assertTrue(cause.getMessage().startsWith("Collection relation must declare its element type: "));
+            assertTrue(cause.getMessage().contains("getItems"));
+        }
+    }
+
+    @Test
+    public void testReadsNativeTypesIntoGeneralSetters()
+    {
+        List<Item> items = _sqlClient.select("item.typed.sql", null);
+
+        assertEquals(Integer.valueOf(7), items.get(0).getCode());
+        assertEquals(new BigDecimal("12.50"), items.get(0).getAmount());
+        assertNull(items.get(1).getCode());
+        assertNull(items.get(1).getAmount());
+    }
+
+    @Test
+    public void testParsesCharColumnsIntoDates()
+    {
+        List<Item> items = _sqlClient.select("item.typed.sql", null);
+
+        assertEquals(Timestamp.valueOf("2024-01-02 03:04:05").getTime(), items.get(0).getShipped().getTime());
+        assertEquals(Timestamp.valueOf("2024-01-02 03:04:05.5"), items.get(0).getStamped());
+        assertNull(items.get(1).getShipped());
+        assertNull(items.get(1).getStamped());
+    }
+
+    @Test
+    public void testReadsBooleansFromFlags()
+    {
+        List<Item> items = _sqlClient.select("item.typed.sql", null);
+
+        assertTrue(items.get(0).getActive());
+        assertTrue(items.get(1).getActive());
+        assertTrue(items.get(2).getActive());
+        assertFalse(items.get(3).getActive());
+    }
+}
@@ -0,0 +1,181 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package jBlocks.server.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ShardedSqlClientTest extends DerbyTestCase
+{
+    private static final Comparator<Object> BY_ID_DESC = new Comparator<Object>()
+    {
+        public int compare(Object emp1, Object emp2)
+        {
+            return id(emp2) - id(emp1);
+        }
+    };
+
+    private static int                      _shardDbs;
+
+    private String                          _shardUrl;
+    private SimpleDataSource                _shardDataSource;
+    private SqlClient                       _shard;
+    private ShardedSqlClient                _shardedClient;
+
+    @Override
+    protected Properties schema()
+    {
+        Properties props = super.schema();
+        props.setProperty("emp.insert.sql.shard-key", "Id");
+        props.setProperty("emp.get.sql", "select e.id, e.name, e.dept from emp e where e.id = #Id#");
+        props.setProperty("emp.get.sql.shard-key", "Id");
+        props.setProperty("emp.bulkInsert.sql", "insert into emp (id, name, dept) values (#Id#, #Name#, #Dept#)");
+        props.setProperty("emp.bulkInsert.sql.bulk-size", "10");
+        props.setProperty("emp.bulkInsert.sql.shard-key", "Id");
+
+        return props;
+    }
+
+    @Before
+    public void setUpShards() throws Exception
+    {
+        // Integer keys hash to themselves; even ids go to the first shard, odd ids to the second
+        _shardUrl = "jdbc:derby:memory:" + getClass().getSimpleName() + "Shard" + (++_shardDbs);
+
+        Connection conn = DriverManager.getConnection(_shardUrl + ";create=true");
+        Statement stmt = conn.createStatement();
+        stmt.executeUpdate("create table emp (id int primary key, name varchar(40), dept int)");
+        stmt.close();
+        conn.close();
+
+        _shardDataSource = new SimpleDataSource(DRIVER, _shardUrl, new Properties()).maxSize(4);
+        _shard = new SqlClient(_shardDataSource, getClass().getSimpleName() + "Shard");
+        _shard.loadSchema(schema());
+
+        _shardedClient = new ShardedSqlClient(Arrays.asList(_sqlClient, _shard));
+    }
+
+    @After
+    public void tearDownShards() throws Exception
+    {
+        _shardedClient.endSession();
+        _shard.shutdown();
+        _shardDataSource.shutdown();
+
+        try
+        {
+            DriverManager.getConnection(_shardUrl + ";drop=true");
+        }
+        catch (SQLException e)
+        {
+            // Derby reports a dropped database with an exception
+        }
+    }
+
+    private static int id(Object emp)
+    {
+        return Integer.parseInt(String.valueOf(((Map<?, ?>) emp).get("Id")));
+    }
+
+    private static Map<String, Object> emp(int id)
+    {
+        Map<String, Object> emp = new HashMap<String, Object>();
+        emp.put("Id", id);
+        emp.put("Name", "e" + id);
+        emp.put("Dept", 1);
+
+        return emp;
+    }
+
+    private List<Integer> ids(List<?> emps)
+    {
+        List<Integer> ids = new ArrayList<Integer>();
+
+        for (Object emp : emps)
+            ids.add(id(emp));
+
+        return ids;
+    }
+
+    private List<Integer> ids(SqlClient shard)
+    {
+        return ids(shard.select("emp.all.sql", null));
+    }
+
+    private void insert(int... ids)
+    {
+        for (int id : ids)
+            _shardedClient.executeUpdate("emp.insert.sql", emp(id));
+    }
+
+    @Test
+    public void testRoutesByShardKey()
+    {
+        insert(1, 2, 3, 4);
+
+        assertSame(_shard, _shardedClient.shard("emp.get.sql", emp(3)));
+        assertEquals(Arrays.asList(2, 4), ids(_sqlClient));
+        assertEquals(Arrays.asList(1, 3), ids(_shard));
+
+        assertEquals(3, id(_shardedClient.selectOne("emp.get.sql", emp(3))));
+    }
+
+    @Test
+    public void testGroupsBulkUpdateByShard()
+    {
+        List<Object> emps = new ArrayList<Object>();
+
+        for (int id = 1; id <= 6; id++)
+            emps.add(emp(id));
+
+        assertEquals(6, _shardedClient.executeUpdate("emp.bulkInsert.sql", emps));
+        assertEquals(Arrays.asList(2, 4, 6), ids(_sqlClient));
+        assertEquals(Arrays.asList(1, 3, 5), ids(_shard));
+    }
+
+    @Test
+    public void testSelectAllMergesInShardOrder()
+    {
+        insert(1, 2, 3, 4, 5, 6);
+
+        assertEquals(Arrays.asList(2, 4, 6, 1, 3, 5), ids(_shardedClient.selectAll("emp.all.sql", null)));
+    }
+
+    @Test
+    public void testSelectAllSortsAndLimits()
+    {
+        insert(1, 2, 3, 4, 5, 6);
+
+        assertEquals(Arrays.asList(6, 5, 4, 3), ids(_shardedClient.selectAll("emp.all.sql", null, BY_ID_DESC, 4)));
+        assertEquals(Arrays.asList(6, 5, 4, 3, 2, 1), ids(_shardedClient.selectAll("emp.all.sql", null,
+            BY_ID_DESC, 0)));
+    }
+}
@@ -0,0 +1,187 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package jBlocks.server.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Test;
+
+public class SimpleDataSourceTest extends DerbyTestCase
+{
+    private SimpleDataSource pool(int maxSize)
+    {
+        return new SimpleDataSource(DRIVER, _url, new Properties()).maxSize(maxSize).checkoutTimeout(5000);
+    }
+
+    private void await(SimpleDataSource pool, int pending) throws InterruptedException
+    {
+        for (int i = 0; i < 500 && pool.getPendingRequests() < pending; i++)
+            Thread.sleep(10);
+
+        assertEquals(pending, pool.getPendingRequests());
+    }
+
+    @Test
+    public void testTimesOutWhenAllConnectionsAreInUse() throws Exception
+    {
+        SimpleDataSource pool = pool(1).checkoutTimeout(100);
+
+        try
+        {
+            Connection conn = pool.getConnection();
+
+            assertNull(pool.tryConnection());
+
+            try
+            {
+                pool.getConnection();
+                fail();
+            }
+            catch (SQLException e)
+            {
+                // Expected
+            }
+
+            assertEquals(1, pool.getCheckoutTimeouts());
+            assertEquals(1, pool.getTotalConnections());
+
+            conn.close();
+
+            Connection again = pool.tryConnection();
+            assertNotNull(again);
+            again.close();
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testReusesMostRecentlyUsedConnection() throws Exception
+    {
+        SimpleDataSource pool = pool(2);
+
+        try
+        {
+            Connection first = pool.getConnection();
+            Connection second = pool.getConnection();
+
+            first.close();
+            second.close();
+
+            Connection conn = pool.getConnection();
+            assertSame(second, conn);
+            conn.close();
+
+            assertEquals(2, pool.getIdleConnections());
+            assertEquals(0, pool.getActiveConnections());
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testWaitersAreServedInArrivalOrder() throws Exception
+    {
+        final SimpleDataSource pool = pool(1);
+        final List<Integer> served = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+
+        try
+        {
+            Connection conn = pool.getConnection();
+            Thread[] waiters = new Thread[3];
+
+            for (int i = 0; i < waiters.length; i++)
+            {
+                final int waiter = i + 1;
+
+                waiters[i] = new Thread()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            Connection conn = pool.getConnection();
+                            served.add(waiter);
+                            conn.close();
+                        }
+                        catch (Throwable e)
+                        {
+                            failures.add(e);
+                        }
+                    }
+                };
+                waiters[i].start();
+
+                await(pool, waiter);
+            }
+
+            conn.close();
+
+            for (Thread waiter : waiters)
+                waiter.join(5000);
+
+            assertEquals(Collections.emptyList(), failures);
+            assertEquals(Arrays.asList(1, 2, 3), served);
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testReportsLeakOncePerCheckout() throws Exception
+    {
+        SimpleDataSource pool = pool(1).leakThreshold(100);
+
+        try
+        {
+            Connection conn = pool.getConnection();
+
+            // The housekeeper runs every second
+            for (int i = 0; i < 300 && pool.getLeaksDetected() == 0; i++)
+                Thread.sleep(10);
+
+            assertEquals(1, pool.getLeaksDetected());
+
+            Thread.sleep(1500);
+            assertEquals(1, pool.getLeaksDetected());
+
+            conn.close();
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package jBlocks.server.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import jBlocks.server.AggregateException;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class SqlBatchTest extends DerbyTestCase
+{
+    private Map<String, Object> emp(int id)
+    {
+        Map<String, Object> emp = new HashMap<String, Object>();
+        emp.put("Id", id);
+        emp.put("Name", "e" + id);
+        emp.put("Dept", 1);
+
+        return emp;
+    }
+
+    private int count()
+    {
+        return _sqlClient.select("emp.all.sql", null).size();
+    }
+
+    @Test
+    public void testCommitEveryCommitsOwnTransaction()
+    {
+        SqlBatch batch = _sqlClient.batch("emp.insert.sql", 2).commitEvery(1);
+
+        try
+        {
+            for (int i = 0; i < 4; i++)
+                batch.add(emp(i));
+
+            // The duplicate fails the last batch; the batches before it are committed
+            batch.add(emp(0));
+            batch.add(emp(5));
+            fail();
+        }
+        catch (RuntimeException e)
+        {
+            // Expected
+        }
+        finally
+        {
+            batch.close();
+        }
+
+        assertEquals(4, count());
+    }
+
+    @Test
+    public void testCommitEveryRejectedInsideTransaction()
+    {
+        try
+        {
+            _sqlClient.transact(new SqlTask<Object>()
+            {
+                public Object execute()
+                {
+                    _sqlClient.executeUpdate("emp.insert.sql", emp(10));
+                    _sqlClient.batch("emp.insert.sql", 2).commitEvery(1);
+
+                    return null;
+                }
+            });
+            fail();
+        }
+        catch (AggregateException e)
+        {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+
+        assertEquals(0, count());
+    }
+
+    @Test
+    public void testBatchInsideTransactionRollsBackWithIt()
+    {
+        try
+        {
+            _sqlClient.transact(new SqlTask<Object>()
+            {
+                public Object execute()
+                {
+                    _sqlClient.executeUpdate("emp.insert.sql", emp(10));
+
+                    SqlBatch batch = _sqlClient.batch("emp.insert.sql", 2);
+
+                    try
+                    {
+                        for (int i = 0; i < 4; i++)
+                            batch.add(emp(i));
+                    }
+                    finally
+                    {
+                        batch.close();
+                    }
+
+                    throw new IllegalArgumentException("Task failed");
+                }
+            });
+            fail();
+        }
+        catch (AggregateException e)
+        {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+
+        assertEquals(0, count());
+    }
+}
@@ -0,0 +1,461 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package jBlocks.server.sql;
+
+import jBlocks.server.bench.Benchmark;
+import jBlocks.server.bench.BenchmarkResult;
+import jBlocks.server.bench.BenchmarkRunner;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Benchmarks of the SQL mapping layer against an in-memory Derby database: selects of 1, 100 and 100,000 rows into
+ * bean, <code>Map</code> and <code>List</code> models, JDBC batch inserts, the overhead of a transaction, the rendering
+ * of dynamic SQL and {@link SimpleDataSource} checkouts under contention. Run it with the test classes and Derby on
+ * the class path:
+ *
+ * <pre><code>
+ * java jBlocks.server.sql.SqlBenchmarks [-wi 3] [-i 5] [-w 1s] [-r 1s] [-o target/benchmarks] [select]
+ * </code></pre>
+ *
+ * The results are written to <code>sql.json</code> and <code>sql.csv</code>, in JMH's formats, in the output
+ * directory. See {@link BenchmarkRunner} for the other options.
+ *
+ * @author hkrishna
+ */
+public class SqlBenchmarks
+{
+    private static final String   DRIVER = "org.apache.derby.jdbc.EmbeddedDriver";
+    private static final String   URL    = "jdbc:derby:memory:jBlocksBench";
+    private static final int      ROWS   = 100000;
+    private static final String[] MODELS = { "bean", "map", "list" };
+    private static final int[]    SIZES  = { 1, 100, ROWS };
+
+    public static class Employee
+    {
+        private Integer _id;
+        private String  _name;
+        private int     _dept;
+        private double  _salary;
+        private Date    _hired;
+
+        public Integer getId()
+        {
+            return _id;
+        }
+
+        public void setId(Integer id)
+        {
+            _id = id;
+        }
+
+        public String getName()
+        {
+            return _name;
+        }
+
+        public void setName(String name)
+        {
+            _name = name;
+        }
+
+        public int getDept()
+        {
+            return _dept;
+        }
+
+        public void setDept(int dept)
+        {
+            _dept = dept;
+        }
+
+        public double getSalary()
+        {
+            return _salary;
+        }
+
+        public void setSalary(double salary)
+        {
+            _salary = salary;
+        }
+
+        public Date getHired()
+        {
+            return _hired;
+        }
+
+        public void setHired(Date hired)
+        {
+            _hired = hired;
+        }
+    }
+
+    private SimpleDataSource _dataSource;
+    private SqlClient        _sqlClient;
+
+    public static void main(String[] args) throws Exception
+    {
+        BenchmarkRunner runner = new BenchmarkRunner();
+        List<String> rest = runner.options(args);
+
+        File dir = new File(rest.size() == 2 && rest.get(0).equals("-o") ? rest.get(1) : "target/benchmarks");
+
+        SqlBenchmarks benchmarks = new SqlBenchmarks();
+        List<BenchmarkResult> results;
+
+        try
+        {
+            benchmarks.setUp();
+            results = runner.run(benchmarks.benchmarks());
+        }
+        finally
+        {
+            benchmarks.tearDown();
+        }
+
+        dir.mkdirs();
+
+        Writer json = new FileWriter(new File(dir, "sql.json"));
+
+        try
+        {
+            runner.writeJson(results, json);
+        }
+        finally
+        {
+            json.close();
+        }
+
+        Writer csv = new FileWriter(new File(dir, "sql.csv"));
+
+        try
+        {
+            runner.writeCsv(results, csv);
+        }
+        finally
+        {
+            csv.close();
+        }
+    }
+
+    /**
+     * Creates the database, with {@link #ROWS} employees, and the client.
+     */
+    void setUp() throws Exception
+    {
+        _dataSource = new SimpleDataSource(DRIVER, URL + ";create=true", new Properties()).maxSize(8);
+
+        Connection conn = _dataSource.getConnection();
+
+        try
+        {
+            Statement stmt = conn.createStatement();
+            stmt.executeUpdate("create table emp (id int primary key, name varchar(40), dept int, salary double, "
+                + "hired timestamp)");
+            stmt.executeUpdate("create table emp_load (id int, name varchar(40), dept int, salary double, "
+                + "hired timestamp)");
+            stmt.close();
+        }
+        finally
+        {
+            conn.close();
+        }
+
+        _sqlClient = new SqlClient(_dataSource, "bench");
+        _sqlClient.loadSchema(schema());
+
+        SqlBatch batch = _sqlClient.batch("bean.insert.sql", 1000);
+
+        try
+        {
+            for (int i = 0; i < ROWS; i++)
+                batch.add(employee(i));
+        }
+        finally
+        {
+            batch.close();
+        }
+
+        _sqlClient.endSession();
+    }
+
+    private Properties schema()
+    {
+        String columns = "select e.id, e.name, e.dept, e.salary, e.hired from emp e";
+
+        Properties props = new Properties();
+
+        props.setProperty("bean.class", Employee.class.getName());
+        props.setProperty("map.class", HashMap.class.getName());
+        props.setProperty("list.class", ArrayList.class.getName());
+
+        // Derby scans the whole table for a range with a parameter, so the bounds are literals
+        for (String model : MODELS)
+            for (int rows : SIZES)
+                props.setProperty(model + ".rows" + rows + ".sql", columns + " where e.id < " + rows);
+
+        props.setProperty("bean.insert.sql",
+            "insert into emp (id, name, dept, salary, hired) values (#Id#, #Name#, #Dept#, #Salary#, #Hired#)");
+        props.setProperty("bean.load.sql",
+            "insert into emp_load (id, name, dept, salary, hired) values (#Id#, #Name#, #Dept#, #Salary#, #Hired#)");
+        props.setProperty("bean.filter.dyn-sql", columns + " where @Column@ = #Value# order by @Order@");
+
+        return props;
+    }
+
+    private static Employee employee(int id)
+    {
+        Employee emp = new Employee();
+        emp.setId(id);
+        emp.setName("Employee " + id);
+        emp.setDept(id % 50);
+        emp.setSalary(40000 + id % 1000 * 100);
+        emp.setHired(new Date(1000000000000L + id * 60000L));
+
+        return emp;
+    }
+
+    void tearDown() throws SQLException
+    {
+        if (_sqlClient != null)
+            _sqlClient.shutdown();
+
+        if (_dataSource != null)
+            _dataSource.shutdown();
+
+        try
+        {
+            DriverManager.getConnection(URL + ";drop=true");
+        }
+        catch (SQLException e)
+        {
+            // Derby reports a dropped database with an exception
+        }
+    }
+
+    List<Benchmark> benchmarks()
+    {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+        for (String model : MODELS)
+            for (int rows : SIZES)
+                benchmarks.add(select(model, rows));
+
+        benchmarks.add(batch(1000));
+        benchmarks.add(transactEmpty());
+        benchmarks.add(transactSelect());
+        benchmarks.add(render(1));
+        benchmarks.add(render(1000));
+
+        for (int threads : new int[] { 1, 4, 16 })
+            benchmarks.add(checkout(4, threads));
+
+        return benchmarks;
+    }
+
+    /**
+     * Ends the benchmark thread's session, and gives its connection back, after the last invocation.
+     */
+    private abstract class SqlBenchmark extends Benchmark
+    {
+        SqlBenchmark(String name)
+        {
+            super(name);
+        }
+
+        @Override
+        public void tearDownThread()
+        {
+            _sqlClient.endSession();
+        }
+    }
+
+    private Benchmark select(String model, int rows)
+    {
+        final String stmtId = model + ".rows" + rows + ".sql";
+
+        return new SqlBenchmark("select." + model)
+        {
+            @Override
+            public Object invoke()
+            {
+                return _sqlClient.select(stmtId, null);
+            }
+        }.param("rows", rows);
+    }
+
+    /**
+     * Inserts the provided number of rows per invocation with <code>addBatch</code> and <code>executeBatch</code>, in
+     * one transaction; the score is in rows per second.
+     */
+    private Benchmark batch(final int rows)
+    {
+        final List<Employee> emps = new ArrayList<Employee>(rows);
+
+        for (int i = 0; i < rows; i++)
+            emps.add(employee(i));
+
+        return new SqlBenchmark("batch.insert")
+        {
+            @Override
+            public Object invoke()
+            {
+                return _sqlClient.transact(new SqlTask<int[]>()
+                {
+                    public int[] execute()
+                    {
+                        for (Employee emp : emps)
+                            _sqlClient.addBatch("bean.load.sql", emp);
+
+                        return _sqlClient.executeBatch("bean.load.sql");
+                    }
+                });
+            }
+
+            @Override
+            public void tearDownIteration() throws SQLException
+            {
+                execute("delete from emp_load");
+            }
+        }.opsPerInvocation(rows).param("batchSize", rows);
+    }
+
+    private Benchmark transactEmpty()
+    {
+        return new SqlBenchmark("transact.empty")
+        {
+            @Override
+            public Object invoke()
+            {
+                return _sqlClient.transact(new SqlTask<Object>()
+                {
+                    public Object execute()
+                    {
+                        return null;
+                    }
+                });
+            }
+        };
+    }
+
+    private Benchmark transactSelect()
+    {
+        return new SqlBenchmark("transact.select")
+        {
+            @Override
+            public Object invoke()
+            {
+                return _sqlClient.transact(new SqlTask<Object>()
+                {
+                    public Object execute()
+                    {
+                        return _sqlClient.selectOne("bean.rows1.sql", null);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Renders the dynamic statement with the provided number of distinct parameter values, in turn.
+     */
+    private Benchmark render(final int distinct)
+    {
+        final List<Map<String, Object>> models = new ArrayList<Map<String, Object>>(distinct);
+
+        for (int i = 0; i < distinct; i++)
+        {
+            Map<String, Object> model = new HashMap<String, Object>();
+            model.put("Column", i % 2 == 0 ? "e.dept" : "e.id");
+            model.put("Value", i);
+            model.put("Order", "e.salary * " + (i + 1));
+            models.add(model);
+        }
+
+        final SqlStmt sqlStmt = _sqlClient.stmt("bean.filter.dyn-sql");
+
+        return new Benchmark("render.dynamic")
+        {
+            private int _next;
+
+            @Override
+            public Object invoke()
+            {
+                return sqlStmt.getStmt(models.get(_next++ % distinct));
+            }
+        }.param("distinct", distinct);
+    }
+
+    /**
+     * Checks a connection out of a pool of the provided size, and back in, on the provided number of threads.
+     */
+    private Benchmark checkout(final int poolSize, int threads)
+    {
+        return new Benchmark("pool.checkout")
+        {
+            private SimpleDataSource _pool;
+
+            @Override
+            public void setUp()
+            {
+                _pool = new SimpleDataSource(DRIVER, URL, new Properties()).minSize(poolSize).maxSize(poolSize)
+                    .checkoutTimeout(60000);
+            }
+
+            @Override
+            public Object invoke() throws SQLException
+            {
+                Connection conn = _pool.getConnection();
+                conn.close();
+
+                return conn;
+            }
+
+            @Override
+            public void tearDown() throws SQLException
+            {
+                _pool.shutdown();
+            }
+        }.threads(threads).param("poolSize", poolSize);
+    }
+
+    private void execute(String sql) throws SQLException
+    {
+        Connection conn = _dataSource.getConnection();
+
+        try
+        {
+            Statement stmt = conn.createStatement();
+            stmt.executeUpdate(sql);
+            stmt.close();
+        }
+        finally
+        {
+            conn.close();
+        }
+    }
+}
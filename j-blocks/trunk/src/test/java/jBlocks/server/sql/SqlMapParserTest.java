@@ -0,0 +1,92 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package jBlocks.server.sql;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class SqlMapParserTest
+{
+    private SqlMapParser parser()
+    {
+        Properties props = new Properties();
+        props.setProperty("emp.class", "java.util.HashMap");
+        props.setProperty("emp.select-clause", "select distinct");
+        props.setProperty("emp.byId.sql", "select e.id, e.name from emp e where e.id = #Id#");
+        props.setProperty("emp.sorted.dyn-sql", "select e.id, e.name from emp e order by @Sort@");
+
+        return new SqlMapParser(props);
+    }
+
+    @Test
+    public void testSelectClauseMerged()
+    {
+        assertEquals("select distinct e.id, e.name from emp e where e.id =  ? ", parser().parse("emp.byId.sql")
+            .getStmt());
+    }
+
+    @Test
+    public void testSelectClauseMergedIntoTemplate()
+    {
+        Map<String, String> model = Collections.singletonMap("Sort", "e.name");
+
+        assertEquals("select distinct e.id, e.name from emp e order by e.name", parser().parse("emp.sorted.dyn-sql")
+            .getStmt(model));
+    }
+
+    @Test
+    public void testConcurrentFirstUse() throws Exception
+    {
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+
+        try
+        {
+            for (int i = 0; i < 20; i++)
+            {
+                final SqlStmt sqlStmt = parser().parse("emp.sorted.dyn-sql");
+                List<Future<String>> sqls = new ArrayList<Future<String>>();
+
+                for (int t = 0; t < 8; t++)
+                {
+                    sqls.add(threads.submit(new Callable<String>()
+                    {
+                        public String call()
+                        {
+                            return sqlStmt.getStmt(Collections.singletonMap("Sort", "e.id"));
+                        }
+                    }));
+                }
+
+                for (Future<String> sql : sqls)
+                    assertEquals("select distinct e.id, e.name from emp e order by e.id", sql.get());
+            }
+        }
+        finally
+        {
+            threads.shutdown();
+        }
+    }
+}
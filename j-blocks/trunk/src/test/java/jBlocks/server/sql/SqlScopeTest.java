@@ -0,0 +1,252 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package jBlocks.server.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import jBlocks.server.AggregateException;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.junit.Test;
+
+public class SqlScopeTest extends DerbyTestCase
+{
+    private Map<String, Object> emp(int id)
+    {
+        Map<String, Object> emp = new HashMap<String, Object>();
+        emp.put("Id", id);
+        emp.put("Name", "e" + id);
+        emp.put("Dept", 1);
+
+        return emp;
+    }
+
+    /**
+     * @return A proxy of <code>target</code> that answers <code>method</code> with <code>result</code>.
+     */
+    private static <T> T answer(Class<T> type, final Object target, final String method, final Object result)
+    {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, new InvocationHandler()
+        {
+            public Object invoke(Object proxy, Method m, Object[] args) throws Throwable
+            {
+                if (m.getName().equals(method))
+                    return result instanceof InvocationHandler ? ((InvocationHandler) result).invoke(target, m, args)
+                        : result;
+
+                try
+                {
+                    return m.invoke(target, args);
+                }
+                catch (InvocationTargetException e)
+                {
+                    throw e.getCause();
+                }
+            }
+        }));
+    }
+
+    @Test
+    public void testRetriesTransientFailure()
+    {
+        _sqlClient.setRetryPolicy(new RetryPolicy().backoff(1, 1));
+
+        final SqlScope scope = _sqlClient.open();
+        final int[] attempts = new int[1];
+
+        try
+        {
+            int rows = scope.transact(new SqlTask<Integer>()
+            {
+                public Integer execute()
+                {
+                    int rows = scope.executeUpdate("emp.insert.sql", emp(1));
+
+                    if (++attempts[0] == 1)
+                        throw AggregateException.with(new SQLException("Deadlock", "40001"));
+
+                    return rows;
+                }
+            });
+
+            assertEquals(1, rows);
+            assertEquals(2, attempts[0]);
+            assertEquals(1, scope.select("emp.all.sql", null).size());
+        }
+        finally
+        {
+            scope.close();
+        }
+    }
+
+    @Test
+    public void testDoesNotRetryNestedTransaction()
+    {
+        _sqlClient.setRetryPolicy(new RetryPolicy().backoff(1, 1));
+
+        final SqlScope scope = _sqlClient.open();
+        final int[] attempts = new int[2];
+
+        try
+        {
+            scope.transact(new SqlTask<Object>()
+            {
+                public Object execute()
+                {
+                    attempts[0]++;
+
+                    return scope.transact(new SqlTask<Object>()
+                    {
+                        public Object execute()
+                        {
+                            attempts[1]++;
+
+                            throw AggregateException.with(new SQLException("Deadlock", "40001"));
+                        }
+                    });
+                }
+            });
+            fail();
+        }
+        catch (AggregateException e)
+        {
+            // The enclosing transaction is retried, its nested transaction only with it
+            assertEquals(3, attempts[0]);
+            assertEquals(3, attempts[1]);
+        }
+        finally
+        {
+            scope.close();
+        }
+    }
+
+    @Test
+    public void testEndTransactionFailureKeepsTaskFailure()
+    {
+        _sqlClient.setRetryPolicy(new RetryPolicy().maxAttempts(1));
+
+        final SqlScope scope = _sqlClient.open();
+
+        try
+        {
+            scope.transact(new SqlTask<Object>()
+            {
+                public Object execute()
+                {
+                    scope.executeUpdate("emp.insert.sql", emp(1));
+
+                    try
+                    {
+                        // Breaks the scope's connection so the rollback fails
+                        DriverManager.getConnection(_url + ";shutdown=true");
+                    }
+                    catch (SQLException e)
+                    {
+                        // Derby reports a shut down database with an exception
+                    }
+
+                    throw new IllegalArgumentException("Task failed");
+                }
+            });
+            fail();
+        }
+        catch (AggregateException e)
+        {
+            Throwable cause = e.getCause();
+
+            while (cause instanceof AggregateException)
+                cause = cause.getCause();
+
+            assertTrue(cause instanceof IllegalArgumentException);
+        }
+        finally
+        {
+            scope.close();
+        }
+    }
+
+    @Test
+    public void testRejectsNestedTransactionWithoutSavepoints()
+    {
+        // Connections of this data source report that they do not support savepoints
+        DataSource dataSource = answer(DataSource.class, _dataSource, "getConnection", new InvocationHandler()
+        {
+            public Object invoke(Object target, Method m, Object[] args) throws Throwable
+            {
+                Connection conn = (Connection) m.invoke(target, args);
+                DatabaseMetaData metaData = answer(DatabaseMetaData.class, conn.getMetaData(), "supportsSavepoints",
+                    false);
+
+                return answer(Connection.class, conn, "getMetaData", metaData);
+            }
+        });
+
+        SqlClient sqlClient = new SqlClient(dataSource, "noSavepoints");
+        sqlClient.loadSchema(schema());
+        sqlClient.setRetryPolicy(new RetryPolicy().maxAttempts(1));
+
+        final SqlScope scope = sqlClient.open();
+
+        try
+        {
+            scope.transact(new SqlTask<Object>()
+            {
+                public Object execute()
+                {
+                    scope.executeUpdate("emp.insert.sql", emp(1));
+
+                    return scope.transact(new SqlTask<Object>()
+                    {
+                        public Object execute()
+                        {
+                            return scope.executeUpdate("emp.insert.sql", emp(2));
+                        }
+                    });
+                }
+            });
+            fail();
+        }
+        catch (AggregateException e)
+        {
+            Throwable cause = e.getCause();
+
+            while (cause instanceof AggregateException)
+                cause = cause.getCause();
+
+            assertTrue(cause instanceof IllegalStateException);
+            // The nested task neither ran nor joined the enclosing transaction, which was rolled back
+            assertEquals(0, scope.select("emp.all.sql", null).size());
+        }
+        finally
+        {
+            scope.close();
+            sqlClient.shutdown();
+        }
+    }
+}
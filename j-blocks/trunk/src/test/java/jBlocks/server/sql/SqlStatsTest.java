@@ -0,0 +1,192 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package jBlocks.server.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SqlStatsTest extends DerbyTestCase
+{
+    private List<SqlExecution> _executions;
+
+    @Before
+    public void setUpMonitor()
+    {
+        _executions = new ArrayList<SqlExecution>();
+
+        _sqlClient.setMonitor(new SqlMonitor()
+        {
+            public void executed(SqlExecution execution)
+            {
+                _executions.add(execution);
+            }
+        });
+    }
+
+    private Map<String, Object> emp(int id)
+    {
+        Map<String, Object> emp = new HashMap<String, Object>();
+        emp.put("Id", id);
+        emp.put("Name", "e" + id);
+        emp.put("Dept", 1);
+
+        return emp;
+    }
+
+    private void insert(final Map<String, Object> emp)
+    {
+        _sqlClient.transact(new SqlTask<Object>()
+        {
+            public Object execute()
+            {
+                return _sqlClient.executeUpdate("emp.insert.sql", emp);
+            }
+        });
+    }
+
+    /**
+     * @return An execution of <code>emp.insert.sql</code> that took at least the provided time.
+     */
+    private SqlExecution slowInsert(long millis) throws Exception
+    {
+        insert(emp(1));
+
+        SqlExecution execution = new SqlExecution(_executions.get(0).getSqlStmt(), emp(2));
+        execution.prepared();
+        Thread.sleep(millis);
+        execution.executed();
+        execution.end(1, null);
+
+        return execution;
+    }
+
+    @Test
+    public void testTimesPhasesOfSelect() throws Exception
+    {
+        insert(1, "a", 1);
+        insert(2, "b", 1);
+
+        assertEquals(2, _sqlClient.select("emp.all.sql", null).size());
+
+        SqlExecution execution = _executions.get(0);
+
+        assertEquals("emp.all.sql", execution.getStmtId());
+        assertEquals(2, execution.getRows());
+        assertNull(execution.getFailure());
+        assertTrue(execution.getPrepareNanos() > 0);
+        assertTrue(execution.getExecuteNanos() > 0);
+        assertTrue(execution.getFetchNanos() > 0);
+        assertTrue(execution.getMapNanos() > 0);
+        assertEquals(execution.getPrepareNanos() + execution.getExecuteNanos() + execution.getFetchNanos()
+            + execution.getMapNanos(), execution.getTotalNanos());
+    }
+
+    @Test
+    public void testTimesUpdatesWithoutFetchOrMap()
+    {
+        insert(emp(1));
+
+        SqlExecution execution = _executions.get(0);
+
+        assertEquals("emp.insert.sql", execution.getStmtId());
+        assertEquals(1, execution.getRows());
+        assertTrue(execution.getExecuteNanos() > 0);
+        assertEquals(0, execution.getFetchNanos());
+        assertEquals(0, execution.getMapNanos());
+    }
+
+    @Test
+    public void testRecordsExecutionsAndFailures()
+    {
+        SqlStats stats = new SqlStats();
+        _sqlClient.setMonitor(stats);
+
+        insert(emp(1));
+
+        try
+        {
+            insert(emp(1));
+            fail();
+        }
+        catch (RuntimeException e)
+        {
+            // Duplicate key
+        }
+
+        _sqlClient.select("emp.all.sql", null);
+
+        StatementStats inserts = stats.snapshot().get("emp.insert.sql");
+
+        assertEquals(2, inserts.getCount());
+        assertEquals(1, inserts.getFailures());
+        assertEquals(1, inserts.getRows());
+        assertEquals(1, stats.snapshot().get("emp.all.sql").getRows());
+
+        stats.reset();
+
+        assertEquals(0, stats.snapshot().get("emp.insert.sql").getCount());
+    }
+
+    @Test
+    public void testCountsExecutionsAboveSlowThreshold() throws Exception
+    {
+        SqlExecution execution = slowInsert(20);
+
+        SqlStats slow = new SqlStats().slowThreshold(1);
+        slow.executed(execution);
+        assertEquals(1, slow.snapshot().get("emp.insert.sql").getSlow());
+
+        SqlStats fast = new SqlStats().slowThreshold(10000);
+        fast.executed(execution);
+        assertEquals(0, fast.snapshot().get("emp.insert.sql").getSlow());
+
+        SqlStats off = new SqlStats().slowThreshold(0);
+        off.executed(execution);
+        assertEquals(0, off.snapshot().get("emp.insert.sql").getSlow());
+    }
+
+    @Test
+    public void testRedactsParameters() throws Exception
+    {
+        SqlExecution execution = slowInsert(1);
+
+        String plain = new SqlStats().slowQuery(execution);
+        assertTrue(plain, plain.contains("Name=e2"));
+
+        String named = new SqlStats().redact("Name").slowQuery(execution);
+        assertFalse(named, named.contains("e2"));
+        assertTrue(named, named.contains("Name=***"));
+        assertTrue(named, named.contains("Id=2"));
+
+        String all = new SqlStats().redact("*").slowQuery(execution);
+        assertFalse(all, all.contains("e2"));
+        assertFalse(all, all.contains("=2"));
+        assertTrue(all, all.contains("Name"));
+
+        // Redacting does not change the values of the execution
+        assertEquals("e2", execution.getParamValues().get("Name"));
+    }
+}
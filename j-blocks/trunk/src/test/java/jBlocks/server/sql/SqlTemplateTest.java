@@ -0,0 +1,70 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package jBlocks.server.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class SqlTemplateTest
+{
+    private SqlTemplate template()
+    {
+        return new SqlTemplate(Arrays.asList("select a from t order by ", " ", ""), Arrays.asList(new SqlParam(
+            "sort"), new SqlParam("dir")));
+    }
+
+    private Map<String, String> model(String sort, String dir)
+    {
+        Map<String, String> model = new HashMap<String, String>();
+        model.put("sort", sort);
+        model.put("dir", dir);
+
+        return model;
+    }
+
+    @Test
+    public void testRender()
+    {
+        assertEquals("select a from t order by b desc", template().render(model("b", "desc")));
+    }
+
+    @Test
+    public void testRenderKeepsValuesAsIs()
+    {
+        assertEquals("select a from t order by $1 \\", template().render(model("$1", "\\")));
+    }
+
+    @Test
+    public void testRenderReusesSql()
+    {
+        SqlTemplate template = template();
+
+        assertSame(template.render(model("b", "asc")), template.render(model("b", "asc")));
+    }
+
+    @Test
+    public void testReplaceHead()
+    {
+        SqlTemplate template = template().replaceHead(6, "select distinct");
+
+        assertEquals("select distinct a from t order by b asc", template.render(model("b", "asc")));
+    }
+}
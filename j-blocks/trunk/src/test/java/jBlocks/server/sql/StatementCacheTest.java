@@ -0,0 +1,143 @@
+// Copyright 2007 Harish Krishnaswamy
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package jBlocks.server.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StatementCacheTest extends DerbyTestCase
+{
+    private static final String A = "select id from emp where id = ?";
+    private static final String B = "select name from emp where id = ?";
+    private static final String C = "select dept from emp where id = ?";
+
+    private Connection          _conn;
+    private AtomicLong          _hits;
+    private AtomicLong          _misses;
+    private StatementCache      _cache;
+
+    @Before
+    public void setUpCache() throws Exception
+    {
+        _conn = DriverManager.getConnection(_url);
+        _hits = new AtomicLong();
+        _misses = new AtomicLong();
+        _cache = new StatementCache(_conn, 2, _hits, _misses);
+    }
+
+    @After
+    public void tearDownCache() throws Exception
+    {
+        _cache.clear();
+        _conn.close();
+    }
+
+    private PreparedStatement prepare(String sql) throws Exception
+    {
+        return _cache.checkout(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+    }
+
+    private PreparedStatement cycle(String sql) throws Exception
+    {
+        PreparedStatement stmt = prepare(sql);
+        _cache.checkin(stmt);
+
+        return stmt;
+    }
+
+    @Test
+    public void testReusesReturnedStatement() throws Exception
+    {
+        PreparedStatement stmt = cycle(A);
+
+        assertSame(stmt, cycle(A));
+        assertEquals(1, _hits.get());
+        assertEquals(1, _misses.get());
+
+        // Other result set options are another statement
+        PreparedStatement scrollable = _cache.checkout(A, ResultSet.TYPE_SCROLL_INSENSITIVE,
+            ResultSet.CONCUR_READ_ONLY);
+        assertNotSame(stmt, scrollable);
+        _cache.checkin(scrollable);
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyReturned() throws Exception
+    {
+        PreparedStatement a = cycle(A);
+        PreparedStatement b = cycle(B);
+
+        cycle(A);
+        cycle(C);
+
+        assertEquals(2, _cache.size());
+        assertTrue(b.isClosed());
+        assertFalse(a.isClosed());
+
+        assertNotSame(b, cycle(B));
+        assertEquals(4, _misses.get());
+    }
+
+    @Test
+    public void testCheckedOutStatementIsNotShared() throws Exception
+    {
+        PreparedStatement first = prepare(A);
+        PreparedStatement second = prepare(A);
+
+        assertNotSame(first, second);
+        assertEquals(0, _cache.size());
+
+        _cache.checkin(first);
+        _cache.checkin(second);
+
+        // Only one statement per key is kept
+        assertEquals(1, _cache.size());
+        assertFalse(first.isClosed());
+        assertTrue(second.isClosed());
+    }
+
+    @Test
+    public void testEvictsQueuedSqlOnNextCheckout() throws Exception
+    {
+        PreparedStatement cached = prepare(A);
+        PreparedStatement checkedOut = prepare(A);
+
+        _cache.checkin(cached);
+
+        _cache.evict(Collections.singleton(A));
+        assertFalse(cached.isClosed());
+
+        cycle(B);
+        assertTrue(cached.isClosed());
+
+        _cache.checkin(checkedOut);
+        assertTrue(checkedOut.isClosed());
+        assertEquals(1, _cache.size());
+    }
+}